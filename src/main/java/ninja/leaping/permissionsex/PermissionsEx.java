@@ -16,32 +16,288 @@
  */
 package ninja.leaping.permissionsex;
 
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreExecutor;
 import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.HotSet;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.MemoryAccounting;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.spongepowered.api.service.permission.context.Context;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class PermissionsEx {
     private final PermissionsExConfiguration config;
     private final File basedir;
+    private final DataStoreExecutor executor;
     private DataStore activeDataStore;
+    /**
+     * Non-default backends that have been started, keyed by name. Each completes once its backend is initialized.
+     */
+    private final ConcurrentMap<String, ListenableFuture<DataStore>> dataStores = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reportScheduler;
+    private final HotSet hotSet;
+    private final ListenableFuture<List<Void>> warmUp;
 
     public PermissionsEx(PermissionsExConfiguration config, File basedir) throws PermissionsLoadingException {
         this.config = config;
         this.basedir = basedir;
+        final DataStoreExecutor.OverflowPolicy policy;
+        try {
+            policy = config.getIoOverflowPolicy();
+        } catch (IllegalArgumentException e) {
+            throw new PermissionsLoadingException("Unknown I/O overflow policy in configuration", e);
+        }
+        this.executor = new DataStoreExecutor(config.getIoReadThreads(), config.getIoWriteThreads(), config.getIoQueueSize(), policy);
         this.activeDataStore = config.getDefaultDataStore();
+        this.hotSet = HotSet.load(getHotSetFile(), config.getHotSetSize());
+        // Start preloaded backends first so they initialize alongside the default one
+        for (String name : config.getPreloadBackends()) {
+            if (config.getDataStore(name) != this.activeDataStore) {
+                startDataStore(name);
+            }
+        }
         this.activeDataStore.initialize(this);
+        this.warmUp = warmUp(this.activeDataStore);
+        if (config.getMemoryReportInterval() > 0) {
+            scheduleMemoryReports(config.getMemoryReportInterval());
+        }
+    }
+
+    private File getHotSetFile() {
+        return new File(basedir, "hot-set.dat");
+    }
+
+    /**
+     * Load the subjects that were in use at the last shutdown, and the parents they use in the contexts they were
+     * used in, spread across the read threads. This only loads their data: resolving the subjects themselves is left
+     * to the permission service, once this completes.
+     */
+    private ListenableFuture<List<Void>> warmUp(final DataStore store) {
+        final List<HotSet.Entry> entries = hotSet.getSubjects();
+        final int tasks = Math.max(1, Math.min(config.getIoReadThreads(), entries.size()));
+        final Set<Map.Entry<String, String>> warmed = Collections.newSetFromMap(new ConcurrentHashMap<Map.Entry<String, String>, Boolean>());
+        final List<ListenableFuture<Void>> futures = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; ++i) {
+            final int offset = i;
+            futures.add(executor.submitRead(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = offset; j < entries.size(); j += tasks) {
+                        final HotSet.Entry entry = entries.get(j);
+                        final List<Set<Context>> contexts = entry.getContexts().isEmpty()
+                                ? Collections.<Set<Context>>singletonList(Collections.<Context>emptySet()) : entry.getContexts();
+                        warm(store, entry.getType(), entry.getIdentifier(), contexts, warmed);
+                    }
+                    return null;
+                }
+            }));
+        }
+        return Futures.allAsList(futures);
+    }
+
+    private static void warm(DataStore store, String type, String identifier, List<Set<Context>> contextSets, Set<Map.Entry<String, String>> warmed) {
+        if (!warmed.add(Maps.immutableEntry(type, identifier))) {
+            return;
+        }
+        final ImmutableOptionSubjectData data = store.getData(type, identifier, null);
+        for (Set<Context> contexts : contextSets) {
+            for (Set<Context> applicable : data.getApplicableContexts(contexts)) {
+                final List<Map.Entry<String, String>> parents = data.getParents(applicable);
+                if (parents != null) {
+                    for (Map.Entry<String, String> parent : parents) {
+                        warm(store, parent.getKey(), parent.getValue(), contextSets, warmed);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scheduleMemoryReports(int intervalSeconds) {
+        this.reportScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "PEX memory report");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.reportScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final MemoryAccounting memory = activeDataStore.getMemoryAccounting();
+                if (memory == null) {
+                    return;
+                }
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(basedir, "memory-report.txt")), "UTF-8")) {
+                    memory.report(20).writeTo(out);
+                } catch (IOException e) {
+                    // TODO Logging: "Unable to write memory report"
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get a configured backend by name, initializing it first if this is the first time it has been used.
+     *
+     * @param name The name of the backend in the configuration
+     * @return The initialized backend, or null if no backend has that name
+     * @throws PermissionsLoadingException if the backend could not be initialized
+     */
+    public DataStore getDataStore(String name) throws PermissionsLoadingException {
+        final DataStore store = config.getDataStore(name);
+        if (store == null || store == this.activeDataStore) {
+            return store;
+        }
+        try {
+            return startDataStore(name).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PermissionsLoadingException("Interrupted while initializing backend " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PermissionsLoadingException) {
+                throw (PermissionsLoadingException) e.getCause();
+            }
+            throw new PermissionsLoadingException("While initializing backend " + name, e.getCause());
+        }
+    }
+
+    private ListenableFuture<DataStore> startDataStore(final String name) {
+        ListenableFuture<DataStore> existing = dataStores.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final SettableFuture<DataStore> future = SettableFuture.create();
+        existing = dataStores.putIfAbsent(name, future);
+        if (existing != null) {
+            return existing;
+        }
+        final DataStore store = config.getDataStore(name);
+        if (store == null) {
+            future.setException(new PermissionsLoadingException("Unknown backend " + name));
+            return future;
+        }
+        // Loading a backend is reading, so it shares the read threads and is waited for when the executor shuts down
+        final ListenableFuture<Void> init = executor.submitRead(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    store.initialize(PermissionsEx.this);
+                    future.set(store);
+                } catch (Throwable t) {
+                    future.setException(t);
+                }
+                return null;
+            }
+        });
+        if (init.isDone() && !future.isDone()) { // Rejected by a full or shut down executor
+            try {
+                init.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.setException(e);
+            } catch (ExecutionException e) {
+                future.setException(e.getCause());
+            }
+        }
+        return future;
     }
 
     public void close() {
+        if (this.reportScheduler != null) {
+            this.reportScheduler.shutdownNow();
+        }
+        // Let queued writes finish before the data store goes away
+        try {
+            this.executor.shutdown(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         this.activeDataStore.close();
+        if (config.getHotSetSize() > 0) {
+            try {
+                this.hotSet.save(getHotSetFile());
+            } catch (IOException e) {
+                // TODO Logging: "Unable to save recently used subjects, the next start will not be warmed up"
+            }
+        }
+        // Initializations still running after the executor's grace period close their backend once they finish
+        for (final ListenableFuture<DataStore> store : this.dataStores.values()) {
+            store.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (store.get() != activeDataStore) {
+                            store.get().close();
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        // Never initialized, so there is nothing to close
+                    }
+                }
+            }, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+        }
     }
 
     public File getBaseDirectory() {
         return this.basedir;
     }
 
+    /**
+     * Get the pool that data stores should run their I/O on
+     *
+     * @return The shared data store executor
+     */
+    public DataStoreExecutor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Get the record of recently used subjects. Anything that resolves subjects should record them here.
+     *
+     * @return The hot set
+     */
+    public HotSet getHotSet() {
+        return this.hotSet;
+    }
+
+    /**
+     * Get the loading of subjects used before the last shutdown, which runs in the background after startup
+     *
+     * @return A future completed once every recently used subject has been loaded
+     */
+    public ListenableFuture<List<Void>> getWarmUp() {
+        return this.warmUp;
+    }
+
     public DataStore getActiveDataStore() {
         return this.activeDataStore;
     }
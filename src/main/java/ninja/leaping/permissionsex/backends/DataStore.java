@@ -20,9 +20,13 @@ import com.google.common.util.concurrent.ListenableFuture;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.permissionsex.PermissionsEx;
 import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.DataSnapshot;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.MemoryAccounting;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 
+import java.util.Set;
+
 /**
  * Data type abstraction for permissions data
  */
@@ -50,10 +54,51 @@ public interface DataStore {
      */
     ListenableFuture<ImmutableOptionSubjectData> setData(String type, String identifier, ImmutableOptionSubjectData data);
 
+    /**
+     * Apply every operation in a transaction. Either all changes are applied or, if any operation fails, none are.
+     * Changes are written to the backing storage together, and listeners for each changed subject are notified once.
+     * Changes are visible to reads once this method returns, and only writing them to the backing storage is deferred.
+     *
+     * @param transaction The changes to apply
+     * @return A future that can be used to listen for completion of writing the changed data
+     */
+    ListenableFuture<Void> applyTransaction(DataTransaction transaction);
+
     boolean isRegistered(String type, String identifier);
 
+    /**
+     * Get the running memory estimates for the data held by this store
+     *
+     * @return The store's memory accounting, or null if this store does not keep data in memory
+     */
+    MemoryAccounting getMemoryAccounting();
+
+    /**
+     * Get a consistent view of all data in this store at this moment. Capturing the view does not copy any data,
+     * and later changes to the store are never visible through it.
+     *
+     * @return The current snapshot, or null if this store does not keep data in memory
+     */
+    DataSnapshot getSnapshot();
+
     Iterable<ImmutableOptionSubjectData> getAll(String type);
 
+    /**
+     * Get every subject type with data in this store
+     *
+     * @return The subject types
+     */
+    Set<String> getRegisteredTypes();
+
+    /**
+     * Get the identifier of every subject of a type with data in this store. While the store is not modified,
+     * iterating again returns identifiers in the same order.
+     *
+     * @param type The subject type
+     * @return The identifiers
+     */
+    Iterable<String> getAllIdentifiers(String type);
+
     /**
      * Return the type name for this data store
      *
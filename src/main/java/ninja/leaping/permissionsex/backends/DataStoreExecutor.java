@@ -0,0 +1,357 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pools for data store I/O, shared by all backends.
+ *
+ * <p>Reads and writes have separate threads and queues, so a backlog of writes never delays loading data.
+ * Queues have a fixed capacity; what happens once one is full is decided by the {@link OverflowPolicy}.
+ */
+public class DataStoreExecutor {
+    public enum OverflowPolicy {
+        /**
+         * Run the task on the submitting thread, slowing submitters down to the rate the backend can sustain
+         */
+        CALLER_RUNS,
+        /**
+         * Merge a keyed write into the write already queued for the same key, so at most one write per key is ever
+         * waiting. Keyed writes must therefore write the latest state rather than a delta. Anything that cannot be
+         * merged runs on the submitting thread.
+         */
+        COALESCE,
+        /**
+         * Fail the task's future with a {@link RejectedExecutionException}
+         */
+        REJECT
+    }
+
+    private final OverflowPolicy policy;
+    private final ThreadPoolExecutor reads, writes;
+    private final QueueStats readStats = new QueueStats(), writeStats = new QueueStats();
+    /**
+     * Keyed writes that have been queued but not started yet. Guarded by its own monitor.
+     */
+    private final Map<Object, PendingWrite> pendingWrites = new HashMap<>();
+
+    public DataStoreExecutor(int readThreads, int writeThreads, int queueSize, OverflowPolicy policy) {
+        this.policy = policy;
+        this.reads = new ThreadPoolExecutor(readThreads, readThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new IoThreadFactory("read"));
+        this.writes = new ThreadPoolExecutor(writeThreads, writeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new IoThreadFactory("write"));
+        this.reads.allowCoreThreadTimeOut(true);
+        this.writes.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task that only reads from a backend
+     *
+     * @param task The task to run
+     * @param <T> The type of the task's result
+     * @return A future completed with the task's result
+     */
+    public <T> ListenableFuture<T> submitRead(Callable<T> task) {
+        final SettableFuture<T> future = SettableFuture.create();
+        final TimedTask<T> timed = new TimedTask<>(task, future, readStats);
+        readStats.submitted.incrementAndGet();
+        try {
+            reads.execute(timed);
+        } catch (RejectedExecutionException e) {
+            return overflow(timed, future, readStats, e);
+        }
+        return future;
+    }
+
+    /**
+     * Run a task that writes to a backend. Writes for the same key may be merged under the
+     * {@link OverflowPolicy#COALESCE} policy, in which case only the latest task submitted for the key runs and every
+     * merged submission completes when it does.
+     *
+     * @param key The key identifying what the task writes, such as a subject, or null if it may not be merged
+     * @param task The task to run
+     * @param result The value to complete the returned future with once the write is done
+     * @param <T> The type of the result
+     * @return A future completed with {@code result} once the write, or the write it was merged into, is done
+     */
+    public <T> ListenableFuture<T> submitWrite(@Nullable Object key, Callable<?> task, @Nullable T result) {
+        final SettableFuture<T> future = SettableFuture.create();
+        writeStats.submitted.incrementAndGet();
+        final PendingWrite write;
+        if (key != null && policy == OverflowPolicy.COALESCE) {
+            synchronized (pendingWrites) {
+                final PendingWrite existing = pendingWrites.get(key);
+                if (existing != null) {
+                    existing.task = task;
+                    existing.addWaiter(future, result);
+                    writeStats.coalesced.incrementAndGet();
+                    return future;
+                }
+                write = new PendingWrite(key, task);
+                write.addWaiter(future, result);
+                pendingWrites.put(key, write);
+            }
+        } else {
+            write = new PendingWrite(null, task);
+            write.addWaiter(future, result);
+        }
+
+        try {
+            writes.execute(write);
+        } catch (RejectedExecutionException e) {
+            if (policy == OverflowPolicy.REJECT) {
+                writeStats.rejected.incrementAndGet();
+                write.fail(e);
+            } else {
+                writeStats.callerRuns.incrementAndGet();
+                write.run();
+            }
+        }
+        return future;
+    }
+
+    private <T> ListenableFuture<T> overflow(Runnable task, SettableFuture<T> future, QueueStats stats, RejectedExecutionException e) {
+        if (policy == OverflowPolicy.REJECT) {
+            stats.rejected.incrementAndGet();
+            return Futures.immediateFailedFuture(e);
+        }
+        stats.callerRuns.incrementAndGet();
+        task.run();
+        return future;
+    }
+
+    /**
+     * Get the current state of the read queue
+     *
+     * @return Read queue metrics
+     */
+    public Metrics getReadMetrics() {
+        return readStats.toMetrics(reads.getQueue().size());
+    }
+
+    /**
+     * Get the current state of the write queue
+     *
+     * @return Write queue metrics
+     */
+    public Metrics getWriteMetrics() {
+        return writeStats.toMetrics(writes.getQueue().size());
+    }
+
+    /**
+     * Stop accepting tasks and wait for queued tasks to finish
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return Whether every queued task finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        reads.shutdown();
+        writes.shutdown();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return reads.awaitTermination(timeout, unit)
+                && writes.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private static class TimedTask<T> implements Runnable {
+        private final Callable<T> task;
+        private final SettableFuture<T> future;
+        private final QueueStats stats;
+        private final long enqueued = System.nanoTime();
+
+        private TimedTask(Callable<T> task, SettableFuture<T> future, QueueStats stats) {
+            this.task = task;
+            this.future = future;
+            this.stats = stats;
+        }
+
+        @Override
+        public void run() {
+            stats.recordWait(System.nanoTime() - enqueued);
+            try {
+                future.set(task.call());
+            } catch (Throwable t) {
+                future.setException(t);
+            }
+        }
+    }
+
+    private class PendingWrite implements Runnable {
+        @Nullable private final Object key;
+        private final long enqueued = System.nanoTime();
+        // Both guarded by pendingWrites
+        private Callable<?> task;
+        private final List<Map.Entry<SettableFuture<Object>, Object>> waiters = new ArrayList<>(1);
+
+        private PendingWrite(@Nullable Object key, Callable<?> task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void addWaiter(SettableFuture<T> future, @Nullable T result) {
+            waiters.add(Maps.immutableEntry((SettableFuture<Object>) future, (Object) result));
+        }
+
+        private List<Map.Entry<SettableFuture<Object>, Object>> claim() {
+            synchronized (pendingWrites) {
+                if (key != null && pendingWrites.get(key) == this) {
+                    pendingWrites.remove(key);
+                }
+                return new ArrayList<>(waiters);
+            }
+        }
+
+        void fail(Throwable t) {
+            for (Map.Entry<SettableFuture<Object>, Object> waiter : claim()) {
+                waiter.getKey().setException(t);
+            }
+        }
+
+        @Override
+        public void run() {
+            writeStats.recordWait(System.nanoTime() - enqueued);
+            final Callable<?> task;
+            final List<Map.Entry<SettableFuture<Object>, Object>> waiters;
+            synchronized (pendingWrites) {
+                // Once claimed, no more submissions can be merged in, so the task read here is final
+                waiters = claim();
+                task = this.task;
+            }
+            try {
+                task.call();
+            } catch (Throwable t) {
+                for (Map.Entry<SettableFuture<Object>, Object> waiter : waiters) {
+                    waiter.getKey().setException(t);
+                }
+                return;
+            }
+            for (Map.Entry<SettableFuture<Object>, Object> waiter : waiters) {
+                waiter.getKey().set(waiter.getValue());
+            }
+        }
+    }
+
+    private static class QueueStats {
+        private final AtomicLong submitted = new AtomicLong(), coalesced = new AtomicLong(), callerRuns = new AtomicLong(),
+                rejected = new AtomicLong(), started = new AtomicLong(), totalWaitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+
+        void recordWait(long nanos) {
+            started.incrementAndGet();
+            totalWaitNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+                // Retry until our wait is recorded or a longer one is
+            }
+        }
+
+        Metrics toMetrics(int queueDepth) {
+            final long started = this.started.get();
+            return new Metrics(queueDepth, submitted.get(), coalesced.get(), callerRuns.get(), rejected.get(),
+                    started == 0 ? 0 : totalWaitNanos.get() / started, maxWaitNanos.get());
+        }
+    }
+
+    /**
+     * A point-in-time view of one queue's counters. Counts are totals since the executor was created.
+     */
+    public static class Metrics {
+        private final int queueDepth;
+        private final long submitted, coalesced, callerRuns, rejected, meanWaitNanos, maxWaitNanos;
+
+        Metrics(int queueDepth, long submitted, long coalesced, long callerRuns, long rejected, long meanWaitNanos, long maxWaitNanos) {
+            this.queueDepth = queueDepth;
+            this.submitted = submitted;
+            this.coalesced = coalesced;
+            this.callerRuns = callerRuns;
+            this.rejected = rejected;
+            this.meanWaitNanos = meanWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        public long getCallerRuns() {
+            return callerRuns;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getMeanWaitNanos() {
+            return meanWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{queueDepth=" + queueDepth + ", submitted=" + submitted + ", coalesced=" + coalesced
+                    + ", callerRuns=" + callerRuns + ", rejected=" + rejected + ", meanWaitNanos=" + meanWaitNanos
+                    + ", maxWaitNanos=" + maxWaitNanos + "}";
+        }
+    }
+
+    private static class IoThreadFactory implements ThreadFactory {
+        private final String kind;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private IoThreadFactory(String kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "PEX I/O " + kind + " #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
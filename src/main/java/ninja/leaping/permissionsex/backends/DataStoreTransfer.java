@@ -0,0 +1,308 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies every subject from one data store to another.
+ *
+ * <p>Subjects are read a page at a time, converted on a pool of threads, and written as one transaction per page.
+ * Reading and converting the next pages overlaps with writing earlier ones. At most a fixed number of pages are in
+ * flight at once, so memory use does not depend on how many subjects are transferred.
+ *
+ * <p>After each page is written, progress is saved to a checkpoint file. A transfer that is interrupted resumes
+ * after the last written page when run again, provided the source has not changed in the meantime. If it has, the
+ * interrupted type is copied again from the start, which is safe because each write replaces the subject's data.
+ */
+public class DataStoreTransfer {
+    private static final String KEY_TYPE = "type", KEY_POSITION = "position", KEY_LAST_ID = "last-id", KEY_COMPLETED = "completed-types";
+    private static final int MAX_PENDING_PAGES = 16;
+
+    private final DataStore source, target;
+    private final File checkpointFile;
+    private final int pageSize, threads;
+    @Nullable private final ProgressListener listener;
+
+    public interface ProgressListener {
+        /**
+         * Called after each page is written
+         *
+         * @param type The subject type being transferred
+         * @param subjects The number of subjects of that type written so far, including any written before resuming
+         * @param subjectsPerSecond The rate subjects have been written at during this run
+         */
+        void onProgress(String type, long subjects, double subjectsPerSecond);
+    }
+
+    /**
+     * Create a new transfer
+     *
+     * @param source The store to read from
+     * @param target The store to write to
+     * @param checkpointFile The file to keep progress in. Removed once the transfer completes.
+     * @param pageSize The number of subjects to write in each transaction
+     * @param threads The number of threads to read and convert subjects on
+     * @param listener Listener to report progress to
+     */
+    public DataStoreTransfer(DataStore source, DataStore target, File checkpointFile, int pageSize, int threads, @Nullable ProgressListener listener) {
+        if (pageSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("Page size and thread count must be at least 1");
+        }
+        this.source = source;
+        this.target = target;
+        this.checkpointFile = checkpointFile;
+        this.pageSize = pageSize;
+        this.threads = threads;
+        this.listener = listener;
+    }
+
+    /**
+     * Create a transfer between two backends configured in {@code backends}, keeping its checkpoint in the
+     * PermissionsEx directory
+     *
+     * @param pex The PermissionsEx instance owning the backends
+     * @param sourceName The name of the backend to read from
+     * @param targetName The name of the backend to write to
+     * @param pageSize The number of subjects to write in each transaction
+     * @param listener Listener to report progress to
+     * @return The transfer
+     * @throws PermissionsLoadingException if either backend is unknown or could not be initialized
+     */
+    public static DataStoreTransfer between(PermissionsEx pex, String sourceName, String targetName, int pageSize, @Nullable ProgressListener listener) throws PermissionsLoadingException {
+        final DataStore source = pex.getDataStore(sourceName), target = pex.getDataStore(targetName);
+        if (source == null) {
+            throw new PermissionsLoadingException("Unknown backend " + sourceName);
+        }
+        if (target == null) {
+            throw new PermissionsLoadingException("Unknown backend " + targetName);
+        }
+        return new DataStoreTransfer(source, target, new File(pex.getBaseDirectory(), "transfer-" + sourceName + "-" + targetName + ".checkpoint"),
+                pageSize, Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Transfer every subject that has not been transferred yet
+     *
+     * @return The number of subjects written in this run
+     * @throws PermissionsLoadingException if reading, writing or checkpointing fails
+     */
+    public long transfer() throws PermissionsLoadingException {
+        final Properties checkpoint = readCheckpoint();
+        final Set<String> completedTypes = new LinkedHashSet<>();
+        final String completed = checkpoint.getProperty(KEY_COMPLETED, "");
+        if (!completed.isEmpty()) {
+            completedTypes.addAll(Splitter.on(',').splitToList(completed));
+        }
+
+        final List<String> types = new ArrayList<>(source.getRegisteredTypes());
+        Collections.sort(types);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+        long written = 0;
+        try {
+            for (String type : types) {
+                if (completedTypes.contains(type)) {
+                    continue;
+                }
+                written += transferType(type, checkpoint, completedTypes, pool, start, written);
+                completedTypes.add(type);
+                writeCheckpoint(null, 0, null, completedTypes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PermissionsLoadingException("Interrupted while transferring data", e);
+        } catch (ExecutionException e) {
+            throw new PermissionsLoadingException("While transferring data", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            throw new PermissionsLoadingException("Unable to delete transfer checkpoint " + checkpointFile);
+        }
+        return written;
+    }
+
+    private long transferType(final String type, Properties checkpoint, Set<String> completedTypes, ExecutorService pool,
+                              long start, long writtenBefore) throws PermissionsLoadingException, InterruptedException, ExecutionException {
+        Iterator<String> ids = source.getAllIdentifiers(type).iterator();
+        long position = 0;
+        if (type.equals(checkpoint.getProperty(KEY_TYPE))) {
+            // Skip what was written before, as long as the source still lists subjects in the same order
+            final long resumeAt = Long.parseLong(checkpoint.getProperty(KEY_POSITION, "0"));
+            String lastId = null;
+            while (position < resumeAt && ids.hasNext()) {
+                lastId = ids.next();
+                ++position;
+            }
+            if (position != resumeAt || !checkpoint.getProperty(KEY_LAST_ID, "").equals(lastId)) {
+                ids = source.getAllIdentifiers(type).iterator();
+                position = 0;
+            }
+        }
+
+        long written = 0;
+        // Pages are written without waiting for each other, up to a limit, so a target that saves everything at once
+        // can cover many pages with one save. Each is checkpointed once it and every page before it are done.
+        final Deque<Map.Entry<Future<?>, List<String>>> pendingWrites = new ArrayDeque<>();
+        while (ids.hasNext()) {
+            final List<String> page = new ArrayList<>(pageSize);
+            while (page.size() < pageSize && ids.hasNext()) {
+                page.add(ids.next());
+            }
+            final List<Future<Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>>> conversions = new ArrayList<>(page.size());
+            for (final String identifier : page) {
+                conversions.add(pool.submit(new Callable<Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>>() {
+                    @Override
+                    public Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> call() {
+                        return replaceWith(source.getData(type, identifier, null));
+                    }
+                }));
+            }
+            final DataTransaction.Builder transaction = DataTransaction.builder();
+            for (int i = 0; i < page.size(); ++i) {
+                transaction.add(type, page.get(i), conversions.get(i).get());
+            }
+            pendingWrites.add(Maps.<Future<?>, List<String>>immutableEntry(target.applyTransaction(transaction.build()), page));
+
+            while (!pendingWrites.isEmpty() && (pendingWrites.size() > MAX_PENDING_PAGES || pendingWrites.peek().getKey().isDone())) {
+                final Map.Entry<Future<?>, List<String>> done = pendingWrites.poll();
+                done.getKey().get(); // Throws if the write failed
+                position += done.getValue().size();
+                written += done.getValue().size();
+                pageWritten(type, position, done.getValue(), completedTypes, start, writtenBefore + written);
+            }
+        }
+        while (!pendingWrites.isEmpty()) {
+            final Map.Entry<Future<?>, List<String>> pending = pendingWrites.poll();
+            pending.getKey().get();
+            position += pending.getValue().size();
+            written += pending.getValue().size();
+            pageWritten(type, position, pending.getValue(), completedTypes, start, writtenBefore + written);
+        }
+        return written;
+    }
+
+    private void pageWritten(String type, long position, List<String> page, Set<String> completedTypes, long start, long writtenThisRun) throws PermissionsLoadingException {
+        writeCheckpoint(type, position, page.get(page.size() - 1), completedTypes);
+        if (listener != null) {
+            final double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+            listener.onProgress(type, position, writtenThisRun / seconds);
+        }
+    }
+
+    /**
+     * Create a transform that replaces a subject's data in the target with the given data.
+     *
+     * <p>Data of the same implementation as the target's is immutable and used as is. Other data is copied into the
+     * target's representation through the {@link ImmutableOptionSubjectData} mutators, which cannot carry anything
+     * the interface does not expose.
+     */
+    static Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> replaceWith(final ImmutableOptionSubjectData data) {
+        return new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData existing) {
+                if (existing.getClass() == data.getClass()) {
+                    return data;
+                }
+                ImmutableOptionSubjectData ret = existing.clearPermissions().clearOptions().clearParents();
+                for (Map.Entry<Set<Context>, Map<String, Tristate>> ctx : data.getAllPermissions().entrySet()) {
+                    for (Map.Entry<String, Tristate> permission : ctx.getValue().entrySet()) {
+                        ret = ret.setPermission(ctx.getKey(), permission.getKey(), permission.getValue());
+                    }
+                }
+                for (Map.Entry<Set<Context>, Map<String, String>> ctx : data.getAllOptions().entrySet()) {
+                    for (Map.Entry<String, String> option : ctx.getValue().entrySet()) {
+                        ret = ret.setOption(ctx.getKey(), option.getKey(), option.getValue());
+                    }
+                }
+                for (Map.Entry<Set<Context>, List<Map.Entry<String, String>>> ctx : data.getAllParents().entrySet()) {
+                    // Parents are added to the front of the list, so add them last-first to keep their order
+                    for (Map.Entry<String, String> parent : Lists.reverse(ctx.getValue())) {
+                        ret = ret.addParent(ctx.getKey(), parent.getKey(), parent.getValue());
+                    }
+                }
+                return ret;
+            }
+        };
+    }
+
+    private Properties readCheckpoint() throws PermissionsLoadingException {
+        final Properties ret = new Properties();
+        if (checkpointFile.exists()) {
+            try (InputStream in = new FileInputStream(checkpointFile)) {
+                ret.load(in);
+            } catch (IOException e) {
+                throw new PermissionsLoadingException("While reading transfer checkpoint " + checkpointFile, e);
+            }
+        }
+        return ret;
+    }
+
+    private void writeCheckpoint(@Nullable String type, long position, @Nullable String lastId, Set<String> completedTypes) throws PermissionsLoadingException {
+        final Properties props = new Properties();
+        if (type != null) {
+            props.setProperty(KEY_TYPE, type);
+            props.setProperty(KEY_POSITION, String.valueOf(position));
+            props.setProperty(KEY_LAST_ID, lastId);
+        }
+        props.setProperty(KEY_COMPLETED, Joiner.on(',').join(completedTypes));
+        final File temp = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                props.store(out, "PermissionsEx data transfer progress");
+            }
+            if (!temp.renameTo(checkpointFile) && (!checkpointFile.delete() || !temp.renameTo(checkpointFile))) {
+                throw new IOException("Unable to move " + temp + " to " + checkpointFile);
+            }
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("While writing transfer checkpoint " + checkpointFile, e);
+        }
+    }
+}
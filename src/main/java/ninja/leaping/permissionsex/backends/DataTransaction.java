@@ -0,0 +1,106 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A group of changes to subject data that a {@link DataStore} applies as one unit.
+ * Operations on the same subject are applied in the order they were added.
+ */
+public final class DataTransaction {
+    private final List<Operation> operations;
+
+    private DataTransaction(List<Operation> operations) {
+        this.operations = operations;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    public static final class Operation {
+        private final String type, identifier;
+        private final Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> transform;
+
+        private Operation(String type, String identifier, Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> transform) {
+            this.type = type;
+            this.identifier = identifier;
+            this.transform = transform;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * The change to make. The function is given the subject's current data, and returns the data to replace it with,
+         * or null to remove the subject.
+         *
+         * @return The transform function
+         */
+        public Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> getTransform() {
+            return transform;
+        }
+    }
+
+    public static final class Builder {
+        private final ImmutableList.Builder<Operation> operations = ImmutableList.builder();
+
+        private Builder() {
+        }
+
+        public Builder add(String type, String identifier, Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> transform) {
+            operations.add(new Operation(type, identifier, transform));
+            return this;
+        }
+
+        /**
+         * Replace a subject's data, whatever it currently is
+         *
+         * @param type The type of the subject
+         * @param identifier The subject's identifier
+         * @param data The new data, or null to remove the subject
+         * @return this
+         */
+        public Builder set(String type, String identifier, @Nullable final ImmutableOptionSubjectData data) {
+            return add(type, identifier, new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                    return data;
+                }
+            });
+        }
+
+        public DataTransaction build() {
+            return new DataTransaction(operations.build());
+        }
+    }
+}
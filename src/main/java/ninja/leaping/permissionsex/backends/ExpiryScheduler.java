@@ -0,0 +1,252 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes expired permissions and parents from a data store once their time has passed.
+ *
+ * <p>Each subject is scheduled at the earliest expiry in its data, in a hierarchical timing wheel. Each level has
+ * {@value #SLOTS} slots, and each slot of a level covers a whole turn of the level below it, so scheduling
+ * and firing take constant time however far away the expiry is. On each tick the due subjects are collected,
+ * and their expired entries are removed through {@link DataStore#applyTransaction(DataTransaction)} in batches,
+ * so only the subjects that changed are invalidated.
+ *
+ * <p>A subject is only kept at its earliest known expiry. Entries left in the wheel for an expiry that has since
+ * been replaced are skipped when they fire, and subjects that still have later expiries after a removal are
+ * scheduled again by the store when it publishes the change.</p>
+ */
+public class ExpiryScheduler {
+    private static final int SLOT_BITS = 6, SLOTS = 1 << SLOT_BITS, SLOT_MASK = SLOTS - 1, LEVELS = 4;
+    private static final int BATCH_SIZE = 256;
+
+    private final DataStore store;
+    private final long tickMillis;
+    private final ScheduledExecutorService ticker;
+    /**
+     * The expiry each subject is currently scheduled at
+     */
+    private final ConcurrentMap<Map.Entry<String, String>, Long> scheduled = new ConcurrentHashMap<>();
+    private final Object wheelLock = new Object();
+    @SuppressWarnings("unchecked")
+    private final List<Timer>[][] wheel = new List[LEVELS][SLOTS];
+    /**
+     * Timers too far away for the wheel, moved into it as the top level turns
+     */
+    private final List<Timer> overflow = new ArrayList<>();
+    private long currentTick;
+
+    private static final class Timer {
+        private final Map.Entry<String, String> subject;
+        private final long expiry, tick;
+
+        private Timer(Map.Entry<String, String> subject, long expiry, long tick) {
+            this.subject = subject;
+            this.expiry = expiry;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Create a new scheduler. No expiries are removed until {@link #start()} is called.
+     *
+     * @param store The store to remove expired entries from
+     * @param name The name to give the ticking thread
+     * @param tickMillis The resolution of expiry times, in milliseconds
+     */
+    public ExpiryScheduler(DataStore store, final String name, long tickMillis) {
+        this.store = store;
+        this.tickMillis = tickMillis;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (List<Timer>[] level : wheel) {
+            for (int i = 0; i < SLOTS; ++i) {
+                level[i] = new ArrayList<>();
+            }
+        }
+    }
+
+    public void start() {
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    // TODO Logging: "Unable to remove expired permissions, will retry on the next tick"
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Schedule a subject to have its expired entries removed. If the subject is already scheduled earlier,
+     * nothing changes.
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param expiry The subject's earliest expiry, or {@link ImmutableOptionSubjectData#NEVER}
+     */
+    public void schedule(String type, String identifier, long expiry) {
+        if (expiry == ImmutableOptionSubjectData.NEVER) {
+            return;
+        }
+        final Map.Entry<String, String> subject = Maps.immutableEntry(type, identifier);
+        Long existing;
+        do {
+            existing = scheduled.get(subject);
+            if (existing != null && existing <= expiry) {
+                return;
+            }
+        } while (!(existing == null ? scheduled.putIfAbsent(subject, expiry) == null : scheduled.replace(subject, existing, expiry)));
+        synchronized (wheelLock) {
+            insert(new Timer(subject, expiry, (expiry + tickMillis - 1) / tickMillis));
+        }
+    }
+
+    /**
+     * Get the expiry a subject is scheduled at
+     *
+     * @return The expiry, or null if the subject is not scheduled
+     */
+    @Nullable
+    public Long getScheduled(String type, String identifier) {
+        return scheduled.get(Maps.immutableEntry(type, identifier));
+    }
+
+    private void insert(Timer timer) {
+        long delta = timer.tick - currentTick;
+        if (delta <= 0) {
+            // Already due, fire on the next tick
+            wheel[0][(int) ((currentTick + 1) & SLOT_MASK)].add(timer);
+            return;
+        }
+        for (int level = 0; level < LEVELS; ++level) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                wheel[level][(int) ((timer.tick >>> (SLOT_BITS * level)) & SLOT_MASK)].add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    /**
+     * Advance the wheel to the given time, removing expired entries from every subject that has come due
+     *
+     * @param now The current time in milliseconds since the epoch
+     */
+    void tick(long now) {
+        final List<Timer> due = new ArrayList<>();
+        synchronized (wheelLock) {
+            final long target = now / tickMillis;
+            while (currentTick < target) {
+                ++currentTick;
+                cascade();
+                final List<Timer> slot = wheel[0][(int) (currentTick & SLOT_MASK)];
+                due.addAll(slot);
+                slot.clear();
+            }
+        }
+        final List<Map.Entry<String, String>> batch = new ArrayList<>(BATCH_SIZE);
+        for (Timer timer : due) {
+            if (!scheduled.remove(timer.subject, timer.expiry)) {
+                continue; // Superseded by an earlier expiry
+            }
+            batch.add(timer.subject);
+            if (batch.size() == BATCH_SIZE) {
+                removeExpired(batch, now);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            removeExpired(batch, now);
+        }
+    }
+
+    private void removeExpired(List<Map.Entry<String, String>> subjects, long now) {
+        final DataTransaction.Builder transaction = DataTransaction.builder();
+        for (Map.Entry<String, String> subject : subjects) {
+            transaction.add(subject.getKey(), subject.getValue(), removeExpired(now));
+        }
+        store.applyTransaction(transaction.build());
+        // Subjects whose expiry was moved later since being scheduled had nothing removed, so were not rescheduled
+        for (Map.Entry<String, String> subject : subjects) {
+            schedule(subject.getKey(), subject.getValue(), store.getData(subject.getKey(), subject.getValue(), null).getNextExpiry());
+        }
+    }
+
+    /**
+     * Move timers from higher levels down as the levels below them complete a turn. Must hold {@link #wheelLock}.
+     */
+    private void cascade() {
+        for (int level = 1; level <= LEVELS; ++level) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            final List<Timer> timers;
+            if (level == LEVELS) {
+                timers = new ArrayList<>(overflow);
+                overflow.clear();
+            } else {
+                final List<Timer> slot = wheel[level][(int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+                timers = new ArrayList<>(slot);
+                slot.clear();
+            }
+            for (Timer timer : timers) {
+                if (timer.tick == currentTick) {
+                    wheel[0][(int) (currentTick & SLOT_MASK)].add(timer);
+                } else {
+                    insert(timer);
+                }
+            }
+        }
+    }
+
+    private static Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> removeExpired(final long now) {
+        return new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.removeExpired(now);
+            }
+        };
+    }
+}
@@ -17,6 +17,9 @@
 package ninja.leaping.permissionsex.backends.file;
 
 import com.google.common.base.Functions;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
@@ -29,21 +32,62 @@ import ninja.leaping.configurate.transformation.TransformAction;
 import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
 import ninja.leaping.permissionsex.PermissionsEx;
 import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreExecutor;
 import ninja.leaping.permissionsex.backends.DataStoreFactory;
+import ninja.leaping.permissionsex.backends.DataTransaction;
+import ninja.leaping.permissionsex.backends.ExpiryScheduler;
 import ninja.leaping.permissionsex.backends.LegacyConversionUtils;
 import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.data.HotSet;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.InheritanceGraph;
+import ninja.leaping.permissionsex.data.MemoryAccounting;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static ninja.leaping.configurate.transformation.ConfigurationTransformation.WILDCARD_OBJECT;
 
 
 public class FileDataStore implements DataStore {
+    static final int SCHEMA_VERSION = 2;
+    private static final int EXPIRY_INDEX_VERSION = 1;
+    private static final long EXPIRY_TICK_MILLIS = 1000;
     private static final ObjectMapper<FileDataStore> MAPPER;
 
     static {
@@ -57,39 +101,114 @@ public class FileDataStore implements DataStore {
     private final String identifier;
     @Setting("file")
     private String file;
+    @Setting(value = "sharded", comment = "Store each subject in its own file, in a directory named after the permissions file")
+    private boolean sharded;
+    @Setting(value = "journal", comment = "Append changes to a journal instead of rewriting the whole file on every change")
+    private boolean useJournal;
+    @Setting(value = "journal-compact-size", comment = "Journal size in bytes at which its changes are folded back into the main file")
+    private int journalCompactSize = 1024 * 1024;
+    @Setting(value = "compress-unused-after", comment = "Seconds a subject that is not loaded must go unused before its data is kept compressed in memory, or 0 to never compress")
+    private int compressUnusedAfter = 0;
+    private File permissionsFile;
     private ConfigurationLoader permissionsFileLoader;
+    /**
+     * The change journal, or null when every change rewrites the main file. Only used with the single-file layout.
+     */
+    private FileJournal journal;
+    private ExecutorService compactor;
+    private DataStoreExecutor executor;
+    private HotSet hotSet;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    /**
+     * The per-subject file layout, or null when all data is kept in a single file
+     */
+    private ShardedLayout layout;
+    /**
+     * The file's node tree. After initialization this is only touched while holding {@link #saveLock}.
+     */
     private ConfigurationNode permissionsConfig;
+    /**
+     * The current data. Readers only ever dereference this once, writers replace it in {@link #publish}.
+     */
+    private volatile DataSnapshot snapshot = DataSnapshot.EMPTY;
+    private static final AtomicReferenceFieldUpdater<FileDataStore, DataSnapshot> SNAPSHOT_UPDATER
+            = AtomicReferenceFieldUpdater.newUpdater(FileDataStore.class, DataSnapshot.class, "snapshot");
+    /**
+     * One lock for each snapshot stripe. A writer holds the locks of every stripe it changes from reading the current
+     * data until its changes are published and journaled, so writers to different stripes never wait for each other.
+     */
+    private final Lock[] stripeLocks = new Lock[DataSnapshot.STRIPES];
+    /**
+     * Held shared by writers while journaling, and exclusively while rotating the journal
+     */
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
+    private final Object saveLock = new Object();
+    private final Set<Map.Entry<String, String>> dirtySubjects = Collections.newSetFromMap(new ConcurrentHashMap<Map.Entry<String, String>, Boolean>());
+    private final ConcurrentMap<Map.Entry<String, String>, Set<Caching>> listeners = new ConcurrentHashMap<>();
+    private final MemoryAccounting memory = new MemoryAccounting();
+    /**
+     * Which subjects inherit from each subject, so a change only invalidates the caches of subjects that can see it
+     */
+    private final InheritanceGraph inheritance = new InheritanceGraph();
+    /**
+     * The earliest expiry of each subject that has expiring entries, as of the data last saved. Saved with that data,
+     * so the scheduler can be filled on startup without looking through every subject. Guarded by {@link #saveLock}.
+     */
+    private final Map<Map.Entry<String, String>, Long> expiryIndex = new HashMap<>();
+    private File expiryIndexFile;
+    private ExpiryScheduler expiries;
+    private ScheduledExecutorService compressor;
 
     public FileDataStore(String identifier) {
         this.identifier = identifier;
+        for (int i = 0; i < stripeLocks.length; ++i) {
+            stripeLocks[i] = new ReentrantLock();
+        }
     }
 
     private static ConfigurationTransformation.Builder tBuilder() {
         return ConfigurationTransformation.builder();
     }
     public void initialize(PermissionsEx permissionsEx) throws PermissionsLoadingException {
+        this.executor = permissionsEx.getExecutor();
+        this.hotSet = permissionsEx.getHotSet();
         File permissionsFile = new File(permissionsEx.getBaseDirectory(), file);
+        if (sharded) {
+            final int extensionIdx = file.lastIndexOf('.');
+            layout = new ShardedLayout(new File(permissionsEx.getBaseDirectory(), extensionIdx == -1 ? file + ".d" : file.substring(0, extensionIdx)));
+            if (layout.exists()) {
+                try {
+                    snapshot = layout.load();
+                } catch (IOException e) {
+                    throw new PermissionsLoadingException("While loading permissions from " + layout.getDirectory(), e);
+                }
+                memory.reset(snapshot);
+                inheritance.reset(snapshot);
+                startExpiries(new File(layout.getDirectory(), "expiries.dat"));
+                startCompressor();
+                return;
+            }
+        }
+        File legacyPermissionsFile = null;
         if (file.endsWith(".yml")) {
-            File legacyPermissionsFile = permissionsFile;
+            legacyPermissionsFile = permissionsFile;
             ConfigurationLoader<ConfigurationNode> yamlLoader = YAMLConfigurationLoader.builder().setFile(permissionsFile).build();
             file = file.replace(".yml", ".conf");
             permissionsFile = new File(permissionsEx.getBaseDirectory(), file);
             permissionsFileLoader = HoconConfigurationLoader.builder().setFile(permissionsFile).build();
             try {
+                // The converted file is written, and the original backed up, by the first save
                 permissionsConfig = yamlLoader.load();
-                permissionsFileLoader.save(permissionsConfig);
-                legacyPermissionsFile.renameTo(new File(legacyPermissionsFile.getCanonicalPath() + ".bukkit-backup"));
             } catch (IOException e) {
-                throw new PermissionsLoadingException("While loading legacy YML permissions from " + permissionsFile, e);
+                throw new PermissionsLoadingException("While loading legacy YML permissions from " + legacyPermissionsFile, e);
             }
         } else {
             permissionsFileLoader = HoconConfigurationLoader.builder().setFile(permissionsFile).build();
-        }
-
-        try {
-            permissionsConfig = permissionsFileLoader.load();
-        } catch (IOException e) {
-            throw new PermissionsLoadingException("While loading permissions file from " + permissionsFile, e);
+            try {
+                permissionsConfig = permissionsFileLoader.load();
+            } catch (IOException e) {
+                throw new PermissionsLoadingException("While loading permissions file from " + permissionsFile, e);
+            }
         }
 
         final TransformAction movePrefixSuffixDefaultAction = new TransformAction() {
@@ -189,49 +308,711 @@ public class FileDataStore implements DataStore {
                         .build())
                 .build();
         int startVersion = permissionsConfig.getNode("schema-version").getInt(-1);
+        // Schema updates, including the conversion from the Bukkit layout, run on the initializing thread: they change
+        // the data being loaded, which must be complete before the store serves anything. Only writing the result is
+        // left to the background. Preloaded backends are initialized on the read threads, so only the active store's
+        // updates hold up startup.
         versionUpdater.apply(permissionsConfig);
         int endVersion = permissionsConfig.getNode("schema-version").getInt();
-        if (endVersion > startVersion) {
+        this.permissionsFile = permissionsFile;
+        snapshot = loadSnapshot(permissionsConfig);
+        final boolean replayedJournal = layout == null && useJournal && openJournal();
+        memory.reset(snapshot);
+        inheritance.reset(snapshot);
+        startExpiries(layout != null ? new File(layout.getDirectory(), "expiries.dat") : new File(permissionsFile.getPath() + ".expiries"));
+        startCompressor();
+        // Data is usable from here on, so any writing left to do happens in the background
+        if (layout != null) {
+            // First start with the sharded layout enabled: split the existing file up, leaving it in place as a backup
+            for (String type : snapshot.getTypes()) {
+                for (String subject : snapshot.getAll(type).keySet()) {
+                    dirtySubjects.add(Maps.immutableEntry(type, subject));
+                }
+            }
+            saveInBackground(false, null);
+        } else if (replayedJournal) {
+            // Replayed changes are folded back in straight away, which also saves any schema update
+            saveInBackground(true, legacyPermissionsFile);
+        } else if (endVersion > startVersion || legacyPermissionsFile != null) {
             // TODO Logging: permissionsConfigFile + " schema version updated from" + startVersion + " to " + endVersion;
-            save();
+            saveInBackground(false, legacyPermissionsFile);
         }
     }
 
+    /**
+     * Fill the expiry index and start removing expired entries. The saved index is used if it was written along with
+     * the data that was loaded, otherwise every subject is checked.
+     */
+    private void startExpiries(File indexFile) {
+        expiries = new ExpiryScheduler(this, "PEX expiry (" + identifier + ")", EXPIRY_TICK_MILLIS);
+        synchronized (saveLock) {
+            loadExpiryIndex(indexFile);
+            for (Map.Entry<Map.Entry<String, String>, Long> ent : expiryIndex.entrySet()) {
+                expiries.schedule(ent.getKey().getKey(), ent.getKey().getValue(), ent.getValue());
+            }
+        }
+        expiries.start();
+    }
+
+    private void loadExpiryIndex(File indexFile) {
+        expiryIndexFile = indexFile;
+        boolean loaded = false;
+        if (indexFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() == EXPIRY_INDEX_VERSION && in.readLong() == getExpiryIndexStamp()) {
+                    for (int i = in.readInt(); i > 0; --i) {
+                        expiryIndex.put(Maps.immutableEntry(in.readUTF(), in.readUTF()), in.readLong());
+                    }
+                    loaded = true;
+                }
+            } catch (IOException e) {
+                expiryIndex.clear();
+            }
+        }
+        if (!loaded) {
+            for (String type : snapshot.getTypes()) {
+                for (Map.Entry<String, ImmutableOptionSubjectData> subject : snapshot.getAll(type).entrySet()) {
+                    indexExpiry(Maps.immutableEntry(type, subject.getKey()), subject.getValue());
+                }
+            }
+        } else {
+            // Changes replayed from the journal are newer than the saved index
+            for (Map.Entry<String, String> key : dirtySubjects) {
+                indexExpiry(key, snapshot.get(key.getKey(), key.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Periodically compress the data of subjects that are not loaded and have not been used for a whole period.
+     * Reloading a subject then only has to decompress its data, instead of reading it from disk again.
+     */
+    private void startCompressor() {
+        if (compressUnusedAfter <= 0) {
+            return;
+        }
+        compressor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "PEX data compressor (" + identifier + ")");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compressor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compressUnused();
+            }
+        }, compressUnusedAfter, compressUnusedAfter, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compress the data of every subject without listeners that has not been used since the last call
+     *
+     * @return The number of subjects whose data is compressed
+     */
+    int compressUnused() {
+        final DataSnapshot snapshot = this.snapshot;
+        int compressed = 0;
+        for (String type : snapshot.getTypes()) {
+            for (Map.Entry<String, ImmutableOptionSubjectData> subject : snapshot.getAll(type).entrySet()) {
+                final Set<Caching> subjectListeners = listeners.get(Maps.immutableEntry(type, subject.getKey()));
+                if ((subjectListeners == null || subjectListeners.isEmpty())
+                        && ((FileOptionSubjectData) subject.getValue()).compressIfUnused()) {
+                    ++compressed;
+                }
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Identify the version of the data the expiry index was saved with. If the files were changed after the index was
+     * saved, by a crash between writing the two or by hand, the stamp no longer matches and every subject is checked.
+     */
+    private long getExpiryIndexStamp() {
+        return layout != null ? layout.getStamp() : permissionsFile.lastModified() ^ permissionsFile.length() << 32;
+    }
+
+    /**
+     * Schedule removal of a subject's expiring entries. Called while holding the subject's stripe lock.
+     */
+    private void scheduleExpiry(Map.Entry<String, String> key, ImmutableOptionSubjectData data) {
+        final long expiry = data == null ? ImmutableOptionSubjectData.NEVER : data.getNextExpiry();
+        if (expiry != ImmutableOptionSubjectData.NEVER && expiries != null) {
+            expiries.schedule(key.getKey(), key.getValue(), expiry);
+        }
+    }
+
+    /**
+     * Record a subject's earliest expiry in the index. Must be called while holding {@link #saveLock}, with the data
+     * that is being saved for the subject.
+     */
+    private void indexExpiry(Map.Entry<String, String> key, ImmutableOptionSubjectData data) {
+        final long expiry = data == null ? ImmutableOptionSubjectData.NEVER : data.getNextExpiry();
+        if (expiry == ImmutableOptionSubjectData.NEVER) {
+            expiryIndex.remove(key);
+        } else {
+            expiryIndex.put(key, expiry);
+        }
+    }
+
+    /**
+     * Write the expiry index. Must be called while holding {@link #saveLock}, after the data has been saved.
+     */
+    private void saveExpiryIndex() throws IOException {
+        expiryIndexFile.getParentFile().mkdirs();
+        final File tempFile = new File(expiryIndexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(EXPIRY_INDEX_VERSION);
+            out.writeLong(getExpiryIndexStamp());
+            out.writeInt(expiryIndex.size());
+            for (Map.Entry<Map.Entry<String, String>, Long> ent : expiryIndex.entrySet()) {
+                out.writeUTF(ent.getKey().getKey());
+                out.writeUTF(ent.getKey().getValue());
+                out.writeLong(ent.getValue());
+            }
+        }
+        replaceFile(tempFile, expiryIndexFile);
+    }
+
+    private void saveInBackground(final boolean compactJournal, final File legacyPermissionsFile) {
+        executor.submitWrite(null, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (compactJournal) {
+                    compact();
+                } else {
+                    save();
+                }
+                if (legacyPermissionsFile != null) {
+                    legacyPermissionsFile.renameTo(new File(legacyPermissionsFile.getCanonicalPath() + ".bukkit-backup"));
+                }
+                return null;
+            }
+        }, null);
+    }
+
+    private boolean openJournal() throws PermissionsLoadingException {
+        journal = new FileJournal(new File(permissionsFile.getPath() + ".journal"));
+        final DataSnapshot.Builder builder = snapshot.toBuilder();
+        final Set<Map.Entry<String, String>> replayed;
+        try {
+            replayed = journal.open(builder);
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("While replaying permissions journal for " + permissionsFile, e);
+        }
+        snapshot = builder.build();
+        dirtySubjects.addAll(replayed);
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "PEX journal compactor (" + identifier + ")");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return !replayed.isEmpty();
+    }
+
     public void close() {
+        if (expiries != null) {
+            expiries.close();
+        }
+        if (compressor != null) {
+            compressor.shutdownNow();
+        }
+        if (journal != null) {
+            compactor.shutdown();
+            try {
+                compact();
+            } catch (PermissionsLoadingException e) {
+                // TODO Logging: "Unable to compact permissions journal on close, it will be replayed on next start"
+            } finally {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    // TODO Logging: "Unable to close permissions journal"
+                }
+            }
+        } else if (!dirtySubjects.isEmpty()) {
+            // Changes published while the executor was shutting down could not queue their save
+            try {
+                save();
+            } catch (PermissionsLoadingException e) {
+                // TODO Logging: "Unable to save permissions changes on close"
+            }
+        }
+    }
 
+    /**
+     * Let go of the journal without compacting it, as a crash would. The store must not be written to afterwards.
+     *
+     * @throws IOException if the journal could not be closed
+     */
+    void abandonJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
     }
 
-    private void save() throws PermissionsLoadingException {
+    /**
+     * Fold everything in the journal into the main file, then drop the journaled records.
+     */
+    private void compact() throws PermissionsLoadingException {
+        synchronized (saveLock) {
+            try {
+                journalLock.writeLock().lock();
+                try {
+                    // Every record in the rotated journal is now also covered by dirtySubjects
+                    journal.rotate();
+                } finally {
+                    journalLock.writeLock().unlock();
+                }
+                save();
+                journal.discardRotated();
+            } catch (IOException e) {
+                throw new PermissionsLoadingException("While compacting permissions journal for " + permissionsFile, e);
+            }
+        }
+    }
+
+    /**
+     * Publish changes prepared while holding the locks of every stripe they touch. Other stripes may have been
+     * changed since the changes were prepared, so they are applied onto whichever snapshot is current.
+     *
+     * @param changes The changes to publish
+     * @return The published snapshot
+     */
+    private DataSnapshot publish(DataSnapshot.Builder changes) {
+        DataSnapshot current, next;
+        do {
+            current = snapshot;
+            next = changes.buildOnto(current);
+        } while (!SNAPSHOT_UPDATER.compareAndSet(this, current, next));
+        return next;
+    }
+
+    /**
+     * Record changes in the journal, if one is in use, then publish them and mark the changed subjects dirty. Must be
+     * called while holding the stripe locks of the changed subjects. The journal is written first, so a change that
+     * could not be journaled is never seen by readers.
+     *
+     * @param changes The changes to publish
+     * @param states The new data of each changed subject
+     * @return The journal position to wait for in {@link #persist(long)}
+     * @throws IOException if the changes could not be journaled, in which case nothing was published
+     */
+    private long commit(DataSnapshot.Builder changes, Map<Map.Entry<String, String>, ImmutableOptionSubjectData> states) throws IOException {
+        if (journal == null) {
+            publish(changes);
+            dirtySubjects.addAll(states.keySet());
+            return -1;
+        }
+        journalLock.readLock().lock();
         try {
-            permissionsFileLoader.save(permissionsConfig);
+            final long position = journal.append(states);
+            publish(changes);
+            // Dirty before a rotation can move the record aside, so compaction saves it
+            dirtySubjects.addAll(states.keySet());
+            return position;
+        } finally {
+            journalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lock the stripes of a set of subjects, in stripe order so that writers locking overlapping stripes cannot
+     * deadlock
+     *
+     * @param subjects The subjects to lock
+     * @return The locks that were taken, to pass to {@link #unlock(List)}
+     */
+    private List<Lock> lock(Collection<Map.Entry<String, String>> subjects) {
+        final SortedSet<Integer> stripes = new TreeSet<>();
+        for (Map.Entry<String, String> subject : subjects) {
+            stripes.add(DataSnapshot.getStripe(subject.getKey(), subject.getValue()));
+        }
+        final List<Lock> locked = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            stripeLocks[stripe].lock();
+            locked.add(stripeLocks[stripe]);
+        }
+        return locked;
+    }
+
+    /**
+     * Lock every stripe, in the same order as {@link #lock(Collection)}
+     *
+     * @return The locks that were taken, to pass to {@link #unlock(List)}
+     */
+    private List<Lock> lockAll() {
+        final List<Lock> locked = new ArrayList<>(stripeLocks.length);
+        for (Lock lock : stripeLocks) {
+            lock.lock();
+            locked.add(lock);
+        }
+        return locked;
+    }
+
+    private static void unlock(List<Lock> locked) {
+        for (int i = locked.size() - 1; i >= 0; --i) {
+            locked.get(i).unlock();
+        }
+    }
+
+    /**
+     * Make published changes durable, either by syncing the journal or by saving the main file.
+     */
+    private void persist(long journalPosition) throws PermissionsLoadingException {
+        if (journal == null) {
+            synchronized (saveLock) {
+                // Each save writes every subject marked dirty before it, so once an earlier save has taken this
+                // change's subjects there is nothing left to write. Bulk writers get one save per batch of changes.
+                if (!dirtySubjects.isEmpty()) {
+                    save();
+                }
+            }
+            return;
+        }
+        try {
+            journal.sync(journalPosition);
         } catch (IOException e) {
-            throw new PermissionsLoadingException("While saving permissions file to " + file, e);
+            throw new PermissionsLoadingException("While writing permissions journal for " + permissionsFile, e);
+        }
+        if (journal.size() >= journalCompactSize && compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactionScheduled.set(false);
+                    try {
+                        compact();
+                    } catch (PermissionsLoadingException e) {
+                        // TODO Logging: "Unable to compact permissions journal, will retry after the next change"
+                    }
+                }
+            });
+        }
+    }
+
+    private Callable<Void> persistTask(final long journalPosition) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws PermissionsLoadingException {
+                persist(journalPosition);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Replace a file with another, making sure the new contents are on disk first. A crash leaves either the old
+     * or the new file in place, never a partially written one.
+     *
+     * @param source The file holding the new contents
+     * @param target The file to replace
+     * @throws IOException if the source could not be synced or moved
+     */
+    static void replaceFile(File source, File target) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.getChannel().force(true);
+        }
+        if (!source.renameTo(target)) {
+            // Some platforms will not rename over an existing file
+            if (target.exists() && !target.delete() || !source.renameTo(target)) {
+                throw new IOException("Unable to move " + source + " to " + target);
+            }
+        }
+    }
+
+    private static DataSnapshot loadSnapshot(ConfigurationNode root) {
+        final DataSnapshot.Builder builder = DataSnapshot.EMPTY.toBuilder();
+        for (Map.Entry<Object, ? extends ConfigurationNode> type : root.getChildrenMap().entrySet()) {
+            for (Map.Entry<Object, ? extends ConfigurationNode> subject : type.getValue().getChildrenMap().entrySet()) {
+                if (subject.getValue().hasListChildren()) {
+                    builder.put(type.getKey().toString(), subject.getKey().toString(), FileOptionSubjectData.fromNode(subject.getValue()));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private void save() throws PermissionsLoadingException {
+        synchronized (saveLock) {
+            // Subjects are marked dirty after being published, so a snapshot taken after this sees every change to them
+            final List<Map.Entry<String, String>> changed = new ArrayList<>();
+            for (Iterator<Map.Entry<String, String>> it = dirtySubjects.iterator(); it.hasNext();) {
+                changed.add(it.next());
+                it.remove();
+            }
+            // The data and the expiry index are both written from this snapshot, so the index matches what is saved
+            final DataSnapshot saved = this.snapshot;
+            if (layout != null) {
+                saveShards(saved, changed);
+                try {
+                    saveExpiryIndex();
+                } catch (IOException e) {
+                    throw new PermissionsLoadingException("While saving permission expiries to " + expiryIndexFile, e);
+                }
+                return;
+            }
+            for (Map.Entry<String, String> key : changed) {
+                final FileOptionSubjectData data = (FileOptionSubjectData) saved.get(key.getKey(), key.getValue());
+                final ConfigurationNode subjectNode = permissionsConfig.getNode(key.getKey(), key.getValue());
+                if (data == null) {
+                    subjectNode.setValue(null);
+                } else {
+                    data.serialize(subjectNode);
+                }
+                indexExpiry(key, data);
+            }
+            try {
+                final File tempFile = new File(permissionsFile.getPath() + ".tmp");
+                HoconConfigurationLoader.builder().setFile(tempFile).build().save(permissionsConfig);
+                replaceFile(tempFile, permissionsFile);
+                saveExpiryIndex();
+            } catch (IOException e) {
+                throw new PermissionsLoadingException("While saving permissions file to " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Write only the files of subjects changed since the last save. Must be called while holding {@link #saveLock}.
+     */
+    private void saveShards(DataSnapshot saved, List<Map.Entry<String, String>> changed) throws PermissionsLoadingException {
+        for (int i = 0; i < changed.size(); ++i) {
+            final Map.Entry<String, String> key = changed.get(i);
+            final FileOptionSubjectData data = (FileOptionSubjectData) saved.get(key.getKey(), key.getValue());
+            try {
+                layout.write(key.getKey(), key.getValue(), data);
+            } catch (IOException e) {
+                dirtySubjects.addAll(changed.subList(i, changed.size()));
+                throw new PermissionsLoadingException("While saving permissions for " + key.getKey() + " " + key.getValue() + " to " + layout.getDirectory(), e);
+            }
+            indexExpiry(key, data);
+        }
+    }
+
+    @Override
+    public DataSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Write the current data to a compressed, timestamped backup file. The data is captured when this is called,
+     * and written on the read pool while changes carry on.
+     *
+     * @param directory The directory to write the backup to
+     * @return A future completed with the backup file once it has been written
+     */
+    public ListenableFuture<File> backup(final File directory) {
+        final DataSnapshot snapshot = this.snapshot;
+        return executor.submitRead(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return SnapshotBackup.write(snapshot, directory, identifier);
+            }
+        });
+    }
+
+    /**
+     * Replace all data in this store with the contents of a backup written by {@link #backup(File)}.
+     * The restore is applied as a single transaction, so it is journaled and saved like any other change.
+     * Every stripe is locked while the transaction is built and applied, so subjects created while the backup was
+     * being read are deleted too.
+     *
+     * @param backup The backup file
+     * @return A future that can be used to listen for completion of writing the restored data
+     * @throws IOException if the backup could not be read
+     */
+    public ListenableFuture<Void> restore(File backup) throws IOException {
+        final DataSnapshot restored = SnapshotBackup.read(backup);
+        final List<Lock> locked = lockAll();
+        try {
+            // No writer can publish until this is applied, so the current data is exactly what is replaced
+            final DataSnapshot current = this.snapshot;
+            final DataTransaction.Builder transaction = DataTransaction.builder();
+            for (String type : current.getTypes()) {
+                for (String identifier : current.getAll(type).keySet()) {
+                    if (restored.get(type, identifier) == null) {
+                        transaction.set(type, identifier, null);
+                    }
+                }
+            }
+            for (String type : restored.getTypes()) {
+                for (Map.Entry<String, ImmutableOptionSubjectData> subject : restored.getAll(type).entrySet()) {
+                    transaction.set(type, subject.getKey(), subject.getValue());
+                }
+            }
+            // Stripe locks are reentrant, so the transaction takes the ones it needs again
+            return applyTransaction(transaction.build());
+        } finally {
+            unlock(locked);
         }
     }
 
     @Override
     public ImmutableOptionSubjectData getData(String type, String identifier, Caching listener) {
-        return null;
+        if (listener != null) {
+            final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+            Set<Caching> subjectListeners = listeners.get(key);
+            if (subjectListeners == null) {
+                final Set<Caching> newListeners = Collections.newSetFromMap(new MapMaker().weakKeys().<Caching, Boolean>makeMap());
+                subjectListeners = listeners.putIfAbsent(key, newListeners);
+                if (subjectListeners == null) {
+                    subjectListeners = newListeners;
+                }
+            }
+            subjectListeners.add(listener);
+            // A listener means the subject is loaded, so is worth loading ahead of time on the next start
+            hotSet.touch(type, identifier, null);
+        }
+        final ImmutableOptionSubjectData ret = snapshot.get(type, identifier);
+        return ret == null ? FileOptionSubjectData.EMPTY : ret;
     }
 
     @Override
     public ListenableFuture<ImmutableOptionSubjectData> setData(String type, String identifier, ImmutableOptionSubjectData data) {
-        return null;
+        if (data != null && !(data instanceof FileOptionSubjectData)) {
+            return Futures.immediateFailedFuture(new IllegalArgumentException("Data of type " + data.getClass() + " cannot be stored in a file data store"));
+        }
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        final long journalPosition;
+        final Lock stripeLock = stripeLocks[DataSnapshot.getStripe(type, identifier)];
+        stripeLock.lock();
+        try {
+            try {
+                journalPosition = commit(snapshot.toBuilder().put(type, identifier, data), Collections.singletonMap(key, data));
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            memory.update(type, identifier, data);
+            inheritance.update(type, identifier, data);
+            scheduleExpiry(key, data);
+        } finally {
+            stripeLock.unlock();
+        }
+        notifyListeners(Collections.singleton(key));
+        // Every save writes the latest published state, so a queued save for this subject can absorb this one
+        return executor.submitWrite(key, persistTask(journalPosition), data);
+    }
+
+    @Override
+    public ListenableFuture<Void> applyTransaction(DataTransaction transaction) {
+        final Set<Map.Entry<String, String>> changed = new LinkedHashSet<>();
+        final Set<Map.Entry<String, String>> subjects = new LinkedHashSet<>();
+        for (DataTransaction.Operation op : transaction.getOperations()) {
+            subjects.add(Maps.immutableEntry(op.getType(), op.getIdentifier()));
+        }
+        final long journalPosition;
+        final List<Lock> locked = lock(subjects);
+        try {
+            final DataSnapshot.Builder builder = snapshot.toBuilder();
+            for (DataTransaction.Operation op : transaction.getOperations()) {
+                ImmutableOptionSubjectData existing = builder.get(op.getType(), op.getIdentifier());
+                if (existing == null) {
+                    existing = FileOptionSubjectData.EMPTY;
+                }
+                final ImmutableOptionSubjectData result;
+                try {
+                    result = op.getTransform().apply(existing);
+                } catch (RuntimeException e) {
+                    return Futures.immediateFailedFuture(e);
+                }
+                if (result != null && !(result instanceof FileOptionSubjectData)) {
+                    return Futures.immediateFailedFuture(new IllegalArgumentException("Data of type " + result.getClass() + " cannot be stored in a file data store"));
+                }
+                if (result != existing) {
+                    builder.put(op.getType(), op.getIdentifier(), result);
+                    changed.add(Maps.immutableEntry(op.getType(), op.getIdentifier()));
+                }
+            }
+            if (changed.isEmpty()) {
+                return Futures.immediateFuture(null);
+            }
+            final Map<Map.Entry<String, String>, ImmutableOptionSubjectData> states = new LinkedHashMap<>();
+            for (Map.Entry<String, String> key : changed) {
+                states.put(key, builder.get(key.getKey(), key.getValue()));
+            }
+            try {
+                // One record for the whole transaction, so replay applies all of it or none of it
+                journalPosition = commit(builder, states);
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            for (Map.Entry<Map.Entry<String, String>, ImmutableOptionSubjectData> state : states.entrySet()) {
+                memory.update(state.getKey().getKey(), state.getKey().getValue(), state.getValue());
+                inheritance.update(state.getKey().getKey(), state.getKey().getValue(), state.getValue());
+                scheduleExpiry(state.getKey(), state.getValue());
+            }
+        } finally {
+            unlock(locked);
+        }
+
+        notifyListeners(changed);
+        return executor.submitWrite(null, persistTask(journalPosition), (Void) null);
+    }
+
+    /**
+     * Tell the listeners of changed subjects, and of every subject inheriting from them, that their data changed.
+     * Each affected subject is notified once, however many of its ancestors changed.
+     *
+     * @param changed The subjects that were changed
+     */
+    private void notifyListeners(Collection<Map.Entry<String, String>> changed) {
+        final Set<Map.Entry<String, String>> affected = new LinkedHashSet<>(changed);
+        for (Map.Entry<String, String> key : changed) {
+            inheritance.addDescendants(key, null, affected);
+        }
+        for (Map.Entry<String, String> key : affected) {
+            final Set<Caching> subjectListeners = listeners.get(key);
+            if (subjectListeners != null) {
+                for (Caching listener : subjectListeners) {
+                    listener.clearCache();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the inheritance relationships between subjects in this store
+     *
+     * @return The inheritance graph
+     */
+    public InheritanceGraph getInheritance() {
+        return inheritance;
+    }
+
+    @Override
+    public MemoryAccounting getMemoryAccounting() {
+        return memory;
     }
 
     @Override
     public boolean isRegistered(String type, String identifier) {
-        return false;
+        return snapshot.get(type, identifier) != null;
     }
 
     @Override
     public Iterable<ImmutableOptionSubjectData> getAll(String type) {
-        return null;
+        return snapshot.getAll(type).values();
+    }
+
+    @Override
+    public Set<String> getRegisteredTypes() {
+        return snapshot.getTypes();
+    }
+
+    @Override
+    public Iterable<String> getAllIdentifiers(String type) {
+        return snapshot.getAll(type).keySet();
     }
 
     @Override
     public String getTypeName() {
-        return null;
+        return "file";
     }
 
     @Override
@@ -0,0 +1,300 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import com.google.common.collect.Maps;
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of subject changes, written ahead of the main permissions file.
+ *
+ * <p>Each record holds the complete new state of every subject changed by one write, so replaying a record twice
+ * is harmless. Records are framed as {@code [length][crc32][payload]}; replay stops at the first record that is
+ * incomplete or fails its checksum, which is where a crash during an append leaves a torn tail.
+ *
+ * <p>Appends only buffer to the OS. {@link #sync(long)} forces them to disk, and a single force covers every record
+ * appended before it, so concurrent writers share fsyncs.
+ *
+ * <p>Only one journal may be open on a file at a time, since rotation moves the file out from under any other
+ * writer. An open journal holds a lock on a {@code .lock} file beside it, which outlives the journal's own rotations.
+ */
+class FileJournal {
+    private final File file, rotatedFile, lockFile;
+    private final Object appendLock = new Object(), syncLock = new Object();
+    private RandomAccessFile output, lockHandle;
+    private FileLock lock;
+    private long written;
+    private volatile long synced;
+
+    FileJournal(File file) {
+        this.file = file;
+        this.rotatedFile = new File(file.getPath() + ".old");
+        this.lockFile = new File(file.getPath() + ".lock");
+    }
+
+    /**
+     * Replay any rotated and current journal contents over a snapshot, then open the journal for appending.
+     *
+     * @param builder The builder to apply changes to
+     * @return The subjects changed by replay
+     * @throws IOException if a journal could not be read or opened, or is already open elsewhere
+     */
+    Set<Map.Entry<String, String>> open(DataSnapshot.Builder builder) throws IOException {
+        acquireLock();
+        final Set<Map.Entry<String, String>> changed = new HashSet<>();
+        try {
+            if (rotatedFile.exists()) {
+                replay(rotatedFile, builder, changed);
+            }
+            final long valid = file.exists() ? replay(file, builder, changed) : 0;
+            synchronized (appendLock) {
+                output = new RandomAccessFile(file, "rw");
+                output.setLength(valid); // Drop any torn tail so new records follow the last good one
+                output.seek(valid);
+                written = valid;
+                synced = valid;
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        return changed;
+    }
+
+    private void acquireLock() throws IOException {
+        lockHandle = new RandomAccessFile(lockFile, "rw");
+        try {
+            lock = lockHandle.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockHandle.close();
+            lockHandle = null;
+            throw new IOException("Permissions journal " + file + " is already open");
+        }
+    }
+
+    private static long replay(File file, DataSnapshot.Builder builder, Set<Map.Entry<String, String>> changed) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                final long checksum;
+                final byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt() & 0xFFFFFFFFL;
+                    if (length < 0 || length > file.length() - position - 8) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                for (int i = record.readInt(); i > 0; --i) {
+                    final String type = record.readUTF(), identifier = record.readUTF();
+                    builder.put(type, identifier, record.readBoolean() ? FileOptionSubjectData.read(record) : null);
+                    changed.add(Maps.immutableEntry(type, identifier));
+                }
+                position += 8 + length;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Append one record holding the new state of each given subject. Writers to a subject must call this in the
+     * same order they publish changes to it, so that replay ends in the published state.
+     *
+     * @param states The new data of each subject, or null for subjects being removed
+     * @return The journal position to pass to {@link #sync(long)}
+     * @throws IOException if the record could not be written
+     */
+    long append(Map<Map.Entry<String, String>, ImmutableOptionSubjectData> states) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(states.size());
+        for (Map.Entry<Map.Entry<String, String>, ImmutableOptionSubjectData> subject : states.entrySet()) {
+            out.writeUTF(subject.getKey().getKey());
+            out.writeUTF(subject.getKey().getValue());
+            final FileOptionSubjectData data = (FileOptionSubjectData) subject.getValue();
+            out.writeBoolean(data != null);
+            if (data != null) {
+                data.write(out);
+            }
+        }
+        out.flush();
+        final byte[] record = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        writeInt(record, 0, record.length - 8);
+        writeInt(record, 4, (int) crc.getValue());
+
+        synchronized (appendLock) {
+            getOutput().write(record);
+            written += record.length;
+            return written;
+        }
+    }
+
+    /**
+     * Get the journal being appended to. Must be called while holding {@link #appendLock}.
+     */
+    private RandomAccessFile getOutput() throws IOException {
+        if (output == null) {
+            throw new IOException("Permissions journal " + file + " is closed");
+        }
+        return output;
+    }
+
+    private static void writeInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Make sure every record up to a position is on disk. Returns immediately if another writer's sync already
+     * covered it.
+     *
+     * @param position The position returned by {@link #append(Map)}
+     * @throws IOException if the journal could not be forced to disk
+     */
+    void sync(long position) throws IOException {
+        if (synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            final long target;
+            final RandomAccessFile output;
+            synchronized (appendLock) {
+                target = written;
+                output = getOutput();
+            }
+            output.getChannel().force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Get the number of bytes written to the current journal
+     *
+     * @return The journal size
+     */
+    long size() {
+        synchronized (appendLock) {
+            return written;
+        }
+    }
+
+    /**
+     * Move the current journal aside and start a new one. The caller must block appends while rotating, then
+     * call {@link #discardRotated()} once everything in the rotated journal is safely in the main file.
+     *
+     * @throws IOException if the journal could not be rotated
+     */
+    void rotate() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                getOutput().getChannel().force(false);
+                output.close();
+                if (rotatedFile.exists()) {
+                    // A previous compaction failed, so the rotated records are still needed. Keep them in front.
+                    appendTo(file, rotatedFile);
+                } else if (!file.renameTo(rotatedFile)) {
+                    throw new IOException("Unable to move " + file + " to " + rotatedFile);
+                }
+                output = new RandomAccessFile(file, "rw");
+                output.setLength(0);
+                written = 0;
+                synced = 0;
+            }
+        }
+    }
+
+    private static void appendTo(File source, File target) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.seek(out.length());
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.getChannel().force(false);
+        }
+        if (!source.delete()) {
+            throw new IOException("Unable to delete " + source);
+        }
+    }
+
+    void discardRotated() throws IOException {
+        if (rotatedFile.exists() && !rotatedFile.delete()) {
+            throw new IOException("Unable to delete " + rotatedFile);
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (appendLock) {
+            try {
+                if (output != null) {
+                    output.close();
+                    output = null;
+                }
+            } finally {
+                if (lockHandle != null) {
+                    lockHandle.close(); // Releases the lock
+                    lockHandle = null;
+                    lock = null;
+                }
+            }
+        }
+    }
+}
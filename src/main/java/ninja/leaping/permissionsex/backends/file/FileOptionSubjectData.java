@@ -17,43 +17,597 @@
 package ninja.leaping.permissionsex.backends.file;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.MultimapBuilder;
-import ninja.leaping.configurate.objectmapping.Setting;
+import com.google.common.io.ByteStreams;
+import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
-import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.context.Context;
 import org.spongepowered.api.util.Tristate;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class FileOptionSubjectData implements ImmutableOptionSubjectData {
+    static final FileOptionSubjectData EMPTY = new FileOptionSubjectData(ImmutableMap.<Set<Context>, DataEntry>of());
+    private static final String DEFAULT_PARENT_TYPE = "group";
+
     private static class DataEntry {
-        @Setting("permissions") private Map<String, Tristate> nodes;
-        @Setting("options") private Map<String, String> options;
-        private Multimap<String, String> parents;
-        @Setting("permissions-default") private Tristate defaultValue;
+        private static final DataEntry EMPTY = new DataEntry(ImmutableMap.<String, Tristate>of(), ImmutableMap.<String, String>of(), ImmutableList.<Map.Entry<String, String>>of(), Tristate.UNDEFINED);
+        private final Map<String, Tristate> nodes;
+        private final Map<String, String> options;
+        private final List<Map.Entry<String, String>> parents;
+        private final Tristate defaultValue;
+        /**
+         * Expiry times of the nodes and parents that expire. Only entries that are present have an expiry.
+         */
+        private final Map<String, Long> nodeExpiries;
+        private final Map<Map.Entry<String, String>, Long> parentExpiries;
+
+        public DataEntry(Map<String, Tristate> nodes, Map<String, String> options, List<Map.Entry<String, String>> parents, Tristate defaultValue) {
+            this(nodes, options, parents, defaultValue, ImmutableMap.<String, Long>of(), ImmutableMap.<Map.Entry<String, String>, Long>of());
+        }
 
-        public DataEntry(Map<String, Tristate> nodes, Map<String, String> options, Multimap<String, String> parents, Tristate defaultValue) {
+        public DataEntry(Map<String, Tristate> nodes, Map<String, String> options, List<Map.Entry<String, String>> parents, Tristate defaultValue,
+                         Map<String, Long> nodeExpiries, Map<Map.Entry<String, String>, Long> parentExpiries) {
             this.nodes = nodes;
             this.options = options;
             this.parents = parents;
             this.defaultValue = defaultValue;
+            this.nodeExpiries = nodeExpiries;
+            this.parentExpiries = parentExpiries;
+        }
+
+        public DataEntry withNodes(Map<String, Tristate> nodes) {
+            return withNodes(nodes, nodeExpiries);
+        }
+
+        public DataEntry withNodes(Map<String, Tristate> nodes, Map<String, Long> nodeExpiries) {
+            return new DataEntry(ImmutableMap.copyOf(nodes), options, parents, defaultValue, retain(nodeExpiries, nodes.keySet()), parentExpiries);
+        }
+
+        public DataEntry withOptions(Map<String, String> options) {
+            return new DataEntry(nodes, ImmutableMap.copyOf(options), parents, defaultValue, nodeExpiries, parentExpiries);
+        }
+
+        public DataEntry withParents(List<Map.Entry<String, String>> parents) {
+            return withParents(parents, parentExpiries);
+        }
+
+        public DataEntry withParents(List<Map.Entry<String, String>> parents, Map<Map.Entry<String, String>, Long> parentExpiries) {
+            return new DataEntry(nodes, options, ImmutableList.copyOf(parents), defaultValue, nodeExpiries, retain(parentExpiries, parents));
+        }
+
+        private static <K> Map<K, Long> retain(Map<K, Long> expiries, Collection<K> present) {
+            if (expiries.isEmpty()) {
+                return ImmutableMap.of();
+            }
+            final ImmutableMap.Builder<K, Long> ret = ImmutableMap.builder();
+            for (Map.Entry<K, Long> ent : expiries.entrySet()) {
+                if (present.contains(ent.getKey())) {
+                    ret.put(ent);
+                }
+            }
+            return ret.build();
+        }
+
+        public long getNextExpiry() {
+            long ret = NEVER;
+            for (long expiry : nodeExpiries.values()) {
+                ret = Math.min(ret, expiry);
+            }
+            for (long expiry : parentExpiries.values()) {
+                ret = Math.min(ret, expiry);
+            }
+            return ret;
+        }
+
+        /**
+         * Remove expired nodes and parents
+         *
+         * @return The entry without expired entries, or this entry if nothing has expired
+         */
+        public DataEntry removeExpired(long now) {
+            if (getNextExpiry() > now) {
+                return this;
+            }
+            final Map<String, Tristate> nodes = new HashMap<>(this.nodes);
+            for (Map.Entry<String, Long> ent : nodeExpiries.entrySet()) {
+                if (ent.getValue() <= now) {
+                    nodes.remove(ent.getKey());
+                }
+            }
+            final List<Map.Entry<String, String>> parents = new ArrayList<>(this.parents);
+            for (Map.Entry<Map.Entry<String, String>, Long> ent : parentExpiries.entrySet()) {
+                if (ent.getValue() <= now) {
+                    parents.remove(ent.getKey());
+                }
+            }
+            return withNodes(nodes).withParents(parents);
+        }
+
+        public boolean isEmpty() {
+            return nodes.isEmpty() && options.isEmpty() && parents.isEmpty() && defaultValue == Tristate.UNDEFINED;
+        }
+
+        static DataEntry fromNode(ConfigurationNode node) {
+            ImmutableMap.Builder<String, Tristate> nodes = ImmutableMap.builder();
+            for (Map.Entry<Object, ? extends ConfigurationNode> ent : node.getNode("permissions").getChildrenMap().entrySet()) {
+                nodes.put(ent.getKey().toString(), Tristate.fromBoolean(ent.getValue().getBoolean()));
+            }
+            ImmutableMap.Builder<String, String> options = ImmutableMap.builder();
+            for (Map.Entry<Object, ? extends ConfigurationNode> ent : node.getNode("options").getChildrenMap().entrySet()) {
+                options.put(ent.getKey().toString(), ent.getValue().getString());
+            }
+            ImmutableList.Builder<Map.Entry<String, String>> parents = ImmutableList.builder();
+            for (ConfigurationNode parent : node.getNode("parents").getChildrenList()) {
+                parents.add(parseParent(parent.getString()));
+            }
+            ImmutableMap.Builder<String, Long> nodeExpiries = ImmutableMap.builder();
+            for (Map.Entry<Object, ? extends ConfigurationNode> ent : node.getNode("permission-expiry").getChildrenMap().entrySet()) {
+                nodeExpiries.put(ent.getKey().toString(), ent.getValue().getLong());
+            }
+            ImmutableMap.Builder<Map.Entry<String, String>, Long> parentExpiries = ImmutableMap.builder();
+            for (Map.Entry<Object, ? extends ConfigurationNode> ent : node.getNode("parent-expiry").getChildrenMap().entrySet()) {
+                parentExpiries.put(parseParent(ent.getKey().toString()), ent.getValue().getLong());
+            }
+            final ConfigurationNode defaultNode = node.getNode("permissions-default");
+            return new DataEntry(nodes.build(), options.build(), parents.build(),
+                    defaultNode.isVirtual() ? Tristate.UNDEFINED : Tristate.fromBoolean(defaultNode.getBoolean()),
+                    nodeExpiries.build(), parentExpiries.build());
+        }
+
+        void serialize(ConfigurationNode node) {
+            if (!nodes.isEmpty()) {
+                final ConfigurationNode permissionsNode = node.getNode("permissions");
+                for (Map.Entry<String, Tristate> ent : nodes.entrySet()) {
+                    permissionsNode.getNode(ent.getKey()).setValue(ent.getValue().asBoolean());
+                }
+            }
+            if (!options.isEmpty()) {
+                node.getNode("options").setValue(options);
+            }
+            if (!parents.isEmpty()) {
+                final ConfigurationNode parentsNode = node.getNode("parents");
+                for (Map.Entry<String, String> parent : parents) {
+                    parentsNode.getAppendedNode().setValue(formatParent(parent));
+                }
+            }
+            if (defaultValue != Tristate.UNDEFINED) {
+                node.getNode("permissions-default").setValue(defaultValue.asBoolean());
+            }
+            if (!nodeExpiries.isEmpty()) {
+                final ConfigurationNode expiryNode = node.getNode("permission-expiry");
+                for (Map.Entry<String, Long> ent : nodeExpiries.entrySet()) {
+                    expiryNode.getNode(ent.getKey()).setValue(ent.getValue());
+                }
+            }
+            if (!parentExpiries.isEmpty()) {
+                final ConfigurationNode expiryNode = node.getNode("parent-expiry");
+                for (Map.Entry<Map.Entry<String, String>, Long> ent : parentExpiries.entrySet()) {
+                    expiryNode.getNode(formatParent(ent.getKey())).setValue(ent.getValue());
+                }
+            }
+        }
+
+        static DataEntry read(DataInput in) throws IOException {
+            ImmutableMap.Builder<String, Tristate> nodes = ImmutableMap.builder();
+            for (int i = in.readInt(); i > 0; --i) {
+                nodes.put(in.readUTF(), Tristate.fromBoolean(in.readBoolean()));
+            }
+            ImmutableMap.Builder<String, String> options = ImmutableMap.builder();
+            for (int i = in.readInt(); i > 0; --i) {
+                options.put(in.readUTF(), in.readUTF());
+            }
+            ImmutableList.Builder<Map.Entry<String, String>> parents = ImmutableList.builder();
+            for (int i = in.readInt(); i > 0; --i) {
+                parents.add(Maps.immutableEntry(in.readUTF(), in.readUTF()));
+            }
+            final byte defaultValue = in.readByte();
+            ImmutableMap.Builder<String, Long> nodeExpiries = ImmutableMap.builder();
+            for (int i = in.readInt(); i > 0; --i) {
+                nodeExpiries.put(in.readUTF(), in.readLong());
+            }
+            ImmutableMap.Builder<Map.Entry<String, String>, Long> parentExpiries = ImmutableMap.builder();
+            for (int i = in.readInt(); i > 0; --i) {
+                parentExpiries.put(Maps.immutableEntry(in.readUTF(), in.readUTF()), in.readLong());
+            }
+            return new DataEntry(nodes.build(), options.build(), parents.build(),
+                    defaultValue == 0 ? Tristate.UNDEFINED : Tristate.fromBoolean(defaultValue > 0),
+                    nodeExpiries.build(), parentExpiries.build());
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(nodes.size());
+            for (Map.Entry<String, Tristate> ent : nodes.entrySet()) {
+                out.writeUTF(ent.getKey());
+                out.writeBoolean(ent.getValue().asBoolean());
+            }
+            out.writeInt(options.size());
+            for (Map.Entry<String, String> ent : options.entrySet()) {
+                out.writeUTF(ent.getKey());
+                out.writeUTF(ent.getValue());
+            }
+            out.writeInt(parents.size());
+            for (Map.Entry<String, String> parent : parents) {
+                out.writeUTF(parent.getKey());
+                out.writeUTF(parent.getValue());
+            }
+            out.writeByte(defaultValue == Tristate.UNDEFINED ? 0 : defaultValue.asBoolean() ? 1 : -1);
+            out.writeInt(nodeExpiries.size());
+            for (Map.Entry<String, Long> ent : nodeExpiries.entrySet()) {
+                out.writeUTF(ent.getKey());
+                out.writeLong(ent.getValue());
+            }
+            out.writeInt(parentExpiries.size());
+            for (Map.Entry<Map.Entry<String, String>, Long> ent : parentExpiries.entrySet()) {
+                out.writeUTF(ent.getKey().getKey());
+                out.writeUTF(ent.getKey().getValue());
+                out.writeLong(ent.getValue());
+            }
+        }
+    }
+
+    /**
+     * An inverted index from each context to the stored context sets containing it, used to find the sets that apply
+     * in some active contexts without testing every stored set.
+     */
+    private static class ContextIndex {
+        private static final Comparator<Set<Context>> PRECEDENCE = new Comparator<Set<Context>>() {
+            @Override
+            public int compare(Set<Context> a, Set<Context> b) {
+                return b.size() - a.size();
+            }
+        };
+        /**
+         * Every non-global context set, in precedence order. Postings refer to sets by their index in this list.
+         */
+        private final List<Set<Context>> sets;
+        private final Map<Context, int[]> postings;
+        private final boolean hasGlobal;
+
+        ContextIndex(Set<Set<Context>> keys) {
+            final List<Set<Context>> sets = new ArrayList<>(keys);
+            this.hasGlobal = sets.remove(Collections.<Context>emptySet());
+            Collections.sort(sets, PRECEDENCE);
+            this.sets = sets;
+
+            final Map<Context, List<Integer>> postingLists = new HashMap<>();
+            for (int i = 0; i < sets.size(); ++i) {
+                for (Context ctx : sets.get(i)) {
+                    List<Integer> list = postingLists.get(ctx);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        postingLists.put(ctx, list);
+                    }
+                    list.add(i);
+                }
+            }
+            final ImmutableMap.Builder<Context, int[]> postings = ImmutableMap.builder();
+            for (Map.Entry<Context, List<Integer>> ent : postingLists.entrySet()) {
+                final int[] ids = new int[ent.getValue().size()];
+                for (int i = 0; i < ids.length; ++i) {
+                    ids[i] = ent.getValue().get(i);
+                }
+                postings.put(ent.getKey(), ids);
+            }
+            this.postings = postings.build();
+        }
+
+        List<Set<Context>> getApplicable(Set<Context> activeContexts) {
+            // A set applies once each of its contexts has been seen among the active contexts
+            List<Integer> matches = null;
+            Map<Integer, Integer> seen = null;
+            for (Context ctx : activeContexts) {
+                final int[] ids = postings.get(ctx);
+                if (ids == null) {
+                    continue;
+                }
+                for (int id : ids) {
+                    final int size = sets.get(id).size();
+                    boolean matched = size == 1;
+                    if (!matched) {
+                        if (seen == null) {
+                            seen = new HashMap<>();
+                        }
+                        final Integer count = seen.get(id);
+                        final int newCount = count == null ? 1 : count + 1;
+                        seen.put(id, newCount);
+                        matched = newCount == size;
+                    }
+                    if (matched) {
+                        if (matches == null) {
+                            matches = new ArrayList<>();
+                        }
+                        matches.add(id);
+                    }
+                }
+            }
+
+            if (matches == null) {
+                return hasGlobal ? ImmutableList.<Set<Context>>of(Collections.<Context>emptySet()) : ImmutableList.<Set<Context>>of();
+            }
+            Collections.sort(matches);
+            final ImmutableList.Builder<Set<Context>> ret = ImmutableList.builder();
+            for (int id : matches) {
+                ret.add(sets.get(id));
+            }
+            if (hasGlobal) {
+                ret.add(Collections.<Context>emptySet());
+            }
+            return ret.build();
         }
     }
-    private final Map<Set<Context>, DataEntry> contexts;
+
+    /**
+     * The data, either as a map of context set to entry, or compressed into a byte array while the data is cold.
+     * Either form can be replaced by the other at any time, since both hold the same data.
+     */
+    private volatile Object state;
+    /**
+     * Whether the data has been used since the last call to {@link #compressIfUnused()}
+     */
+    private volatile boolean used = true;
+    /**
+     * Built on first use. Racing threads may each build one, which is harmless since they are equal.
+     */
+    private volatile ContextIndex index;
+    /**
+     * Computed on first use, {@code null} until then
+     */
+    private volatile Long nextExpiry;
 
     FileOptionSubjectData(Map<Set<Context>, DataEntry> contexts) {
-        this.contexts = contexts;
+        this.state = contexts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Set<Context>, DataEntry> contexts() {
+        if (!used) {
+            used = true;
+        }
+        final Object state = this.state;
+        if (state instanceof byte[]) {
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream((byte[]) state)))) {
+                final Map<Set<Context>, DataEntry> ret = read(in).contexts();
+                this.state = ret;
+                return ret;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to decompress subject data", e); // Cannot happen in memory
+            }
+        }
+        return (Map<Set<Context>, DataEntry>) state;
+    }
+
+    /**
+     * Compress this data if it has not been used since the last call. Compressed data is decompressed again
+     * when next used.
+     *
+     * @return Whether the data is now compressed
+     */
+    @SuppressWarnings("unchecked")
+    boolean compressIfUnused() {
+        if (used) {
+            used = false;
+            return false;
+        }
+        final Object state = this.state;
+        if (state instanceof byte[]) {
+            return true;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            write((Map<Set<Context>, DataEntry>) state, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to compress subject data", e); // Cannot happen in memory
+        } finally {
+            deflater.end();
+        }
+        if (used) { // Used while compressing, stay uncompressed
+            return false;
+        }
+        this.state = bytes.toByteArray();
+        this.index = null;
+        return true;
+    }
+
+    boolean isCompressed() {
+        return state instanceof byte[];
+    }
+
+    /**
+     * Parse subject data from the list of context blocks stored in the permissions file
+     *
+     * Entries that are not context blocks are skipped.
+     *
+     * @param node The node holding a subject's context blocks
+     * @return The parsed data
+     */
+    static FileOptionSubjectData fromNode(ConfigurationNode node) {
+        final Map<Set<Context>, DataEntry> contexts = new HashMap<>();
+        for (ConfigurationNode block : node.getChildrenList()) {
+            if (!block.hasMapChildren()) {
+                continue;
+            }
+            final ImmutableSet.Builder<Context> contextSet = ImmutableSet.builder();
+            for (Map.Entry<Object, ? extends ConfigurationNode> ctx : block.getNode("context").getChildrenMap().entrySet()) {
+                contextSet.add(new Context(ctx.getKey().toString(), ctx.getValue().getString()));
+            }
+            contexts.put(contextSet.build(), DataEntry.fromNode(block));
+        }
+        return new FileOptionSubjectData(ImmutableMap.copyOf(contexts));
+    }
+
+    /**
+     * Write this data as a list of context blocks, replacing any existing value of the node
+     *
+     * @param node The node to write to
+     */
+    void serialize(ConfigurationNode node) {
+        node.setValue(null);
+        for (Map.Entry<Set<Context>, DataEntry> ent : contexts().entrySet()) {
+            if (ent.getValue().isEmpty()) {
+                continue;
+            }
+            final ConfigurationNode block = node.getAppendedNode();
+            for (Context ctx : ent.getKey()) {
+                block.getNode("context", ctx.getType()).setValue(ctx.getName());
+            }
+            ent.getValue().serialize(block);
+        }
+    }
+
+    /**
+     * Read data in the compact binary form written by {@link #write(DataOutput)}
+     *
+     * @param in The input to read from
+     * @return The data read
+     * @throws IOException if the input could not be read
+     */
+    static FileOptionSubjectData read(DataInput in) throws IOException {
+        final ImmutableMap.Builder<Set<Context>, DataEntry> contexts = ImmutableMap.builder();
+        for (int i = in.readInt(); i > 0; --i) {
+            final ImmutableSet.Builder<Context> contextSet = ImmutableSet.builder();
+            for (int j = in.readInt(); j > 0; --j) {
+                contextSet.add(new Context(in.readUTF(), in.readUTF()));
+            }
+            contexts.put(contextSet.build(), DataEntry.read(in));
+        }
+        return new FileOptionSubjectData(contexts.build());
+    }
+
+    /**
+     * Write this data in a compact binary form, used where HOCON would be too slow or too large
+     *
+     * @param out The output to write to
+     * @throws IOException if the output could not be written
+     */
+    void write(DataOutput out) throws IOException {
+        write(contexts(), out);
+    }
+
+    /**
+     * Write this data in the same form as {@link #write(DataOutput)}, without counting as a use.
+     * Compressed data is decompressed straight into the output and stays compressed.
+     */
+    @SuppressWarnings("unchecked")
+    void copyTo(DataOutputStream out) throws IOException {
+        final Object state = this.state;
+        if (state instanceof byte[]) {
+            try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream((byte[]) state))) {
+                ByteStreams.copy(in, out);
+            }
+        } else {
+            write((Map<Set<Context>, DataEntry>) state, out);
+        }
+    }
+
+    private static void write(Map<Set<Context>, DataEntry> contexts, DataOutput out) throws IOException {
+        out.writeInt(contexts.size());
+        for (Map.Entry<Set<Context>, DataEntry> ent : contexts.entrySet()) {
+            out.writeInt(ent.getKey().size());
+            for (Context ctx : ent.getKey()) {
+                out.writeUTF(ctx.getType());
+                out.writeUTF(ctx.getName());
+            }
+            ent.getValue().write(out);
+        }
+    }
+
+    @Override
+    public List<Set<Context>> getApplicableContexts(Set<Context> activeContexts) {
+        ContextIndex index = this.index;
+        if (index == null) {
+            this.index = index = new ContextIndex(contexts().keySet());
+        }
+        return index.getApplicable(activeContexts);
+    }
+
+    @Override
+    public long getNextExpiry() {
+        Long ret = nextExpiry;
+        if (ret == null) {
+            long next = NEVER;
+            for (DataEntry entry : contexts().values()) {
+                next = Math.min(next, entry.getNextExpiry());
+            }
+            this.nextExpiry = ret = next;
+        }
+        return ret;
+    }
+
+    @Override
+    public ImmutableOptionSubjectData removeExpired(final long now) {
+        if (getNextExpiry() > now) {
+            return this;
+        }
+        return withAllEntries(new Function<DataEntry, DataEntry>() {
+            @Nullable
+            @Override
+            public DataEntry apply(@Nullable DataEntry dataEntry) {
+                return dataEntry.removeExpired(now);
+            }
+        });
+    }
+
+    static Map.Entry<String, String> parseParent(String parent) {
+        final int split = parent.indexOf(':');
+        return split == -1 ? Maps.immutableEntry(DEFAULT_PARENT_TYPE, parent) : Maps.immutableEntry(parent.substring(0, split), parent.substring(split + 1));
+    }
+
+    static String formatParent(Map.Entry<String, String> parent) {
+        return parent.getKey().equals(DEFAULT_PARENT_TYPE) ? parent.getValue() : parent.getKey() + ":" + parent.getValue();
+    }
+
+    private DataEntry getEntry(Set<Context> contexts) {
+        final DataEntry entry = contexts().get(contexts);
+        return entry == null ? DataEntry.EMPTY : entry;
+    }
+
+    private FileOptionSubjectData withEntry(Set<Context> contexts, DataEntry entry) {
+        final Map<Set<Context>, DataEntry> newContexts = new HashMap<>(contexts());
+        if (entry.isEmpty()) {
+            newContexts.remove(contexts);
+        } else {
+            newContexts.put(ImmutableSet.copyOf(contexts), entry);
+        }
+        return new FileOptionSubjectData(ImmutableMap.copyOf(newContexts));
+    }
+
+    private FileOptionSubjectData withAllEntries(Function<DataEntry, DataEntry> transform) {
+        final Map<Set<Context>, DataEntry> newContexts = new HashMap<>();
+        for (Map.Entry<Set<Context>, DataEntry> ent : contexts().entrySet()) {
+            final DataEntry newEntry = transform.apply(ent.getValue());
+            if (!newEntry.isEmpty()) {
+                newContexts.put(ent.getKey(), newEntry);
+            }
+        }
+        return new FileOptionSubjectData(ImmutableMap.copyOf(newContexts));
     }
 
     @Override
     public Map<Set<Context>, Map<String, String>> getAllOptions() {
-        return Maps.transformValues(contexts, new Function<DataEntry, Map<String, String>>() {
+        return Maps.transformValues(contexts(), new Function<DataEntry, Map<String, String>>() {
             @Nullable
             @Override
             public Map<String, String> apply(@Nullable DataEntry dataEntry) {
@@ -64,28 +618,41 @@ public class FileOptionSubjectData implements ImmutableOptionSubjectData {
 
     @Override
     public Map<String, String> getOptions(Set<Context> contexts) {
-        final DataEntry entry = this.contexts.get(contexts);
+        final DataEntry entry = contexts().get(contexts);
         return entry == null ? null : entry.options;
     }
 
     @Override
     public ImmutableOptionSubjectData setOption(Set<Context> contexts, String key, String value) {
-        return null;
+        final DataEntry entry = getEntry(contexts);
+        final Map<String, String> options = new HashMap<>(entry.options);
+        if (value == null) {
+            options.remove(key);
+        } else {
+            options.put(key, value);
+        }
+        return withEntry(contexts, entry.withOptions(options));
     }
 
     @Override
     public ImmutableOptionSubjectData clearOptions(Set<Context> contexts) {
-        return null;
+        return withEntry(contexts, getEntry(contexts).withOptions(ImmutableMap.<String, String>of()));
     }
 
     @Override
     public ImmutableOptionSubjectData clearOptions() {
-        return null;
+        return withAllEntries(new Function<DataEntry, DataEntry>() {
+            @Nullable
+            @Override
+            public DataEntry apply(@Nullable DataEntry dataEntry) {
+                return dataEntry.withOptions(ImmutableMap.<String, String>of());
+            }
+        });
     }
 
     @Override
     public Map<Set<Context>, Map<String, Tristate>> getAllPermissions() {
-        return Maps.transformValues(contexts, new Function<DataEntry, Map<String, Tristate>>() {
+        return Maps.transformValues(contexts(), new Function<DataEntry, Map<String, Tristate>>() {
             @Nullable
             @Override
             public Map<String, Tristate> apply(@Nullable DataEntry dataEntry) {
@@ -96,52 +663,115 @@ public class FileOptionSubjectData implements ImmutableOptionSubjectData {
 
     @Override
     public Map<String, Tristate> getPermissions(Set<Context> set) {
-        final DataEntry entry = this.contexts.get(set);
+        final DataEntry entry = contexts().get(set);
         return entry == null ? null : entry.nodes;
     }
 
     @Override
     public ImmutableOptionSubjectData setPermission(Set<Context> set, String s, Tristate tristate) {
-        return null;
+        return setPermission(set, s, tristate, NEVER);
+    }
+
+    @Override
+    public ImmutableOptionSubjectData setPermission(Set<Context> set, String permission, Tristate value, long expiry) {
+        final DataEntry entry = getEntry(set);
+        final Map<String, Tristate> nodes = new HashMap<>(entry.nodes);
+        final Map<String, Long> expiries = new HashMap<>(entry.nodeExpiries);
+        if (value == Tristate.UNDEFINED) {
+            nodes.remove(permission);
+        } else {
+            nodes.put(permission, value);
+        }
+        if (expiry == NEVER) {
+            expiries.remove(permission);
+        } else {
+            expiries.put(permission, expiry);
+        }
+        return withEntry(set, entry.withNodes(nodes, expiries));
     }
 
     @Override
     public ImmutableOptionSubjectData clearPermissions() {
-        return null;
+        return withAllEntries(new Function<DataEntry, DataEntry>() {
+            @Nullable
+            @Override
+            public DataEntry apply(@Nullable DataEntry dataEntry) {
+                return dataEntry.withNodes(ImmutableMap.<String, Tristate>of());
+            }
+        });
     }
 
     @Override
     public ImmutableOptionSubjectData clearPermissions(Set<Context> set) {
-        return null;
+        return withEntry(set, getEntry(set).withNodes(ImmutableMap.<String, Tristate>of()));
     }
 
     @Override
-    public Map<Set<Context>, List<Subject>> getAllParents() {
-        return null;
+    public Map<Set<Context>, List<Map.Entry<String, String>>> getAllParents() {
+        return Maps.transformValues(contexts(), new Function<DataEntry, List<Map.Entry<String, String>>>() {
+            @Nullable
+            @Override
+            public List<Map.Entry<String, String>> apply(@Nullable DataEntry dataEntry) {
+                return dataEntry.parents;
+            }
+        });
     }
 
     @Override
-    public List<Subject> getParents(Set<Context> set) {
-        return null;
+    public List<Map.Entry<String, String>> getParents(Set<Context> set) {
+        final DataEntry entry = contexts().get(set);
+        return entry == null ? null : entry.parents;
     }
 
     @Override
-    public ImmutableOptionSubjectData addParent(Set<Context> set, Subject subject) {
-        return null;
+    public ImmutableOptionSubjectData addParent(Set<Context> set, String type, String identifier) {
+        return addParent(set, type, identifier, NEVER);
     }
 
     @Override
-    public ImmutableOptionSubjectData removeParent(Set<Context> set, Subject subject) {
-        return null;
+    public ImmutableOptionSubjectData addParent(Set<Context> set, String type, String identifier, long expiry) {
+        final DataEntry entry = getEntry(set);
+        final Map.Entry<String, String> parent = Maps.immutableEntry(type, identifier);
+        final Long existingExpiry = entry.parentExpiries.get(parent);
+        if (entry.parents.contains(parent) && (existingExpiry == null ? expiry == NEVER : existingExpiry == expiry)) {
+            return this;
+        }
+        final List<Map.Entry<String, String>> parents = new ArrayList<>(entry.parents);
+        if (!parents.contains(parent)) {
+            parents.add(0, parent);
+        }
+        final Map<Map.Entry<String, String>, Long> expiries = new HashMap<>(entry.parentExpiries);
+        if (expiry == NEVER) {
+            expiries.remove(parent);
+        } else {
+            expiries.put(parent, expiry);
+        }
+        return withEntry(set, entry.withParents(parents, expiries));
+    }
+
+    @Override
+    public ImmutableOptionSubjectData removeParent(Set<Context> set, String type, String identifier) {
+        final DataEntry entry = getEntry(set);
+        final List<Map.Entry<String, String>> parents = new ArrayList<>(entry.parents);
+        if (!parents.remove(Maps.immutableEntry(type, identifier))) {
+            return this;
+        }
+        return withEntry(set, entry.withParents(parents));
     }
 
     @Override
     public ImmutableOptionSubjectData clearParents() {
-        return null;
+        return withAllEntries(new Function<DataEntry, DataEntry>() {
+            @Nullable
+            @Override
+            public DataEntry apply(@Nullable DataEntry dataEntry) {
+                return dataEntry.withParents(ImmutableList.<Map.Entry<String, String>>of());
+            }
+        });
     }
 
     @Override
     public ImmutableOptionSubjectData clearParents(Set<Context> set) {
-        return null;
+        return withEntry(set, getEntry(set).withParents(ImmutableList.<Map.Entry<String, String>>of()));
     }
 }
@@ -0,0 +1,261 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores each subject in its own file, at {@code <directory>/<type>/<identifier>.conf}.
+ * Identifiers are URL-encoded so that any identifier maps to a valid file name.
+ *
+ * <p>The layout keeps a stamp summarizing the name, size and modification time of every subject file it has loaded
+ * or written, so data saved alongside the files can tell whether they were changed by anything else since.
+ *
+ * <p>Can be run directly to convert between layouts:
+ * {@code ShardedLayout split <file> <directory>} or {@code ShardedLayout join <directory> <file>}.
+ */
+public class ShardedLayout {
+    private static final String EXTENSION = ".conf", DATA_KEY = "data";
+    private final File directory;
+    private final AtomicLong stamp = new AtomicLong();
+
+    ShardedLayout(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    boolean exists() {
+        return directory.isDirectory();
+    }
+
+    /**
+     * Get the stamp of the subject files as last loaded or written through this layout. A file changed, added or
+     * removed outside of this layout gives a different stamp once the directory is loaded again.
+     *
+     * @return The current stamp
+     */
+    long getStamp() {
+        return stamp.get();
+    }
+
+    /**
+     * Summarize one subject file. Contributions are summed, so they can be replaced one file at a time.
+     *
+     * @return The file's contribution to the stamp, or 0 if it does not exist
+     */
+    private static long fileStamp(File file) {
+        final long modified = file.lastModified();
+        if (modified == 0) {
+            return 0;
+        }
+        long hash = file.getParentFile().getName().hashCode() * 31L + file.getName().hashCode();
+        hash = (hash ^ modified) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ file.length()) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ hash >>> 33;
+    }
+
+    private File fileFor(String type, String identifier) {
+        try {
+            return new File(new File(directory, URLEncoder.encode(type, "UTF-8")), URLEncoder.encode(identifier, "UTF-8") + EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 is not supported", e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Load every subject file, spreading the parsing work over several threads
+     *
+     * @return A snapshot of all loaded data
+     * @throws IOException if any file could not be read
+     */
+    DataSnapshot load() throws IOException {
+        final List<Future<Shard>> shards = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            final File[] typeDirs = directory.listFiles();
+            if (typeDirs != null) {
+                for (final File typeDir : typeDirs) {
+                    final File[] subjectFiles = typeDir.listFiles();
+                    if (subjectFiles == null) {
+                        continue;
+                    }
+                    for (final File subjectFile : subjectFiles) {
+                        if (!subjectFile.getName().endsWith(EXTENSION)) {
+                            continue;
+                        }
+                        shards.add(executor.submit(new Callable<Shard>() {
+                            @Override
+                            public Shard call() throws Exception {
+                                final String name = subjectFile.getName();
+                                final long fileStamp = fileStamp(subjectFile);
+                                final ConfigurationNode node = HoconConfigurationLoader.builder().setFile(subjectFile).build().load();
+                                return new Shard(decode(typeDir.getName()), decode(name.substring(0, name.length() - EXTENSION.length())),
+                                        FileOptionSubjectData.fromNode(node.getNode(DATA_KEY)), fileStamp);
+                            }
+                        }));
+                    }
+                }
+            }
+
+            final DataSnapshot.Builder builder = DataSnapshot.EMPTY.toBuilder();
+            long stamp = 0;
+            for (Future<Shard> future : shards) {
+                final Shard shard = future.get();
+                builder.put(shard.type, shard.identifier, shard.data);
+                stamp += shard.stamp;
+            }
+            this.stamp.set(stamp);
+            return builder.build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading from " + directory, e);
+        } catch (ExecutionException e) {
+            throw new IOException("While loading subject data from " + directory, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Write one subject's file, replacing it atomically where the platform allows
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param data The data to write, or null to delete the subject's file
+     * @throws IOException if the file could not be written
+     */
+    void write(String type, String identifier, @Nullable FileOptionSubjectData data) throws IOException {
+        final File target = fileFor(type, identifier);
+        final long oldStamp = fileStamp(target);
+        if (data == null) {
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Unable to delete " + target);
+            }
+            stamp.addAndGet(-oldStamp);
+            return;
+        }
+        final File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        final File temp = new File(parent, target.getName() + ".tmp");
+        final HoconConfigurationLoader loader = HoconConfigurationLoader.builder().setFile(temp).build();
+        final ConfigurationNode node = loader.load();
+        data.serialize(node.getNode(DATA_KEY));
+        loader.save(node);
+        FileDataStore.replaceFile(temp, target);
+        stamp.addAndGet(fileStamp(target) - oldStamp);
+    }
+
+    /**
+     * Split a single permissions file into a sharded directory. The file must already be at the current schema version.
+     *
+     * @param file The single file to read
+     * @param directory The directory to write subject files to
+     * @throws IOException if any file could not be read or written
+     */
+    public static void split(File file, File directory) throws IOException {
+        final ConfigurationNode root = HoconConfigurationLoader.builder().setFile(file).build().load();
+        final ShardedLayout layout = new ShardedLayout(directory);
+        for (Map.Entry<Object, ? extends ConfigurationNode> type : root.getChildrenMap().entrySet()) {
+            for (Map.Entry<Object, ? extends ConfigurationNode> subject : type.getValue().getChildrenMap().entrySet()) {
+                if (subject.getValue().hasListChildren()) {
+                    layout.write(type.getKey().toString(), subject.getKey().toString(), FileOptionSubjectData.fromNode(subject.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Join a sharded directory into a single permissions file
+     *
+     * @param directory The directory to read subject files from
+     * @param file The single file to write
+     * @param schemaVersion The schema version to record in the file
+     * @throws IOException if any file could not be read or written
+     */
+    public static void join(File directory, File file, int schemaVersion) throws IOException {
+        final DataSnapshot data = new ShardedLayout(directory).load();
+        final HoconConfigurationLoader loader = HoconConfigurationLoader.builder().setFile(file).build();
+        final ConfigurationNode root = loader.load();
+        root.getNode("schema-version").setValue(schemaVersion);
+        for (String type : data.getTypes()) {
+            for (Map.Entry<String, ImmutableOptionSubjectData> subject : data.getAll(type).entrySet()) {
+                ((FileOptionSubjectData) subject.getValue()).serialize(root.getNode(type, subject.getKey()));
+            }
+        }
+        loader.save(root);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: ShardedLayout split <file> <directory> | join <directory> <file>");
+            System.exit(1);
+        }
+        if (args[0].equals("split")) {
+            split(new File(args[1]), new File(args[2]));
+        } else if (args[0].equals("join")) {
+            join(new File(args[1]), new File(args[2]), FileDataStore.SCHEMA_VERSION);
+        } else {
+            System.err.println("Unknown mode " + args[0] + ", expected split or join");
+            System.exit(1);
+        }
+    }
+
+    private static class Shard {
+        private final String type, identifier;
+        private final FileOptionSubjectData data;
+        private final long stamp;
+
+        private Shard(String type, String identifier, FileOptionSubjectData data, long stamp) {
+            this.type = type;
+            this.identifier = identifier;
+            this.data = data;
+            this.stamp = stamp;
+        }
+    }
+}
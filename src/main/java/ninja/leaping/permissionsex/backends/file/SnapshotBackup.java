@@ -0,0 +1,118 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes snapshots of a file data store to gzipped backup files and reads them back. Subjects are stored with the
+ * same binary form as the journal, so restoring a backup skips parsing the permissions file.
+ *
+ * <p>Each file holds a header followed by one record per subject, and a final {@code false} marker:</p>
+ * <pre>
+ * int magic, int format version, long snapshot version
+ * (boolean true, UTF type, UTF identifier, subject data)*
+ * boolean false
+ * </pre>
+ */
+class SnapshotBackup {
+    private static final int MAGIC = 0x50455842, FORMAT_VERSION = 1; // "PEXB"
+    static final String EXTENSION = ".backup.gz";
+
+    private SnapshotBackup() {
+    }
+
+    /**
+     * Write a snapshot to a new file in a directory, named after the store and the current time.
+     * The file only appears under its final name once it is complete.
+     *
+     * @param snapshot The data to write
+     * @param directory The directory to write to
+     * @param prefix The start of the file name, usually the store's identifier
+     * @return The file written
+     * @throws IOException if the backup could not be written
+     */
+    static File write(DataSnapshot snapshot, File directory, String prefix) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create backup directory " + directory);
+        }
+        final String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date());
+        final File target = new File(directory, prefix + "-" + timestamp + "-" + snapshot.getVersion() + EXTENSION);
+        final File tempFile = new File(target.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile), 65536)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshot.getVersion());
+            for (String type : snapshot.getTypes()) {
+                for (Map.Entry<String, ImmutableOptionSubjectData> subject : snapshot.getAll(type).entrySet()) {
+                    out.writeBoolean(true);
+                    out.writeUTF(type);
+                    out.writeUTF(subject.getKey());
+                    ((FileOptionSubjectData) subject.getValue()).copyTo(out);
+                }
+            }
+            out.writeBoolean(false);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        FileDataStore.replaceFile(tempFile, target);
+        return target;
+    }
+
+    /**
+     * Read a backup written by {@link #write(DataSnapshot, File, String)}
+     *
+     * @param file The backup file
+     * @return The data held in the backup
+     * @throws IOException if the file could not be read, or is not a complete backup
+     */
+    static DataSnapshot read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 65536)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a permissions backup");
+            }
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported backup format version " + version + " in " + file);
+            }
+            in.readLong();
+            final DataSnapshot.Builder builder = DataSnapshot.EMPTY.toBuilder();
+            while (in.readBoolean()) {
+                final String type = in.readUTF(), identifier = in.readUTF();
+                builder.put(type, identifier, FileOptionSubjectData.read(in));
+            }
+            return builder.build();
+        }
+    }
+}
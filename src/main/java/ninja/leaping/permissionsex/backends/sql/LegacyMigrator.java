@@ -0,0 +1,282 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import ninja.leaping.permissionsex.backends.LegacyConversionUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies data from the PermissionsEx 1.x tables ({@code permissions}, {@code permissions_inheritance},
+ * {@code permissions_entity}) into the groups/qualifiers/entries schema.
+ *
+ * <p>Legacy rows are read in id order through a streaming cursor, so memory use does not depend on table size.
+ * Each legacy (name, type, world) segment becomes one group, qualified by {@code type} and, outside the global world,
+ * by {@code world}. Its entries are:
+ * <ul>
+ *     <li>{@code permission:<node>} = {@code true}/{@code false} for each permission, converted to the new node syntax</li>
+ *     <li>{@code permissions-default} = {@code true}/{@code false} for the {@code *} permission</li>
+ *     <li>{@code option:<key>} = value for each option</li>
+ *     <li>{@code parent} = parent group name for each inheritance row</li>
+ *     <li>{@code option:default} = {@code true} for each entity flagged as default, in the global world,
+ *     the same way file backends convert the legacy {@code default} key</li>
+ * </ul>
+ *
+ * <p>The id of the last migrated row is stored in the target database in the same transaction as each batch,
+ * so an interrupted migration resumes where it stopped when run again.</p>
+ */
+public class LegacyMigrator {
+    private static final String PHASE_PERMISSIONS = "permissions", PHASE_INHERITANCE = "inheritance", PHASE_ENTITIES = "entities";
+    /**
+     * Legacy entity types, indexed by the value of the {@code type} column
+     */
+    private static final String[] LEGACY_TYPES = {"group", "user"};
+    private static final int MAX_CACHED_GROUPS = 10000;
+
+    private final DataSource source, target;
+    private final SqlQueries queries;
+    private final int batchSize;
+    private final ProgressListener listener;
+    private final Map<String, Integer> groupIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_CACHED_GROUPS;
+        }
+    };
+
+    public interface ProgressListener {
+        /**
+         * Called after each batch is committed
+         *
+         * @param phase The table being migrated
+         * @param rows The number of rows migrated from that table so far in this run
+         * @param lastId The id of the last legacy row that has been committed
+         */
+        void onProgress(String phase, long rows, long lastId);
+    }
+
+    /**
+     * Create a new migrator. Source and target may point to the same database, but must hand out separate connections,
+     * since the source connection is busy streaming for the whole migration.
+     *
+     * @param source Database holding the legacy tables
+     * @param target Database holding the new tables
+     * @param queries Queries for the target's dialect
+     * @param batchSize The number of rows to commit in each transaction
+     * @param listener Listener to report progress to
+     */
+    public LegacyMigrator(DataSource source, DataSource target, SqlQueries queries, int batchSize, ProgressListener listener) {
+        this.source = source;
+        this.target = target;
+        this.queries = queries;
+        this.batchSize = batchSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Migrate all legacy rows that have not yet been migrated
+     *
+     * @return The number of rows migrated in this run
+     * @throws SQLException if either database could not be accessed
+     */
+    public long migrate() throws SQLException {
+        groupIds.clear();
+        try {
+            try (Connection out = target.getConnection(); Statement stmt = out.createStatement()) {
+                stmt.execute(queries.get("legacy.migrate.checkpoint.create"));
+            }
+            return migratePhase(PHASE_PERMISSIONS, "legacy.migrate.permissions") + migratePhase(PHASE_INHERITANCE, "legacy.migrate.inheritance")
+                    + migratePhase(PHASE_ENTITIES, "legacy.migrate.entities");
+        } finally {
+            groupIds.clear(); // Ids of groups created in a rolled back transaction must not be reused
+        }
+    }
+
+    private long migratePhase(String phase, String query) throws SQLException {
+        try (Connection in = source.getConnection(); Connection out = target.getConnection()) {
+            out.setAutoCommit(false);
+            long lastId = getCheckpoint(out, phase), rows = 0;
+            int pending = 0;
+            try (PreparedStatement select = prepareStreaming(in, queries.get(query));
+                 PreparedStatement insert = out.prepareStatement(queries.get("entries.add"))) {
+                select.setLong(1, lastId);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        final long id = rs.getLong(1);
+                        final String name = rs.getString(2), world = rs.getString(4);
+                        final int type = rs.getInt(3);
+                        if (type >= 0 && type < LEGACY_TYPES.length) {
+                            final int group = getGroupId(out, name, LEGACY_TYPES[type], world == null ? "" : world);
+                            if (phase.equals(PHASE_PERMISSIONS)) {
+                                addPermissionOrOption(insert, group, rs.getString(5), rs.getString(6));
+                            } else if (phase.equals(PHASE_INHERITANCE)) {
+                                addEntry(insert, group, "parent", rs.getString(5));
+                            } else {
+                                addEntry(insert, group, "option:default", "true"); // Only flagged entities are selected
+                            }
+                        }
+                        lastId = id;
+                        ++rows;
+                        if (++pending >= batchSize) {
+                            commit(out, insert, phase, lastId);
+                            pending = 0;
+                            listener.onProgress(phase, rows, lastId);
+                        }
+                    }
+                }
+                if (pending > 0) {
+                    commit(out, insert, phase, lastId);
+                    listener.onProgress(phase, rows, lastId);
+                }
+            } catch (SQLException e) {
+                out.rollback();
+                throw e;
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Prepare a query whose results are streamed from the server rather than fetched all at once
+     */
+    private PreparedStatement prepareStreaming(Connection conn, String query) throws SQLException {
+        final boolean mysql = conn.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+        if (!mysql) {
+            conn.setAutoCommit(false); // Most drivers only use a cursor inside a transaction
+        }
+        final PreparedStatement ret = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ret.setFetchSize(mysql ? Integer.MIN_VALUE : batchSize);
+        return ret;
+    }
+
+    private void addPermissionOrOption(PreparedStatement insert, int group, String permission, String value) throws SQLException {
+        if (value != null && !value.isEmpty()) {
+            addEntry(insert, group, "option:" + permission, value);
+            return;
+        }
+        boolean granted = true;
+        if (permission.startsWith("-")) {
+            granted = false;
+            permission = permission.substring(1);
+        }
+        if (permission.equals("*")) {
+            addEntry(insert, group, "permissions-default", String.valueOf(granted));
+        } else {
+            addEntry(insert, group, "permission:" + LegacyConversionUtils.convertPermission(permission), String.valueOf(granted));
+        }
+    }
+
+    private static void addEntry(PreparedStatement insert, int group, String key, String value) throws SQLException {
+        insert.setInt(1, group);
+        insert.setString(2, key);
+        insert.setString(3, value);
+        insert.addBatch();
+    }
+
+    private void commit(Connection out, PreparedStatement insert, String phase, long lastId) throws SQLException {
+        insert.executeBatch();
+        try (PreparedStatement update = out.prepareStatement(queries.get("legacy.migrate.checkpoint.update"))) {
+            update.setLong(1, lastId);
+            update.setString(2, phase);
+            if (update.executeUpdate() == 0) {
+                try (PreparedStatement create = out.prepareStatement(queries.get("legacy.migrate.checkpoint.insert"))) {
+                    create.setString(1, phase);
+                    create.setLong(2, lastId);
+                    create.executeUpdate();
+                }
+            }
+        }
+        out.commit();
+    }
+
+    private long getCheckpoint(Connection out, String phase) throws SQLException {
+        try (PreparedStatement stmt = out.prepareStatement(queries.get("legacy.migrate.checkpoint.get"))) {
+            stmt.setString(1, phase);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private int getGroupId(Connection out, String name, String type, String world) throws SQLException {
+        final String key = type + '\0' + name + '\0' + world;
+        Integer ret = groupIds.get(key);
+        if (ret != null) {
+            return ret;
+        }
+
+        try (PreparedStatement find = out.prepareStatement(queries.get("legacy.migrate.find_group"))) {
+            find.setString(1, type);
+            find.setString(2, name);
+            find.setString(3, world);
+            try (ResultSet rs = find.executeQuery()) {
+                if (rs.next()) {
+                    ret = rs.getInt(1);
+                }
+            }
+        }
+
+        if (ret == null) {
+            try (PreparedStatement create = out.prepareStatement(queries.get("groups.create"), Statement.RETURN_GENERATED_KEYS)) {
+                create.setString(1, name);
+                create.executeUpdate();
+                try (ResultSet rs = create.getGeneratedKeys()) {
+                    if (!rs.next()) {
+                        throw new SQLException("No id was generated for new group " + name);
+                    }
+                    ret = rs.getInt(1);
+                }
+            }
+            try (PreparedStatement qualify = out.prepareStatement(queries.get("qualifiers.add"))) {
+                qualify.setInt(1, ret);
+                qualify.setString(2, "type");
+                qualify.setString(3, type);
+                qualify.addBatch();
+                if (!world.isEmpty()) {
+                    qualify.setInt(1, ret);
+                    qualify.setString(2, "world");
+                    qualify.setString(3, world);
+                    qualify.addBatch();
+                }
+                qualify.executeBatch();
+            }
+        }
+        groupIds.put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Create a migrator whose queries match the dialect of the target database
+     *
+     * @see #LegacyMigrator(DataSource, DataSource, SqlQueries, int, ProgressListener)
+     */
+    public static LegacyMigrator forTarget(DataSource source, DataSource target, String tablePrefix, int batchSize, ProgressListener listener) throws SQLException, IOException {
+        final String dialect;
+        try (Connection conn = target.getConnection()) {
+            dialect = conn.getMetaData().getDatabaseProductName();
+        }
+        return new LegacyMigrator(source, target, new SqlQueries(dialect, tablePrefix), batchSize, listener);
+    }
+}
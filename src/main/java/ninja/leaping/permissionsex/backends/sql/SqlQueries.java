@@ -0,0 +1,62 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The SQL queries for one database dialect. Queries are read from {@code sql/default/queries.properties},
+ * overridden by {@code sql/<dialect>/queries.properties} where present, and {@code {table}} placeholders
+ * are replaced with the prefixed table name.
+ */
+public class SqlQueries {
+    private static final Pattern TABLE_PATTERN = Pattern.compile("\\{([a-z_]+)\\}");
+    private final Properties queries = new Properties();
+    private final String tablePrefix;
+
+    public SqlQueries(String dialect, String tablePrefix) throws IOException {
+        this.tablePrefix = tablePrefix;
+        load("default");
+        load(dialect.toLowerCase());
+    }
+
+    private void load(String dialect) throws IOException {
+        try (InputStream stream = SqlQueries.class.getClassLoader().getResourceAsStream("sql/" + dialect + "/queries.properties")) {
+            if (stream != null) {
+                queries.load(stream);
+            }
+        }
+    }
+
+    public String get(String key) {
+        final String query = queries.getProperty(key);
+        if (query == null) {
+            throw new IllegalArgumentException("Unknown query " + key);
+        }
+        final Matcher matcher = TABLE_PATTERN.matcher(query);
+        final StringBuffer ret = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(ret, Matcher.quoteReplacement(tablePrefix + matcher.group(1)));
+        }
+        matcher.appendTail(ret);
+        return ret.toString();
+    }
+}
@@ -20,7 +20,11 @@ import ninja.leaping.configurate.objectmapping.ObjectMapper;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
 import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreExecutor;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -39,12 +43,46 @@ public class PermissionsExConfiguration {
 
     @Setting private Map<String, DataStore> backends;
     @Setting("default-backend") private String defaultBackend;
+    @Setting(value = "preload-backends", comment = "Backends besides the default one to initialize at startup. Others are initialized on first use.")
+    private List<String> preloadBackends = new ArrayList<>();
+    @Setting(value = "hot-set-size", comment = "Recently used subjects to remember across restarts and load in the background on startup, or 0 to disable")
+    private int hotSetSize = 2000;
+    @Setting(value = "memory-report-interval", comment = "Seconds between writes of memory-report.txt, or 0 to disable")
+    private int memoryReportInterval = 0;
     @Setting private boolean debug;
+    @Setting(value = "log-checks", comment = "Log every permission check matching the debug filters. Slows down checks that match, so only enable while debugging.")
+    private boolean logChecks = false;
+    @Setting(value = "debug-subjects", comment = "With log-checks enabled, only log permission checks on these subjects. Empty to log checks on every subject.")
+    private List<String> debugSubjects = new ArrayList<>();
+    @Setting(value = "debug-permissions", comment = "With log-checks enabled, only log checks of permissions starting with one of these prefixes. Empty to log every permission.")
+    private List<String> debugPermissions = new ArrayList<>();
+    @Setting(value = "debug-contexts", comment = "With log-checks enabled, only log checks made in all of these contexts, each given as type=name")
+    private List<String> debugContexts = new ArrayList<>();
+    @Setting(value = "debug-buffer-size", comment = "Permission checks that may wait to be logged. Further checks are dropped from the log until it catches up.")
+    private int debugBufferSize = 8192;
+    @Setting(value = "check-sample-rate", comment = "Sample one in every this many permission checks, writing a report of them to check-samples.json on reload and shutdown. 0 to disable.")
+    private int checkSampleRate = 0;
+    @Setting(value = "check-sample-size", comment = "The number of most recent samples to keep for the report")
+    private int checkSampleSize = 4096;
+    @Setting(value = "trace-file", comment = "File to capture every permission check to, for replaying with TraceReplay. Empty to not capture checks.")
+    private String traceFile = "";
+    @Setting(value = "io-read-threads", comment = "Threads used to load data from backends") private int ioReadThreads = 2;
+    @Setting(value = "io-write-threads", comment = "Threads used to save data to backends") private int ioWriteThreads = 1;
+    @Setting(value = "io-queue-size", comment = "Tasks that may wait for each of the read and write thread pools") private int ioQueueSize = 1024;
+    @Setting(value = "io-overflow-policy", comment = "What to do once an I/O queue is full: caller-runs, coalesce or reject") private String ioOverflowPolicy = "caller-runs";
 
     protected PermissionsExConfiguration() {}
 
     public DataStore getDataStore(String name) {
-        return backends.get(name);
+        return backends == null ? null : backends.get(name);
+    }
+
+    public String getDefaultBackend() {
+        return defaultBackend;
+    }
+
+    public List<String> getPreloadBackends() {
+        return preloadBackends;
     }
 
     public DataStore getDefaultDataStore() {
@@ -54,4 +92,60 @@ public class PermissionsExConfiguration {
     public boolean isDebugEnabled() {
         return debug;
     }
+
+    public boolean isLogChecksEnabled() {
+        return logChecks;
+    }
+
+    public List<String> getDebugSubjects() {
+        return debugSubjects;
+    }
+
+    public List<String> getDebugPermissions() {
+        return debugPermissions;
+    }
+
+    public List<String> getDebugContexts() {
+        return debugContexts;
+    }
+
+    public int getDebugBufferSize() {
+        return debugBufferSize;
+    }
+
+    public int getCheckSampleRate() {
+        return checkSampleRate;
+    }
+
+    public int getCheckSampleSize() {
+        return checkSampleSize;
+    }
+
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public int getHotSetSize() {
+        return hotSetSize;
+    }
+
+    public int getMemoryReportInterval() {
+        return memoryReportInterval;
+    }
+
+    public int getIoReadThreads() {
+        return ioReadThreads;
+    }
+
+    public int getIoWriteThreads() {
+        return ioWriteThreads;
+    }
+
+    public int getIoQueueSize() {
+        return ioQueueSize;
+    }
+
+    public DataStoreExecutor.OverflowPolicy getIoOverflowPolicy() {
+        return DataStoreExecutor.OverflowPolicy.valueOf(ioOverflowPolicy.toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
 }
@@ -0,0 +1,296 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, versioned view of all subject data held by a data store.
+ * Data stores publish a new snapshot for each change, so a reader holding a snapshot never observes a partial write.
+ *
+ * <p>Subjects are split across a fixed number of stripes by type and identifier. Each stripe is immutable, and
+ * building a snapshot only copies the stripes that changed, so writers to different stripes can prepare their
+ * changes independently and publish them onto whichever snapshot is current. A write copies each type it changes
+ * in a stripe once, so there are enough stripes to keep those copies to a few hundred subjects in a large store.</p>
+ */
+public final class DataSnapshot {
+    public static final int STRIPES = 256;
+    public static final DataSnapshot EMPTY;
+
+    static {
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, ImmutableOptionSubjectData>>[] stripes = new Map[STRIPES];
+        Arrays.fill(stripes, ImmutableMap.<String, Map<String, ImmutableOptionSubjectData>>of());
+        EMPTY = new DataSnapshot(0, stripes);
+    }
+
+    private final long version;
+    private final Map<String, Map<String, ImmutableOptionSubjectData>>[] stripes;
+    private volatile Set<String> types;
+
+    private DataSnapshot(long version, Map<String, Map<String, ImmutableOptionSubjectData>>[] stripes) {
+        this.version = version;
+        this.stripes = stripes;
+    }
+
+    /**
+     * Get the stripe a subject's data is held in
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @return The stripe index, between 0 and {@link #STRIPES}
+     */
+    public static int getStripe(String type, String identifier) {
+        final int hash = 31 * type.hashCode() + identifier.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Get the version of this snapshot. Each snapshot built from another has a higher version than its source.
+     *
+     * @return The version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Nullable
+    public ImmutableOptionSubjectData get(String type, String identifier) {
+        final Map<String, ImmutableOptionSubjectData> typeData = stripes[getStripe(type, identifier)].get(type);
+        return typeData == null ? null : typeData.get(identifier);
+    }
+
+    public Set<String> getTypes() {
+        Set<String> ret = types;
+        if (ret == null) {
+            final Set<String> working = new LinkedHashSet<>();
+            for (Map<String, Map<String, ImmutableOptionSubjectData>> stripe : stripes) {
+                working.addAll(stripe.keySet());
+            }
+            ret = ImmutableSet.copyOf(working);
+            types = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Get every subject of a type. The returned map is a view over this snapshot's stripes, so is never modified
+     * and iterates in the same order each time.
+     *
+     * @param type The type of subject
+     * @return The data of each subject by identifier
+     */
+    public Map<String, ImmutableOptionSubjectData> getAll(String type) {
+        return new TypeView(type);
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    private final class TypeView extends AbstractMap<String, ImmutableOptionSubjectData> {
+        private final String type;
+
+        private TypeView(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public ImmutableOptionSubjectData get(Object key) {
+            return key instanceof String ? DataSnapshot.this.get(type, (String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, ImmutableOptionSubjectData>> entrySet() {
+            return new AbstractSet<Entry<String, ImmutableOptionSubjectData>>() {
+                @Override
+                public Iterator<Entry<String, ImmutableOptionSubjectData>> iterator() {
+                    final Iterator<Map<String, Map<String, ImmutableOptionSubjectData>>> stripeIt = Iterators.forArray(stripes);
+                    return Iterators.concat(new Iterator<Iterator<Entry<String, ImmutableOptionSubjectData>>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return stripeIt.hasNext();
+                        }
+
+                        @Override
+                        public Iterator<Entry<String, ImmutableOptionSubjectData>> next() {
+                            final Map<String, ImmutableOptionSubjectData> typeData = stripeIt.next().get(type);
+                            return typeData == null ? ImmutableSet.<Entry<String, ImmutableOptionSubjectData>>of().iterator()
+                                    : typeData.entrySet().iterator();
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    });
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Map<String, Map<String, ImmutableOptionSubjectData>> stripe : stripes) {
+                        final Map<String, ImmutableOptionSubjectData> typeData = stripe.get(type);
+                        if (typeData != null) {
+                            size += typeData.size();
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Collects changes to a snapshot. Changes are held apart from the source until the new snapshot is built, when
+     * each type changed within a changed stripe is copied once, with the changes applied.
+     */
+    public static final class Builder {
+        private final DataSnapshot source;
+        private final Map<Integer, Map<String, Map<String, ImmutableOptionSubjectData>>> changes = new HashMap<>();
+        private Map<Integer, Map<String, Map<String, ImmutableOptionSubjectData>>> built;
+
+        private Builder(DataSnapshot source) {
+            this.source = source;
+        }
+
+        /**
+         * Get the changes to one type within a stripe. Removed subjects are mapped to null.
+         */
+        private Map<String, ImmutableOptionSubjectData> changesFor(String type, int stripe) {
+            Map<String, Map<String, ImmutableOptionSubjectData>> stripeChanges = changes.get(stripe);
+            if (stripeChanges == null) {
+                stripeChanges = new HashMap<>();
+                changes.put(stripe, stripeChanges);
+            }
+            Map<String, ImmutableOptionSubjectData> ret = stripeChanges.get(type);
+            if (ret == null) {
+                ret = new HashMap<>();
+                stripeChanges.put(type, ret);
+            }
+            built = null;
+            return ret;
+        }
+
+        @Nullable
+        public ImmutableOptionSubjectData get(String type, String identifier) {
+            final Map<String, Map<String, ImmutableOptionSubjectData>> stripeChanges = changes.get(getStripe(type, identifier));
+            final Map<String, ImmutableOptionSubjectData> typeChanges = stripeChanges == null ? null : stripeChanges.get(type);
+            return typeChanges == null || !typeChanges.containsKey(identifier) ? source.get(type, identifier) : typeChanges.get(identifier);
+        }
+
+        /**
+         * Set the data for a subject in the new snapshot
+         *
+         * @param type The type of the subject
+         * @param identifier The subject's identifier
+         * @param data The new data, or null to remove the subject
+         * @return this
+         */
+        public Builder put(String type, String identifier, @Nullable ImmutableOptionSubjectData data) {
+            changesFor(type, getStripe(type, identifier)).put(identifier, data);
+            return this;
+        }
+
+        /**
+         * Get the stripes this builder has changed
+         *
+         * @return The stripe indices
+         */
+        public Set<Integer> getChangedStripes() {
+            return changes.keySet();
+        }
+
+        public DataSnapshot build() {
+            return buildOnto(source);
+        }
+
+        /**
+         * Build a snapshot with this builder's changed stripes replacing those in another snapshot, which may be
+         * newer than the one this builder started from. The caller must make sure the changed stripes have not been
+         * modified since, usually by holding a lock for each of them.
+         *
+         * @param current The snapshot to apply changes onto
+         * @return The new snapshot
+         */
+        public DataSnapshot buildOnto(DataSnapshot current) {
+            if (changes.isEmpty()) {
+                return current;
+            }
+            if (built == null) {
+                // Kept, so publishing onto a different snapshot after losing a race does not copy stripes again
+                built = new HashMap<>();
+                for (Map.Entry<Integer, Map<String, Map<String, ImmutableOptionSubjectData>>> stripe : changes.entrySet()) {
+                    final Map<String, Map<String, ImmutableOptionSubjectData>> sourceStripe = source.stripes[stripe.getKey()];
+                    final Map<String, Map<String, ImmutableOptionSubjectData>> newStripe = new HashMap<>(sourceStripe);
+                    for (Map.Entry<String, Map<String, ImmutableOptionSubjectData>> ent : stripe.getValue().entrySet()) {
+                        final Map<String, ImmutableOptionSubjectData> typeData = apply(sourceStripe.get(ent.getKey()), ent.getValue());
+                        if (typeData.isEmpty()) {
+                            newStripe.remove(ent.getKey());
+                        } else {
+                            newStripe.put(ent.getKey(), typeData);
+                        }
+                    }
+                    built.put(stripe.getKey(), ImmutableMap.copyOf(newStripe));
+                }
+            }
+            final Map<String, Map<String, ImmutableOptionSubjectData>>[] newStripes = current.stripes.clone();
+            for (Map.Entry<Integer, Map<String, Map<String, ImmutableOptionSubjectData>>> stripe : built.entrySet()) {
+                newStripes[stripe.getKey()] = stripe.getValue();
+            }
+            return new DataSnapshot(current.version + 1, newStripes);
+        }
+
+        /**
+         * Copy a type's data within a stripe with changes applied, in a single pass
+         */
+        private static Map<String, ImmutableOptionSubjectData> apply(@Nullable Map<String, ImmutableOptionSubjectData> existing,
+                                                                     Map<String, ImmutableOptionSubjectData> changes) {
+            final ImmutableMap.Builder<String, ImmutableOptionSubjectData> ret = ImmutableMap.builder();
+            if (existing != null) {
+                for (Map.Entry<String, ImmutableOptionSubjectData> ent : existing.entrySet()) {
+                    if (!changes.containsKey(ent.getKey())) {
+                        ret.put(ent);
+                    }
+                }
+            }
+            for (Map.Entry<String, ImmutableOptionSubjectData> ent : changes.entrySet()) {
+                if (ent.getValue() != null) {
+                    ret.put(ent);
+                }
+            }
+            return ret.build();
+        }
+    }
+}
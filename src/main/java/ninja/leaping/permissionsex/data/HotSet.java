@@ -0,0 +1,202 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.spongepowered.api.service.permission.context.Context;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The subjects used most recently, with the context sets each was used in. This is saved on shutdown
+ * so that the same subjects can be loaded ahead of time on the next start.
+ */
+public class HotSet {
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * The number of context sets kept for each subject
+     */
+    private static final int MAX_CONTEXT_SETS = 8;
+
+    private final int capacity;
+    private final LinkedHashMap<Map.Entry<String, String>, Set<Set<Context>>> subjects;
+
+    public HotSet(final int capacity) {
+        this.capacity = capacity;
+        this.subjects = new LinkedHashMap<Map.Entry<String, String>, Set<Set<Context>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Map.Entry<String, String>, Set<Set<Context>>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Record that a subject was used
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param contexts The contexts the subject was used in, or null if not known
+     */
+    public synchronized void touch(String type, String identifier, @Nullable Set<Context> contexts) {
+        if (capacity <= 0) {
+            return;
+        }
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        Set<Set<Context>> contextSets = subjects.get(key);
+        if (contextSets == null) {
+            contextSets = new LinkedHashSet<>();
+            subjects.put(key, contextSets);
+        }
+        if (contexts != null) {
+            final Set<Context> copy = ImmutableSet.copyOf(contexts);
+            // Move to the end, so the oldest set is first
+            contextSets.remove(copy);
+            contextSets.add(copy);
+            if (contextSets.size() > MAX_CONTEXT_SETS) {
+                final Iterator<Set<Context>> it = contextSets.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get every subject in this set, most recently used first
+     *
+     * @return The subjects
+     */
+    public synchronized List<Entry> getSubjects() {
+        final List<Entry> ret = new ArrayList<>(subjects.size());
+        for (Map.Entry<Map.Entry<String, String>, Set<Set<Context>>> ent : subjects.entrySet()) {
+            ret.add(new Entry(ent.getKey().getKey(), ent.getKey().getValue(), ImmutableList.copyOf(ent.getValue())));
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    public static class Entry {
+        private final String type, identifier;
+        private final List<Set<Context>> contexts;
+
+        Entry(String type, String identifier, List<Set<Context>> contexts) {
+            this.type = type;
+            this.identifier = identifier;
+            this.contexts = contexts;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * The context sets the subject was used in, most recent first
+         *
+         * @return The context sets
+         */
+        public List<Set<Context>> getContexts() {
+            return contexts;
+        }
+    }
+
+    /**
+     * Write this set to a file, replacing any existing file only once it has been fully written
+     *
+     * @param file The file to write to
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        final List<Entry> entries = getSubjects();
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            // Oldest first, so loading touches them back into the same order
+            for (Entry entry : ImmutableList.copyOf(entries).reverse()) {
+                out.writeUTF(entry.getType());
+                out.writeUTF(entry.getIdentifier());
+                out.writeInt(entry.getContexts().size());
+                for (Set<Context> contexts : ImmutableList.copyOf(entry.getContexts()).reverse()) {
+                    out.writeInt(contexts.size());
+                    for (Context ctx : contexts) {
+                        out.writeUTF(ctx.getType());
+                        out.writeUTF(ctx.getName());
+                    }
+                }
+            }
+        }
+        if (!tempFile.renameTo(file) && (!file.delete() || !tempFile.renameTo(file))) {
+            throw new IOException("Unable to move " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * Read a set written by {@link #save(File)}. A missing or unreadable file gives an empty set.
+     *
+     * @param file The file to read
+     * @param capacity The number of subjects to keep
+     * @return The set read
+     */
+    public static HotSet load(File file, int capacity) {
+        final HotSet ret = new HotSet(capacity);
+        if (!file.isFile()) {
+            return ret;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return ret;
+            }
+            for (int i = in.readInt(); i > 0; --i) {
+                final String type = in.readUTF(), identifier = in.readUTF();
+                ret.touch(type, identifier, null);
+                for (int j = in.readInt(); j > 0; --j) {
+                    final ImmutableSet.Builder<Context> contexts = ImmutableSet.builder();
+                    for (int k = in.readInt(); k > 0; --k) {
+                        contexts.add(new Context(in.readUTF(), in.readUTF()));
+                    }
+                    ret.touch(type, identifier, contexts.build());
+                }
+            }
+        } catch (IOException e) {
+            // A damaged file only means starting cold
+            return new HotSet(capacity);
+        }
+        return ret;
+    }
+}
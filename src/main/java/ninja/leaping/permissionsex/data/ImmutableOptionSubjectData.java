@@ -16,7 +16,6 @@
  */
 package ninja.leaping.permissionsex.data;
 
-import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.context.Context;
 import org.spongepowered.api.util.Tristate;
 
@@ -25,6 +24,11 @@ import java.util.Map;
 import java.util.Set;
 
 public interface ImmutableOptionSubjectData {
+    /**
+     * The expiry of entries that never expire
+     */
+    long NEVER = Long.MAX_VALUE;
+
     Map<Set<Context>, Map<String, String>> getAllOptions();
 
     Map<String, String> getOptions(Set<Context> contexts);
@@ -41,19 +45,74 @@ public interface ImmutableOptionSubjectData {
 
     ImmutableOptionSubjectData setPermission(Set<Context> set, String s, Tristate tristate);
 
+    /**
+     * Set a permission that is removed once a certain time has passed. Setting a permission without an expiry
+     * makes it permanent again.
+     *
+     * @param set The contexts to set the permission in
+     * @param permission The permission to set
+     * @param value The value to set
+     * @param expiry The time, in milliseconds since the epoch, the permission expires at, or {@link #NEVER}
+     * @return The changed data
+     */
+    ImmutableOptionSubjectData setPermission(Set<Context> set, String permission, Tristate value, long expiry);
+
     ImmutableOptionSubjectData clearPermissions();
 
     ImmutableOptionSubjectData clearPermissions(Set<Context> set);
 
-    Map<Set<Context>, List<Subject>> getAllParents();
+    /**
+     * Get the parents of this subject in every context. Parents are given as (type, identifier) pairs,
+     * since subject data is independent of any loaded subject.
+     *
+     * @return The parents for each set of contexts
+     */
+    Map<Set<Context>, List<Map.Entry<String, String>>> getAllParents();
 
-    List<Subject> getParents(Set<Context> set);
+    List<Map.Entry<String, String>> getParents(Set<Context> set);
 
-    ImmutableOptionSubjectData addParent(Set<Context> set, Subject subject);
+    ImmutableOptionSubjectData addParent(Set<Context> set, String type, String identifier);
 
-    ImmutableOptionSubjectData removeParent(Set<Context> set, Subject subject);
+    /**
+     * Add a parent that is removed once a certain time has passed. Adding a parent that is already present
+     * only changes its expiry.
+     *
+     * @param set The contexts to add the parent in
+     * @param type The type of the parent
+     * @param identifier The identifier of the parent
+     * @param expiry The time, in milliseconds since the epoch, the parent expires at, or {@link #NEVER}
+     * @return The changed data
+     */
+    ImmutableOptionSubjectData addParent(Set<Context> set, String type, String identifier, long expiry);
+
+    ImmutableOptionSubjectData removeParent(Set<Context> set, String type, String identifier);
 
     ImmutableOptionSubjectData clearParents();
 
     ImmutableOptionSubjectData clearParents(Set<Context> set);
+
+    /**
+     * Get every context set holding data that applies in the given active contexts, which are those that are
+     * a subset of the active contexts. Sets are ordered by precedence: more specific sets come first, and the
+     * global (empty) set, if present, comes last.
+     *
+     * @param activeContexts The contexts being checked in
+     * @return The applicable context sets, most specific first
+     */
+    List<Set<Context>> getApplicableContexts(Set<Context> activeContexts);
+
+    /**
+     * Get the time at which the earliest expiring permission or parent expires
+     *
+     * @return The time in milliseconds since the epoch, or {@link #NEVER} if nothing expires
+     */
+    long getNextExpiry();
+
+    /**
+     * Remove every permission and parent that has expired
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @return The changed data, or this object if nothing has expired
+     */
+    ImmutableOptionSubjectData removeExpired(long now);
 }
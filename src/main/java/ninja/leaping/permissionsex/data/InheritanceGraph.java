@@ -0,0 +1,193 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.spongepowered.api.service.permission.context.Context;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Tracks which subjects inherit from each subject, so that a change to one subject only has to reach the subjects
+ * that inherit from it. Stores call {@link #update} as each subject changes, which replaces only that subject's
+ * own edges.
+ */
+public class InheritanceGraph {
+    private final Map<Map.Entry<String, String>, Map<Set<Context>, List<Map.Entry<String, String>>>> parents = new HashMap<>();
+    /**
+     * For each parent, the subjects that inherit from it and the context sets they do so in
+     */
+    private final Map<Map.Entry<String, String>, Map<Map.Entry<String, String>, Set<Set<Context>>>> children = new HashMap<>();
+
+    /**
+     * Record the new state of a subject's data
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param data The subject's new data, or null if it was removed
+     */
+    public void update(String type, String identifier, @Nullable ImmutableOptionSubjectData data) {
+        update(Maps.immutableEntry(type, identifier), data == null ? null : copyParents(data));
+    }
+
+    private synchronized void update(Map.Entry<String, String> key, @Nullable Map<Set<Context>, List<Map.Entry<String, String>>> newParents) {
+        final Map<Set<Context>, List<Map.Entry<String, String>>> oldParents = newParents == null || newParents.isEmpty()
+                ? parents.remove(key) : parents.put(key, newParents);
+        if (oldParents != null) {
+            for (Map.Entry<Set<Context>, List<Map.Entry<String, String>>> ent : oldParents.entrySet()) {
+                for (Map.Entry<String, String> parent : ent.getValue()) {
+                    removeEdge(parent, key, ent.getKey());
+                }
+            }
+        }
+        if (newParents != null) {
+            for (Map.Entry<Set<Context>, List<Map.Entry<String, String>>> ent : newParents.entrySet()) {
+                for (Map.Entry<String, String> parent : ent.getValue()) {
+                    addEdge(parent, key, ent.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard all edges and read every subject in a snapshot
+     *
+     * @param snapshot The data to read
+     */
+    public synchronized void reset(DataSnapshot snapshot) {
+        parents.clear();
+        children.clear();
+        for (String type : snapshot.getTypes()) {
+            for (Map.Entry<String, ImmutableOptionSubjectData> ent : snapshot.getAll(type).entrySet()) {
+                update(type, ent.getKey(), ent.getValue());
+            }
+        }
+    }
+
+    /**
+     * Copy only the parents out of a subject's data, so the graph does not keep the rest of it reachable
+     */
+    private static Map<Set<Context>, List<Map.Entry<String, String>>> copyParents(ImmutableOptionSubjectData data) {
+        final ImmutableMap.Builder<Set<Context>, List<Map.Entry<String, String>>> ret = ImmutableMap.builder();
+        for (Map.Entry<Set<Context>, List<Map.Entry<String, String>>> ent : data.getAllParents().entrySet()) {
+            if (ent.getValue() != null && !ent.getValue().isEmpty()) {
+                ret.put(ImmutableSet.copyOf(ent.getKey()), ImmutableList.copyOf(ent.getValue()));
+            }
+        }
+        return ret.build();
+    }
+
+    private void addEdge(Map.Entry<String, String> parent, Map.Entry<String, String> child, Set<Context> contexts) {
+        Map<Map.Entry<String, String>, Set<Set<Context>>> parentChildren = children.get(parent);
+        if (parentChildren == null) {
+            parentChildren = new HashMap<>();
+            children.put(parent, parentChildren);
+        }
+        Set<Set<Context>> edgeContexts = parentChildren.get(child);
+        if (edgeContexts == null) {
+            edgeContexts = new HashSet<>(2);
+            parentChildren.put(child, edgeContexts);
+        }
+        edgeContexts.add(contexts);
+    }
+
+    private void removeEdge(Map.Entry<String, String> parent, Map.Entry<String, String> child, Set<Context> contexts) {
+        final Map<Map.Entry<String, String>, Set<Set<Context>>> parentChildren = children.get(parent);
+        if (parentChildren == null) {
+            return;
+        }
+        final Set<Set<Context>> edgeContexts = parentChildren.get(child);
+        if (edgeContexts != null && edgeContexts.remove(contexts) && edgeContexts.isEmpty()) {
+            parentChildren.remove(child);
+            if (parentChildren.isEmpty()) {
+                children.remove(parent);
+            }
+        }
+    }
+
+    /**
+     * Get the subjects that inherit directly from a subject in any context
+     *
+     * @param type The parent's type
+     * @param identifier The parent's identifier
+     * @return The children, as type and identifier
+     */
+    public synchronized Set<Map.Entry<String, String>> getChildren(String type, String identifier) {
+        final Map<Map.Entry<String, String>, Set<Set<Context>>> ret = children.get(Maps.immutableEntry(type, identifier));
+        return ret == null ? ImmutableSet.<Map.Entry<String, String>>of() : ImmutableSet.copyOf(ret.keySet());
+    }
+
+    /**
+     * Get every subject that inherits from a subject, directly or through other subjects
+     *
+     * @param type The ancestor's type
+     * @param identifier The ancestor's identifier
+     * @param contexts The contexts inheritance is checked in, or null to follow inheritance in any context
+     * @return The descendants, nearest first
+     */
+    public Set<Map.Entry<String, String>> getDescendants(String type, String identifier, @Nullable Set<Context> contexts) {
+        final Set<Map.Entry<String, String>> ret = new LinkedHashSet<>();
+        addDescendants(Maps.immutableEntry(type, identifier), contexts, ret);
+        ret.remove(Maps.immutableEntry(type, identifier)); // Present if there is an inheritance loop
+        return ret;
+    }
+
+    /**
+     * Add every descendant of a subject not already present to a set. Descendants of subjects that are already
+     * present are not visited again, so one set can gather the descendants of several subjects in a single walk.
+     *
+     * @param key The ancestor
+     * @param contexts The contexts inheritance is checked in, or null to follow inheritance in any context
+     * @param into The set to add descendants to
+     */
+    public synchronized void addDescendants(Map.Entry<String, String> key, @Nullable Set<Context> contexts, Set<Map.Entry<String, String>> into) {
+        final Queue<Map.Entry<String, String>> queue = new ArrayDeque<>();
+        queue.add(key);
+        Map.Entry<String, String> next;
+        while ((next = queue.poll()) != null) {
+            final Map<Map.Entry<String, String>, Set<Set<Context>>> nextChildren = children.get(next);
+            if (nextChildren == null) {
+                continue;
+            }
+            for (Map.Entry<Map.Entry<String, String>, Set<Set<Context>>> child : nextChildren.entrySet()) {
+                if ((contexts == null || appliesIn(child.getValue(), contexts)) && into.add(child.getKey())) {
+                    queue.add(child.getKey());
+                }
+            }
+        }
+    }
+
+    private static boolean appliesIn(Set<Set<Context>> edgeContexts, Set<Context> contexts) {
+        for (Set<Context> edge : edgeContexts) {
+            if (contexts.containsAll(edge)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.spongepowered.api.service.permission.context.Context;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps running memory estimates for every subject in a data store. Stores call {@link #update} as each subject
+ * changes, so the cost of accounting is proportional to the size of the change, and a report never has to
+ * measure the whole data set.
+ */
+public class MemoryAccounting {
+    private final Map<Map.Entry<String, String>, SubjectEstimate> subjects = new HashMap<>();
+    private final Map<Set<Context>, long[]> blockBytes = new HashMap<>();
+    private final Map<Context, int[]> contextRefs = new HashMap<>();
+    private long subjectBytes, sharedBytes;
+
+    private static class SubjectEstimate {
+        private final long total;
+        private final Map<Set<Context>, Long> blocks;
+
+        private SubjectEstimate(long total, Map<Set<Context>, Long> blocks) {
+            this.total = total;
+            this.blocks = blocks;
+        }
+    }
+
+    /**
+     * Record the new state of a subject's data
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param data The subject's new data, or null if it was removed
+     */
+    public void update(String type, String identifier, @Nullable ImmutableOptionSubjectData data) {
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        // Measured before locking, so writers to different subjects only wait for each other to apply totals
+        final SubjectEstimate estimate = data == null ? null : measure(data);
+        synchronized (this) {
+            final SubjectEstimate old = estimate == null ? subjects.remove(key) : subjects.put(key, estimate);
+            if (old != null) {
+                apply(old, -1);
+            }
+            if (estimate != null) {
+                apply(estimate, 1);
+            }
+        }
+    }
+
+    /**
+     * Discard all estimates and measure every subject in a snapshot
+     *
+     * @param snapshot The data to measure
+     */
+    public synchronized void reset(DataSnapshot snapshot) {
+        subjects.clear();
+        blockBytes.clear();
+        contextRefs.clear();
+        subjectBytes = 0;
+        sharedBytes = 0;
+        for (String type : snapshot.getTypes()) {
+            for (Map.Entry<String, ImmutableOptionSubjectData> ent : snapshot.getAll(type).entrySet()) {
+                update(type, ent.getKey(), ent.getValue());
+            }
+        }
+    }
+
+    private static SubjectEstimate measure(ImmutableOptionSubjectData data) {
+        final ImmutableMap.Builder<Set<Context>, Long> blocks = ImmutableMap.builder();
+        for (Set<Context> contexts : MemoryEstimator.getContextSets(data)) {
+            blocks.put(contexts, MemoryEstimator.estimateBlock(data, contexts));
+        }
+        return new SubjectEstimate(MemoryEstimator.estimate(data), blocks.build());
+    }
+
+    private void apply(SubjectEstimate estimate, int sign) {
+        subjectBytes += sign * estimate.total;
+        for (Map.Entry<Set<Context>, Long> block : estimate.blocks.entrySet()) {
+            long[] bytes = blockBytes.get(block.getKey());
+            if (bytes == null) {
+                bytes = new long[2]; // bytes, block count
+                blockBytes.put(block.getKey(), bytes);
+            }
+            bytes[0] += sign * block.getValue();
+            bytes[1] += sign;
+            if (bytes[1] == 0) {
+                blockBytes.remove(block.getKey());
+            }
+
+            // Contexts are shared by every block using them, so count each one once while anything references it
+            for (Context ctx : block.getKey()) {
+                int[] refs = contextRefs.get(ctx);
+                if (refs == null) {
+                    refs = new int[1];
+                    contextRefs.put(ctx, refs);
+                }
+                if (refs[0] == 0 && sign > 0) {
+                    sharedBytes += MemoryEstimator.estimateContext(ctx);
+                }
+                refs[0] += sign;
+                if (refs[0] == 0) {
+                    sharedBytes -= MemoryEstimator.estimateContext(ctx);
+                    contextRefs.remove(ctx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the estimated size of one subject
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @return The estimated size in bytes, or 0 if the subject has no data
+     */
+    public synchronized long getBytes(String type, String identifier) {
+        final SubjectEstimate estimate = subjects.get(Maps.immutableEntry(type, identifier));
+        return estimate == null ? 0 : estimate.total;
+    }
+
+    public synchronized long getTotalBytes() {
+        return subjectBytes + sharedBytes;
+    }
+
+    /**
+     * Summarize current estimates
+     *
+     * @param topN The number of heaviest subjects and context blocks to include
+     * @return The report
+     */
+    public synchronized MemoryReport report(int topN) {
+        final MemoryReport.Builder builder = new MemoryReport.Builder(topN, subjectBytes, sharedBytes, subjects.size());
+        for (Map.Entry<Map.Entry<String, String>, SubjectEstimate> ent : subjects.entrySet()) {
+            builder.offerSubject(ent.getKey().getKey(), ent.getKey().getValue(), ent.getValue().total);
+        }
+        for (Map.Entry<Set<Context>, long[]> ent : blockBytes.entrySet()) {
+            builder.offerBlock(ent.getKey(), ent.getValue()[0], ent.getValue()[1]);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rough shallow-and-owned heap size estimates for permissions data, assuming a 64-bit JVM with compressed
+ * references. Estimates are meant for comparing subjects and tracking trends, not for exact accounting.
+ *
+ * <p>Objects that are shared between subjects are not counted against any one of them: {@link Tristate} values,
+ * {@link Context} instances (see {@link #estimateContext(Context)}) and parent type names.
+ */
+public final class MemoryEstimator {
+    static final int OBJECT_HEADER = 12, REFERENCE = 4, ALIGNMENT = 8;
+    static final int MAP_BASE = 48, MAP_ENTRY = 32, LIST_BASE = 24, SET_BASE = 48, PAIR = 24;
+
+    private MemoryEstimator() {
+    }
+
+    static long align(long size) {
+        return (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+
+    /**
+     * Estimate the size of a string and its character array
+     *
+     * @param str The string to measure
+     * @return The estimated size in bytes
+     */
+    public static long estimateString(String str) {
+        return str == null ? 0 : align(OBJECT_HEADER + 3 * 4) + align(OBJECT_HEADER + 4 + 2L * str.length());
+    }
+
+    /**
+     * Estimate the size of one shared context instance
+     *
+     * @param context The context to measure
+     * @return The estimated size in bytes
+     */
+    public static long estimateContext(Context context) {
+        return align(OBJECT_HEADER + 2 * REFERENCE) + estimateString(context.getType()) + estimateString(context.getName());
+    }
+
+    /**
+     * Estimate the size of the data held for one context block, including the set holding its contexts but not the
+     * contexts themselves
+     *
+     * @param data The subject data
+     * @param contexts The context block to measure
+     * @return The estimated size in bytes
+     */
+    public static long estimateBlock(ImmutableOptionSubjectData data, Set<Context> contexts) {
+        long size = MAP_ENTRY + SET_BASE + (long) contexts.size() * REFERENCE + align(OBJECT_HEADER + 4 * REFERENCE);
+        final Map<String, Tristate> permissions = data.getPermissions(contexts);
+        if (permissions != null) {
+            size += MAP_BASE;
+            for (String node : permissions.keySet()) {
+                size += MAP_ENTRY + estimateString(node);
+            }
+        }
+        final Map<String, String> options = data.getOptions(contexts);
+        if (options != null) {
+            size += MAP_BASE;
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                size += MAP_ENTRY + estimateString(option.getKey()) + estimateString(option.getValue());
+            }
+        }
+        final List<Map.Entry<String, String>> parents = data.getParents(contexts);
+        if (parents != null) {
+            size += LIST_BASE;
+            for (Map.Entry<String, String> parent : parents) {
+                size += REFERENCE + PAIR + estimateString(parent.getValue());
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Every context set holding any data for a subject
+     */
+    static Set<Set<Context>> getContextSets(ImmutableOptionSubjectData data) {
+        final Set<Set<Context>> ret = new HashSet<>(data.getAllPermissions().keySet());
+        ret.addAll(data.getAllOptions().keySet());
+        ret.addAll(data.getAllParents().keySet());
+        return ret;
+    }
+
+    /**
+     * Estimate the size of one subject's data, not counting shared objects
+     *
+     * @param data The data to measure
+     * @return The estimated size in bytes
+     */
+    public static long estimate(ImmutableOptionSubjectData data) {
+        long size = align(OBJECT_HEADER + 2 * REFERENCE) + MAP_BASE;
+        for (Set<Context> contexts : getContextSets(data)) {
+            size += estimateBlock(data, contexts);
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the size of a cache map from strings to shared values, such as resolved permissions
+     *
+     * @param map The map to measure
+     * @return The estimated size in bytes
+     */
+    public static long estimateStringKeyed(Map<String, ?> map) {
+        long size = MAP_BASE;
+        for (Map.Entry<String, ?> ent : map.entrySet()) {
+            size += MAP_ENTRY + estimateString(ent.getKey());
+            if (ent.getValue() instanceof String) {
+                size += estimateString((String) ent.getValue());
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableList;
+import org.spongepowered.api.service.permission.context.Context;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A summary of estimated memory use, as produced by {@link MemoryAccounting#report(int)}
+ */
+public class MemoryReport {
+    private final long subjectBytes, sharedBytes;
+    private final int subjectCount;
+    private final List<Entry> heaviestSubjects, heaviestBlocks;
+
+    MemoryReport(long subjectBytes, long sharedBytes, int subjectCount, List<Entry> heaviestSubjects, List<Entry> heaviestBlocks) {
+        this.subjectBytes = subjectBytes;
+        this.sharedBytes = sharedBytes;
+        this.subjectCount = subjectCount;
+        this.heaviestSubjects = heaviestSubjects;
+        this.heaviestBlocks = heaviestBlocks;
+    }
+
+    public long getTotalBytes() {
+        return subjectBytes + sharedBytes;
+    }
+
+    /**
+     * Bytes used by objects shared between subjects, such as contexts
+     *
+     * @return The shared bytes
+     */
+    public long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    public int getSubjectCount() {
+        return subjectCount;
+    }
+
+    /**
+     * The subjects using the most memory, heaviest first. Keys are {@code type:identifier}.
+     *
+     * @return The heaviest subjects
+     */
+    public List<Entry> getHeaviestSubjects() {
+        return heaviestSubjects;
+    }
+
+    /**
+     * The context sets whose blocks use the most memory across all subjects, heaviest first
+     *
+     * @return The heaviest context blocks
+     */
+    public List<Entry> getHeaviestBlocks() {
+        return heaviestBlocks;
+    }
+
+    public void writeTo(Appendable out) throws IOException {
+        out.append("Estimated total: ").append(String.valueOf(getTotalBytes())).append(" bytes in ")
+                .append(String.valueOf(subjectCount)).append(" subjects (")
+                .append(String.valueOf(sharedBytes)).append(" bytes shared)\n");
+        out.append("Heaviest subjects:\n");
+        for (Entry entry : heaviestSubjects) {
+            out.append("  ").append(entry.getKey()).append(": ").append(String.valueOf(entry.getBytes())).append(" bytes\n");
+        }
+        out.append("Heaviest context blocks:\n");
+        for (Entry entry : heaviestBlocks) {
+            out.append("  ").append(entry.getKey()).append(": ").append(String.valueOf(entry.getBytes())).append(" bytes in ")
+                    .append(String.valueOf(entry.getCount())).append(" blocks, ")
+                    .append(String.valueOf(entry.getBytes() / Math.max(1, entry.getCount()))).append(" bytes per block\n");
+        }
+    }
+
+    public static class Entry {
+        private final String key;
+        private final long bytes, count;
+
+        Entry(String key, long bytes, long count) {
+            this.key = key;
+            this.bytes = bytes;
+            this.count = count;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * The number of items contributing to this entry: 1 for a subject, the number of blocks for a context set
+         *
+         * @return The item count
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static final Comparator<Entry> BY_BYTES = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.bytes < b.bytes ? -1 : a.bytes == b.bytes ? 0 : 1;
+        }
+    };
+
+    static class Builder {
+        private final int topN;
+        private final long subjectBytes, sharedBytes;
+        private final int subjectCount;
+        private final PriorityQueue<Entry> subjects, blocks;
+
+        Builder(int topN, long subjectBytes, long sharedBytes, int subjectCount) {
+            this.topN = topN;
+            this.subjectBytes = subjectBytes;
+            this.sharedBytes = sharedBytes;
+            this.subjectCount = subjectCount;
+            this.subjects = new PriorityQueue<>(Math.max(1, topN + 1), BY_BYTES);
+            this.blocks = new PriorityQueue<>(Math.max(1, topN + 1), BY_BYTES);
+        }
+
+        private void offer(PriorityQueue<Entry> queue, Entry entry) {
+            if (topN <= 0) {
+                return;
+            }
+            if (queue.size() < topN) {
+                queue.add(entry);
+            } else if (BY_BYTES.compare(entry, queue.peek()) > 0) {
+                queue.poll();
+                queue.add(entry);
+            }
+        }
+
+        void offerSubject(String type, String identifier, long bytes) {
+            offer(subjects, new Entry(type + ":" + identifier, bytes, 1));
+        }
+
+        void offerBlock(Set<Context> contexts, long bytes, long count) {
+            offer(blocks, new Entry(formatContexts(contexts), bytes, count));
+        }
+
+        private static String formatContexts(Set<Context> contexts) {
+            if (contexts.isEmpty()) {
+                return "global";
+            }
+            final StringBuilder ret = new StringBuilder();
+            for (Context ctx : contexts) {
+                if (ret.length() > 0) {
+                    ret.append(',');
+                }
+                ret.append(ctx.getType()).append('=').append(ctx.getName());
+            }
+            return ret.toString();
+        }
+
+        private static List<Entry> heaviestFirst(PriorityQueue<Entry> queue) {
+            final List<Entry> ret = new ArrayList<>(queue);
+            Collections.sort(ret, Collections.reverseOrder(BY_BYTES));
+            return ImmutableList.copyOf(ret);
+        }
+
+        MemoryReport build() {
+            return new MemoryReport(subjectBytes, sharedBytes, subjectCount, heaviestFirst(subjects), heaviestFirst(blocks));
+        }
+    }
+}
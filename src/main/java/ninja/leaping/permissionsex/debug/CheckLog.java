@@ -0,0 +1,300 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Logs permission checks with little cost to the checking thread. Checking threads only store references to the
+ * check's arguments in a ring buffer slot, copying the context set only if it is not already immutable.
+ * A background thread formats the records and writes them to a {@link Sink}, or hands them unformatted
+ * to a {@link RecordSink}.
+ *
+ * <p>Any number of threads may record at once, claiming slots with a compare-and-set on the write position.
+ * A record is published by setting its slot's sequence number once its fields are written. When the buffer is full,
+ * new records are dropped and counted instead of waiting for the drain to catch up. The number dropped is logged
+ * when the drain next runs.</p>
+ */
+public class CheckLog {
+    private static final long IDLE_SLEEP_MILLIS = 10;
+
+    private final RecordSink sink;
+    private final Filter filter;
+    private final int mask;
+    // Record fields, one element per slot
+    private final long[] times;
+    private final String[] subjects, nodes;
+    private final Object[] contexts;
+    private final Tristate[] results;
+    /**
+     * The sequence number of the record in each slot, plus one. A slot holds a complete record once this is set.
+     */
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong(), dropped = new AtomicLong();
+    private final Thread drainThread;
+    private volatile boolean running;
+
+    /**
+     * Receives formatted check records
+     */
+    public interface Sink {
+        void write(String line);
+    }
+
+    /**
+     * Receives check records as they were made. Only called from the drain thread.
+     */
+    public interface RecordSink {
+        /**
+         * Receive one check
+         *
+         * @param time The time of the check, in milliseconds since the epoch
+         * @param subject The identifier of the subject checked
+         * @param node The permission checked
+         * @param contexts The contexts checked in
+         * @param result The result of the check
+         */
+        void write(long time, String subject, String node, Set<Context> contexts, Tristate result);
+
+        /**
+         * Called before records are written if any were dropped since the last records were written
+         *
+         * @param count The number of records dropped
+         */
+        void dropped(long count);
+    }
+
+    /**
+     * Formats records as lines of text
+     */
+    private static class LineFormatter implements RecordSink {
+        private final Sink sink;
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        private final StringBuilder line = new StringBuilder();
+
+        private LineFormatter(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(long time, String subject, String node, Set<Context> contexts, Tristate result) {
+            line.setLength(0);
+            line.append(timeFormat.format(new Date(time))).append(' ')
+                    .append(subject).append(" checked ").append(node).append(" in [");
+            boolean first = true;
+            for (Context ctx : contexts) {
+                if (!first) {
+                    line.append(", ");
+                }
+                first = false;
+                line.append(ctx.getType()).append(':').append(ctx.getName());
+            }
+            line.append("]: ").append(result);
+            sink.write(line.toString());
+        }
+
+        @Override
+        public void dropped(long count) {
+            sink.write("Dropped " + count + " permission check records because the log could not keep up");
+        }
+    }
+
+    /**
+     * Restricts which checks are recorded. An empty criterion matches every check.
+     */
+    public static class Filter {
+        public static final Filter ALL = new Filter(ImmutableSet.<String>of(), ImmutableList.<String>of(), ImmutableSet.<Context>of());
+
+        private final Set<String> subjects;
+        private final List<String> nodePrefixes;
+        private final Set<Context> contexts;
+
+        /**
+         * @param subjects Identifiers of the subjects to record checks on
+         * @param nodePrefixes Prefixes of the permissions to record checks of
+         * @param contexts Contexts that must all be present in a check for it to be recorded
+         */
+        public Filter(Set<String> subjects, List<String> nodePrefixes, Set<Context> contexts) {
+            this.subjects = ImmutableSet.copyOf(subjects);
+            this.nodePrefixes = ImmutableList.copyOf(nodePrefixes);
+            this.contexts = ImmutableSet.copyOf(contexts);
+        }
+
+        public boolean matches(String subject, String node, Set<Context> contexts) {
+            if (!this.subjects.isEmpty() && !this.subjects.contains(subject)) {
+                return false;
+            }
+            if (!this.nodePrefixes.isEmpty()) {
+                boolean found = false;
+                for (String prefix : nodePrefixes) {
+                    if (node.startsWith(prefix)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return this.contexts.isEmpty() || contexts.containsAll(this.contexts);
+        }
+    }
+
+    /**
+     * Create a new check log. Nothing is written to the sink until {@link #start()} is called.
+     *
+     * @param sink Where to write formatted records
+     * @param filter Which checks to record
+     * @param capacity The number of records that may wait to be written. Rounded up to a power of two.
+     */
+    public CheckLog(Sink sink, Filter filter, int capacity) {
+        this(new LineFormatter(sink), filter, capacity);
+    }
+
+    /**
+     * Create a new check log that passes records on unformatted. Nothing is written to the sink until
+     * {@link #start()} is called.
+     *
+     * @param sink Where to write records
+     * @param filter Which checks to record
+     * @param capacity The number of records that may wait to be written. Rounded up to a power of two.
+     */
+    public CheckLog(RecordSink sink, Filter filter, int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        this.sink = sink;
+        this.filter = filter;
+        final int size = Math.max(Integer.highestOneBit(capacity - 1) << 1, 1);
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.subjects = new String[size];
+        this.nodes = new String[size];
+        this.contexts = new Object[size];
+        this.results = new Tristate[size];
+        this.published = new AtomicLongArray(size);
+        this.drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    if (drain() == 0) {
+                        try {
+                            Thread.sleep(IDLE_SLEEP_MILLIS);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                drain();
+            }
+        }, "PEX check log");
+        this.drainThread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        drainThread.start();
+    }
+
+    /**
+     * Stop the drain thread after it has written every record made so far
+     */
+    public void close() {
+        running = false;
+        drainThread.interrupt();
+        try {
+            drainThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record a permission check if it matches this log's filter. Never blocks.
+     *
+     * @param subject The identifier of the subject checked
+     * @param node The permission checked
+     * @param contexts The contexts checked in
+     * @param result The result of the check
+     */
+    public void record(String subject, String node, Set<Context> contexts, Tristate result) {
+        if (!filter.matches(subject, node, contexts)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail.get() > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        final int slot = (int) (seq & mask);
+        this.times[slot] = System.currentTimeMillis();
+        this.subjects[slot] = subject;
+        this.nodes[slot] = node;
+        // Contexts are usually already immutable, such as a subject's active contexts, so this rarely copies
+        this.contexts[slot] = contexts instanceof ImmutableSet ? contexts : ImmutableSet.copyOf(contexts);
+        this.results[slot] = result;
+        published.lazySet(slot, seq + 1);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Write every published record to the sink. Only called from one thread at a time.
+     *
+     * @return The number of records written
+     */
+    int drain() {
+        final long dropped = this.dropped.getAndSet(0);
+        if (dropped > 0) {
+            sink.dropped(dropped);
+        }
+        long seq = tail.get();
+        int count = 0;
+        while (published.get((int) (seq & mask)) == seq + 1) {
+            final int slot = (int) (seq & mask);
+            final String subject = subjects[slot], node = nodes[slot];
+            @SuppressWarnings("unchecked")
+            final Set<Context> contexts = (Set<Context>) this.contexts[slot];
+            final Tristate result = results[slot];
+            // Release references before the slot can be claimed again
+            subjects[slot] = null;
+            nodes[slot] = null;
+            this.contexts[slot] = null;
+            results[slot] = null;
+            final long time = times[slot];
+            tail.lazySet(++seq);
+            sink.write(time, subject, node, contexts, result);
+            ++count;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.service.permission.context.Context;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records one in every N permission checks into a fixed-size ring, overwriting the oldest samples.
+ * Recording never blocks: each sample claims a slot with a single atomic increment.
+ */
+public class CheckSampler {
+    private final int rate;
+    private final AtomicReferenceArray<Sample> samples;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    /**
+     * Deliberately not atomic -- a lost increment only shifts which check gets sampled
+     */
+    private int counter;
+
+    /**
+     * Create a new sampler
+     *
+     * @param rate Record one in every {@code rate} checks
+     * @param capacity The number of samples to keep. Rounded up to a power of two.
+     */
+    public CheckSampler(int rate, int capacity) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1");
+        }
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        this.rate = rate;
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.samples = new AtomicReferenceArray<>(Math.max(size, 1));
+        this.mask = this.samples.length() - 1;
+    }
+
+    /**
+     * Advance the check counter, returning whether the current check should be sampled
+     *
+     * @return Whether to sample
+     */
+    public boolean shouldSample() {
+        return ++counter % rate == 0;
+    }
+
+    public void record(String subject, String node, Set<Context> contexts, int depth, long elapsedNanos) {
+        samples.set((int) (cursor.getAndIncrement() & mask), new Sample(subject, node, ImmutableSet.copyOf(contexts), depth, elapsedNanos));
+    }
+
+    /**
+     * Get a copy of every sample currently held
+     *
+     * @return The samples
+     */
+    public List<Sample> getSamples() {
+        final List<Sample> ret = new ArrayList<>(samples.length());
+        for (int i = 0; i < samples.length(); ++i) {
+            final Sample sample = samples.get(i);
+            if (sample != null) {
+                ret.add(sample);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Aggregate the current samples
+     *
+     * @param limit The maximum number of entries in each table of the report
+     * @return The report
+     */
+    public Report report(int limit) {
+        final Map<String, Stat> nodes = new HashMap<>(), subjects = new HashMap<>();
+        final List<Sample> samples = getSamples();
+        for (Sample sample : samples) {
+            stat(nodes, sample.getNode()).add(sample);
+            stat(subjects, sample.getSubject()).add(sample);
+        }
+        return new Report(samples.size(), top(nodes, limit, Stat.BY_COUNT), top(subjects, limit, Stat.BY_MEAN));
+    }
+
+    private static Stat stat(Map<String, Stat> stats, String key) {
+        Stat ret = stats.get(key);
+        if (ret == null) {
+            ret = new Stat(key);
+            stats.put(key, ret);
+        }
+        return ret;
+    }
+
+    private static List<Stat> top(Map<String, Stat> stats, int limit, Comparator<Stat> order) {
+        final List<Stat> ret = new ArrayList<>(stats.values());
+        Collections.sort(ret, order);
+        return ImmutableList.copyOf(ret.subList(0, Math.min(limit, ret.size())));
+    }
+
+    public static class Sample {
+        private final String subject, node;
+        private final Set<Context> contexts;
+        private final int depth;
+        private final long elapsedNanos;
+
+        Sample(String subject, String node, Set<Context> contexts, int depth, long elapsedNanos) {
+            this.subject = subject;
+            this.node = node;
+            this.contexts = contexts;
+            this.depth = depth;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public Set<Context> getContexts() {
+            return contexts;
+        }
+
+        /**
+         * The depth of the inheritance graph that the check was resolved through
+         *
+         * @return The resolution depth
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    public static class Stat {
+        static final Comparator<Stat> BY_COUNT = new Comparator<Stat>() {
+            @Override
+            public int compare(Stat a, Stat b) {
+                return a.count == b.count ? 0 : a.count > b.count ? -1 : 1;
+            }
+        };
+        static final Comparator<Stat> BY_MEAN = new Comparator<Stat>() {
+            @Override
+            public int compare(Stat a, Stat b) {
+                final long aMean = a.getMeanNanos(), bMean = b.getMeanNanos();
+                return aMean == bMean ? 0 : aMean > bMean ? -1 : 1;
+            }
+        };
+
+        private final String key;
+        private long count, totalNanos, maxNanos;
+        private int maxDepth;
+
+        Stat(String key) {
+            this.key = key;
+        }
+
+        void add(Sample sample) {
+            ++count;
+            totalNanos += sample.getElapsedNanos();
+            maxNanos = Math.max(maxNanos, sample.getElapsedNanos());
+            maxDepth = Math.max(maxDepth, sample.getDepth());
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+    }
+
+    public static class Report {
+        private final int sampleCount;
+        private final List<Stat> hottestNodes, slowestSubjects;
+
+        Report(int sampleCount, List<Stat> hottestNodes, List<Stat> slowestSubjects) {
+            this.sampleCount = sampleCount;
+            this.hottestNodes = hottestNodes;
+            this.slowestSubjects = slowestSubjects;
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * The most frequently checked nodes, most frequent first
+         *
+         * @return The hottest nodes
+         */
+        public List<Stat> getHottestNodes() {
+            return hottestNodes;
+        }
+
+        /**
+         * The subjects with the highest mean check time, slowest first
+         *
+         * @return The slowest subjects
+         */
+        public List<Stat> getSlowestSubjects() {
+            return slowestSubjects;
+        }
+
+        public void writeCsv(Appendable out) throws IOException {
+            out.append("table,key,count,total_nanos,mean_nanos,max_nanos,max_depth\n");
+            writeCsv(out, "node", hottestNodes);
+            writeCsv(out, "subject", slowestSubjects);
+        }
+
+        private static void writeCsv(Appendable out, String table, List<Stat> stats) throws IOException {
+            for (Stat stat : stats) {
+                out.append(table).append(',')
+                        .append('"').append(stat.getKey().replace("\"", "\"\"")).append('"').append(',')
+                        .append(String.valueOf(stat.getCount())).append(',')
+                        .append(String.valueOf(stat.getTotalNanos())).append(',')
+                        .append(String.valueOf(stat.getMeanNanos())).append(',')
+                        .append(String.valueOf(stat.getMaxNanos())).append(',')
+                        .append(String.valueOf(stat.getMaxDepth())).append('\n');
+            }
+        }
+
+        public void writeJson(Appendable out) throws IOException {
+            out.append("{\"samples\":").append(String.valueOf(sampleCount)).append(",\"hottest-nodes\":");
+            writeJson(out, hottestNodes);
+            out.append(",\"slowest-subjects\":");
+            writeJson(out, slowestSubjects);
+            out.append('}');
+        }
+
+        private static void writeJson(Appendable out, List<Stat> stats) throws IOException {
+            out.append('[');
+            boolean first = true;
+            for (Stat stat : stats) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append("{\"key\":");
+                writeJsonString(out, stat.getKey());
+                out.append(",\"count\":").append(String.valueOf(stat.getCount()))
+                        .append(",\"total-nanos\":").append(String.valueOf(stat.getTotalNanos()))
+                        .append(",\"mean-nanos\":").append(String.valueOf(stat.getMeanNanos()))
+                        .append(",\"max-nanos\":").append(String.valueOf(stat.getMaxNanos()))
+                        .append(",\"max-depth\":").append(String.valueOf(stat.getMaxDepth()))
+                        .append('}');
+            }
+            out.append(']');
+        }
+
+        private static void writeJsonString(Appendable out, String value) throws IOException {
+            out.append('"');
+            for (int i = 0; i < value.length(); ++i) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact recording of permission checks, captured from live traffic through a {@link CheckLog} and replayed
+ * by {@link TraceReplay}.
+ *
+ * <p>Subjects, nodes and context sets are written in full the first time they appear, and by index after that.
+ * A trace file holds a header followed by records, each starting with a tag byte:</p>
+ * <pre>
+ * int magic, int format version, long capture start time in milliseconds
+ * 0: UTF subject                                  defines the next subject index
+ * 1: UTF node                                     defines the next node index
+ * 2: varint size, (UTF type, UTF name)*           defines the next context set index
+ * 3: varint milliseconds since the previous check, varint subject, varint node, varint context set, byte result
+ * 4: varint count                                 checks dropped because the writer could not keep up
+ * </pre>
+ */
+public class CheckTrace {
+    private static final int MAGIC = 0x50455854, FORMAT_VERSION = 1; // "PEXT"
+    private static final int DEFINE_SUBJECT = 0, DEFINE_NODE = 1, DEFINE_CONTEXTS = 2, CHECK = 3, DROPPED = 4;
+
+    private final long startTime, dropped;
+    private final List<String> subjects, nodes;
+    private final List<Set<Context>> contexts;
+    private final int size;
+    private final long[] times;
+    private final int[] checkSubjects, checkNodes, checkContexts;
+    private final byte[] results;
+
+    private CheckTrace(long startTime, long dropped, List<String> subjects, List<String> nodes, List<Set<Context>> contexts,
+                       int size, long[] times, int[] checkSubjects, int[] checkNodes, int[] checkContexts, byte[] results) {
+        this.startTime = startTime;
+        this.dropped = dropped;
+        this.subjects = subjects;
+        this.nodes = nodes;
+        this.contexts = contexts;
+        this.size = size;
+        this.times = times;
+        this.checkSubjects = checkSubjects;
+        this.checkNodes = checkNodes;
+        this.checkContexts = checkContexts;
+        this.results = results;
+    }
+
+    /**
+     * Get the time capture started
+     *
+     * @return The start time, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the number of checks that were made while capturing but are missing from the trace
+     *
+     * @return The number of dropped checks
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the time a check was made
+     *
+     * @param index The index of the check
+     * @return Milliseconds between the start of capture and the check
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Get the position of a check's subject in {@link #getSubjects()}
+     *
+     * @param index The index of the check
+     * @return The subject's index
+     */
+    public int getSubjectIndex(int index) {
+        return checkSubjects[index];
+    }
+
+    public String getSubject(int index) {
+        return subjects.get(checkSubjects[index]);
+    }
+
+    public String getNode(int index) {
+        return nodes.get(checkNodes[index]);
+    }
+
+    public Set<Context> getContexts(int index) {
+        return contexts.get(checkContexts[index]);
+    }
+
+    /**
+     * Get the result that was returned when a check was captured
+     *
+     * @param index The index of the check
+     * @return The recorded result
+     */
+    public Tristate getResult(int index) {
+        return decodeResult(results[index]);
+    }
+
+    /**
+     * Get every distinct subject checked in this trace
+     *
+     * @return The subject identifiers
+     */
+    public List<String> getSubjects() {
+        return subjects;
+    }
+
+    private static int encodeResult(Tristate result) {
+        return result == Tristate.TRUE ? 1 : result == Tristate.FALSE ? 0 : 2;
+    }
+
+    private static Tristate decodeResult(int result) {
+        return result == 1 ? Tristate.TRUE : result == 0 ? Tristate.FALSE : Tristate.UNDEFINED;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            ret |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new IOException("Malformed variable-length number in trace");
+    }
+
+    /**
+     * Read a whole trace into memory. A record cut short at the end of the file, as left by a crash during capture,
+     * is ignored.
+     *
+     * @param file The trace file
+     * @return The trace
+     * @throws IOException if the file could not be read, or is not a trace
+     */
+    public static CheckTrace read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a permission check trace");
+            }
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported trace format version " + version + " in " + file);
+            }
+            final long startTime = in.readLong();
+            final List<String> subjects = new ArrayList<>(), nodes = new ArrayList<>();
+            final List<Set<Context>> contexts = new ArrayList<>();
+            long dropped = 0, time = 0;
+            int size = 0;
+            long[] times = new long[1024];
+            int[] checkSubjects = new int[1024], checkNodes = new int[1024], checkContexts = new int[1024];
+            byte[] results = new byte[1024];
+            try {
+                int tag;
+                while ((tag = in.read()) != -1) {
+                    switch (tag) {
+                        case DEFINE_SUBJECT:
+                            subjects.add(in.readUTF());
+                            break;
+                        case DEFINE_NODE:
+                            nodes.add(in.readUTF());
+                            break;
+                        case DEFINE_CONTEXTS:
+                            final ImmutableSet.Builder<Context> contextSet = ImmutableSet.builder();
+                            for (long i = readVarLong(in); i > 0; --i) {
+                                contextSet.add(new Context(in.readUTF(), in.readUTF()));
+                            }
+                            contexts.add(contextSet.build());
+                            break;
+                        case CHECK:
+                            time += readVarLong(in);
+                            final int subject = (int) readVarLong(in), node = (int) readVarLong(in), contextIdx = (int) readVarLong(in);
+                            final byte result = in.readByte();
+                            if (subject >= subjects.size() || node >= nodes.size() || contextIdx >= contexts.size()) {
+                                throw new IOException("Check in " + file + " refers to an undefined subject, node or context set");
+                            }
+                            if (size == times.length) {
+                                final int newLength = size * 2;
+                                times = Arrays.copyOf(times, newLength);
+                                checkSubjects = Arrays.copyOf(checkSubjects, newLength);
+                                checkNodes = Arrays.copyOf(checkNodes, newLength);
+                                checkContexts = Arrays.copyOf(checkContexts, newLength);
+                                results = Arrays.copyOf(results, newLength);
+                            }
+                            times[size] = time;
+                            checkSubjects[size] = subject;
+                            checkNodes[size] = node;
+                            checkContexts[size] = contextIdx;
+                            results[size] = result;
+                            ++size;
+                            break;
+                        case DROPPED:
+                            dropped += readVarLong(in);
+                            break;
+                        default:
+                            throw new IOException("Unknown record type " + tag + " in " + file);
+                    }
+                }
+            } catch (EOFException e) {
+                // Incomplete final record
+            }
+            return new CheckTrace(startTime, dropped, subjects, nodes, contexts, size, times, checkSubjects, checkNodes, checkContexts, results);
+        }
+    }
+
+    /**
+     * Writes the checks received from a {@link CheckLog} to a trace file. Once writing fails, later checks are
+     * discarded and the failure is thrown from {@link #close()}.
+     */
+    public static class Writer implements CheckLog.RecordSink, Closeable {
+        private final DataOutputStream out;
+        private final Map<String, Integer> subjects = new HashMap<>(), nodes = new HashMap<>();
+        private final Map<Set<Context>, Integer> contexts = new HashMap<>();
+        private long lastTime;
+        private IOException failure;
+
+        public Writer(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            this.lastTime = System.currentTimeMillis();
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(lastTime);
+        }
+
+        @Override
+        public synchronized void write(long time, String subject, String node, Set<Context> contexts, Tristate result) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                final int subjectIdx = define(this.subjects, subject, DEFINE_SUBJECT);
+                final int nodeIdx = define(this.nodes, node, DEFINE_NODE);
+                Integer contextIdx = this.contexts.get(contexts);
+                if (contextIdx == null) {
+                    contextIdx = this.contexts.size();
+                    this.contexts.put(contexts, contextIdx);
+                    out.writeByte(DEFINE_CONTEXTS);
+                    writeVarLong(out, contexts.size());
+                    for (Context ctx : contexts) {
+                        out.writeUTF(ctx.getType());
+                        out.writeUTF(ctx.getName());
+                    }
+                }
+                out.writeByte(CHECK);
+                // Records from racing threads can be drained slightly out of time order
+                writeVarLong(out, Math.max(time - lastTime, 0));
+                lastTime = Math.max(time, lastTime);
+                writeVarLong(out, subjectIdx);
+                writeVarLong(out, nodeIdx);
+                writeVarLong(out, contextIdx);
+                out.writeByte(encodeResult(result));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private int define(Map<String, Integer> dictionary, String value, int tag) throws IOException {
+            Integer ret = dictionary.get(value);
+            if (ret == null) {
+                ret = dictionary.size();
+                dictionary.put(value, ret);
+                out.writeByte(tag);
+                out.writeUTF(value);
+            }
+            return ret;
+        }
+
+        @Override
+        public synchronized void dropped(long count) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                out.writeByte(DROPPED);
+                writeVarLong(out, count);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Flush and close the trace file. Call after closing the log that writes to this trace.
+         *
+         * @throws IOException if any part of the trace could not be written
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
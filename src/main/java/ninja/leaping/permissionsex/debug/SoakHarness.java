@@ -0,0 +1,616 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataTransaction;
+import ninja.leaping.permissionsex.backends.file.FileDataStore;
+import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import ninja.leaping.permissionsex.sponge.PEXSubjectCollection;
+import ninja.leaping.permissionsex.sponge.PermissionsExPlugin;
+import ninja.leaping.permissionsex.sponge.PermissionsExSubject;
+import ninja.leaping.permissionsex.sponge.SubjectCollections;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A standalone load test that runs simulated players against a file data store from many threads at once, then
+ * reports throughput, latency percentiles and any broken invariants.
+ *
+ * <p>Each player belongs to one worker thread, and repeatedly checks permissions, reads options, switches worlds
+ * or edits its own data. Checks and option reads go through the player's {@link PermissionsExSubject}, backed by the
+ * store, so they use the same resolution caches as the plugin, and edits invalidate them the same way.
+ * The invariants are:
+ * <ul>
+ *     <li>a permission that is only ever granted never resolves to anything else,</li>
+ *     <li>a check made right after an edit sees the edit,</li>
+ *     <li>no edit is lost: each user's edit counter equals the number of edits acknowledged for it, and</li>
+ *     <li>data read back from disk after closing equals the final in-memory data.</li>
+ * </ul>
+ *
+ * <p>Run with {@code key=value} arguments: {@code players}, {@code threads}, {@code seconds}, {@code groups},
+ * {@code edit-percent}, {@code sharded} and {@code journal}.
+ *
+ * <p>With {@code mode=writers}, instead measures how writes scale across threads: {@code writes} writes to distinct
+ * players are timed from one thread and then from {@code threads} threads, with every sixteenth write being a
+ * transaction over two shared counters that locks them in alternating orders.
+ */
+public class SoakHarness {
+    private static final String[] WORLDS = {"world", "world_nether", "world_the_end", "creative"};
+    private static final String[] SERVERS = {"lobby", "survival"};
+    private static final String EDIT_COUNTER = "soak-edits";
+
+    private enum Op {
+        CHECK, OPTION, SWITCH, EDIT
+    }
+
+    private final int players, threads, seconds, groups, editPercent;
+    private final boolean sharded, journal;
+    private final AtomicLong violations = new AtomicLong(), staleReads = new AtomicLong();
+    private final AtomicLong[] acknowledgedEdits;
+
+    public SoakHarness(int players, int threads, int seconds, int groups, int editPercent, boolean sharded, boolean journal) {
+        this.players = players;
+        this.threads = threads;
+        this.seconds = seconds;
+        this.groups = groups;
+        this.editPercent = editPercent;
+        this.sharded = sharded;
+        this.journal = journal;
+        this.acknowledgedEdits = new AtomicLong[players];
+        for (int i = 0; i < players; ++i) {
+            acknowledgedEdits[i] = new AtomicLong();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = 500, threads = Runtime.getRuntime().availableProcessors(), seconds = 30, groups = 20, editPercent = 2, writes = 8000;
+        boolean sharded = false, journal = false;
+        String mode = "soak";
+        for (String arg : args) {
+            final int split = arg.indexOf('=');
+            if (split == -1) {
+                System.err.println("Arguments must be key=value, got " + arg);
+                System.exit(1);
+            }
+            final String key = arg.substring(0, split), value = arg.substring(split + 1);
+            switch (key) {
+                case "players": players = Integer.parseInt(value); break;
+                case "threads": threads = Integer.parseInt(value); break;
+                case "seconds": seconds = Integer.parseInt(value); break;
+                case "groups": groups = Integer.parseInt(value); break;
+                case "edit-percent": editPercent = Integer.parseInt(value); break;
+                case "sharded": sharded = Boolean.parseBoolean(value); break;
+                case "journal": journal = Boolean.parseBoolean(value); break;
+                case "mode": mode = value; break;
+                case "writes": writes = Integer.parseInt(value); break;
+                default:
+                    System.err.println("Unknown argument " + key);
+                    System.exit(1);
+            }
+        }
+        final SoakHarness harness = new SoakHarness(players, threads, seconds, groups, editPercent, sharded, journal);
+        final boolean passed;
+        switch (mode) {
+            case "soak": passed = harness.run(System.out); break;
+            case "writers": passed = harness.measureWriterScaling(System.out, writes); break;
+            default:
+                System.err.println("Unknown mode " + mode + ", expected soak or writers");
+                System.exit(1);
+                return;
+        }
+        System.exit(passed ? 0 : 2);
+    }
+
+    private static String userId(int player) {
+        return "player-" + player;
+    }
+
+    private static String groupId(int group) {
+        return "group-" + group;
+    }
+
+    private static Set<Context> contexts(String world, String server) {
+        return ImmutableSet.of(new Context("world", world), new Context("server", server));
+    }
+
+    private PermissionsEx open(File dir) throws PermissionsLoadingException {
+        return openFileStore(dir, "soak", sharded, journal);
+    }
+
+    /**
+     * Start a manager whose only backend is a file store in {@code permissions.conf} in a directory
+     *
+     * @param dir The directory to keep the store's files in
+     * @param name The name of the store
+     * @param sharded Whether the store uses the sharded layout
+     * @param journal Whether the store journals writes
+     * @return The started manager
+     * @throws PermissionsLoadingException if the store could not be initialized
+     */
+    static PermissionsEx openFileStore(File dir, String name, boolean sharded, boolean journal) throws PermissionsLoadingException {
+        final ConfigurationNode storeConfig = SimpleConfigurationNode.root();
+        storeConfig.getNode("file").setValue("permissions.conf");
+        storeConfig.getNode("sharded").setValue(sharded);
+        storeConfig.getNode("journal").setValue(journal);
+        final DataStore store = new FileDataStore.Factory().createDataStore(name, storeConfig);
+        return new PermissionsEx(new PermissionsExConfiguration() {
+            @Override
+            public DataStore getDefaultDataStore() {
+                return store;
+            }
+        }, dir);
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create temporary directory " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Run the soak test, printing results as it goes
+     *
+     * @param out Where to print progress and results
+     * @return Whether every invariant held
+     * @throws Exception if the test could not be set up or torn down
+     */
+    public boolean run(PrintStream out) throws Exception {
+        final File dir = createTempDir("pex-soak");
+        try {
+            PermissionsEx manager = open(dir);
+            FileDataStore store = (FileDataStore) manager.getActiveDataStore();
+            populate(store);
+            out.println("Populated " + groups + " groups and " + players + " players in " + dir);
+
+            final SubjectCollections subjects = new SubjectCollections(store, new PermissionsExPlugin());
+            final Worker[] workers = new Worker[threads];
+            final CountDownLatch done = new CountDownLatch(threads);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < threads; ++i) {
+                workers[i] = new Worker(i, store, subjects.get("user"), deadline, done);
+                new Thread(workers[i], "PEX soak worker #" + i).start();
+            }
+            done.await();
+
+            final LatencyHistogram[] totals = new LatencyHistogram[Op.values().length];
+            for (int i = 0; i < totals.length; ++i) {
+                totals[i] = new LatencyHistogram();
+            }
+            long operations = 0;
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    throw new Exception("Worker failed", worker.failure);
+                }
+                for (int i = 0; i < totals.length; ++i) {
+                    totals[i].add(worker.latencies[i]);
+                    operations += worker.latencies[i].getCount();
+                }
+            }
+            out.printf("%d operations on %d threads in %ds: %.0f ops/s%n", operations, threads, seconds, operations / (double) seconds);
+            for (Op op : Op.values()) {
+                final LatencyHistogram histogram = totals[op.ordinal()];
+                out.printf("  %-7s count=%-10d p50=%-8s p99=%-8s p999=%-8s max=%s%n", op, histogram.getCount(),
+                        formatNanos(histogram.getPercentile(0.5)), formatNanos(histogram.getPercentile(0.99)),
+                        formatNanos(histogram.getPercentile(0.999)), formatNanos(histogram.getMax()));
+            }
+
+            boolean passed = true;
+            if (violations.get() > 0) {
+                out.println("FAIL: " + violations.get() + " checks resolved an always-granted permission as not granted");
+                passed = false;
+            }
+            if (staleReads.get() > 0) {
+                out.println("FAIL: " + staleReads.get() + " checks right after an edit did not see it");
+                passed = false;
+            }
+            final DataSnapshot finalData = store.getSnapshot();
+            for (int player = 0; player < players; ++player) {
+                final ImmutableOptionSubjectData data = finalData.get("user", userId(player));
+                final String counter = data == null || data.getOptions(ImmutableSet.<Context>of()) == null ? null
+                        : data.getOptions(ImmutableSet.<Context>of()).get(EDIT_COUNTER);
+                final long recorded = counter == null ? 0 : Long.parseLong(counter);
+                if (recorded != acknowledgedEdits[player].get()) {
+                    out.println("FAIL: " + userId(player) + " records " + recorded + " edits, but " + acknowledgedEdits[player].get() + " were acknowledged");
+                    passed = false;
+                }
+            }
+
+            manager.close();
+            manager = open(dir);
+            final DataSnapshot reloaded = ((FileDataStore) manager.getActiveDataStore()).getSnapshot();
+            for (String type : finalData.getTypes()) {
+                for (Map.Entry<String, ImmutableOptionSubjectData> ent : finalData.getAll(type).entrySet()) {
+                    final ImmutableOptionSubjectData loaded = reloaded.get(type, ent.getKey());
+                    if (loaded == null || !loaded.getAllPermissions().equals(ent.getValue().getAllPermissions())
+                            || !loaded.getAllOptions().equals(ent.getValue().getAllOptions())
+                            || !loaded.getAllParents().equals(ent.getValue().getAllParents())) {
+                        out.println("FAIL: " + type + " " + ent.getKey() + " differs after reloading from disk");
+                        passed = false;
+                    }
+                }
+            }
+            manager.close();
+            out.println(passed ? "PASS" : "FAILED");
+            return passed;
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Time the same number of writes from one thread and from every worker thread
+     *
+     * @param out Where to print results
+     * @param writes The number of writes in each timed run
+     * @return Whether every write landed
+     * @throws Exception if the test could not be set up or torn down
+     */
+    public boolean measureWriterScaling(PrintStream out, int writes) throws Exception {
+        final File dir = createTempDir("pex-writers");
+        try {
+            final PermissionsEx manager = open(dir);
+            final FileDataStore store = (FileDataStore) manager.getActiveDataStore();
+            populate(store);
+            timeWrites(store, 1, writes / 2); // Warm up
+            final long single = timeWrites(store, 1, writes);
+            final long parallel = timeWrites(store, threads, writes);
+            out.printf("%d writes: 1 thread %s, %d threads %s, speedup %.2fx%n", writes, formatNanos(single), threads,
+                    formatNanos(parallel), single / (double) parallel);
+
+            boolean passed = true;
+            final long expected = countTransactions(writes / 2, 1) + countTransactions(writes, 1) + countTransactions(writes, threads);
+            for (String counter : new String[] {"a", "b"}) {
+                final ImmutableOptionSubjectData data = store.getData("counter", counter, null);
+                final String count = data.getOptions(ImmutableSet.<Context>of()) == null ? null : data.getOptions(ImmutableSet.<Context>of()).get(EDIT_COUNTER);
+                if (count == null || Long.parseLong(count) != expected) {
+                    out.println("FAIL: counter " + counter + " records " + count + " transactions, but " + expected + " were made");
+                    passed = false;
+                }
+            }
+            manager.close();
+            out.println(passed ? "PASS" : "FAILED");
+            return passed;
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static long countTransactions(int writes, int threads) {
+        final int perThread = writes / threads;
+        long ret = 0;
+        for (int t = 0; t < threads; ++t) {
+            for (int i = t * perThread; i < (t + 1) * perThread; ++i) {
+                if (i % 16 == 0) {
+                    ++ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static final Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> INCREMENT = new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+        @Override
+        public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+            final Set<Context> global = ImmutableSet.of();
+            final Map<String, String> options = input.getOptions(global);
+            final String count = options == null ? null : options.get(EDIT_COUNTER);
+            return input.setOption(global, EDIT_COUNTER, String.valueOf(count == null ? 1 : Long.parseLong(count) + 1));
+        }
+    };
+
+    /**
+     * Write distinct players from several threads at once
+     *
+     * @return The time taken in nanoseconds
+     */
+    private long timeWrites(final FileDataStore store, int threads, final int writes) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int perThread = writes / threads;
+        for (int t = 0; t < threads; ++t) {
+            final int first = t * perThread;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Future<?> last = null;
+                        for (int i = first; i < first + perThread; ++i) {
+                            if (i % 16 == 0) {
+                                final boolean reversed = i % 32 == 0;
+                                store.applyTransaction(DataTransaction.builder()
+                                        .add("counter", reversed ? "b" : "a", INCREMENT)
+                                        .add("counter", reversed ? "a" : "b", INCREMENT)
+                                        .build()).get();
+                            } else {
+                                final int version = i;
+                                last = store.applyTransaction(DataTransaction.builder()
+                                        .add("user", userId(i % players), new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+                                            @Override
+                                            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                                                return input.setOption(ImmutableSet.<Context>of(), "version", String.valueOf(version));
+                                            }
+                                        }).build());
+                            }
+                        }
+                        if (last != null) {
+                            last.get();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "PEX writer #" + t).start();
+        }
+        final long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - startTime;
+        if (failure.get() != null) {
+            throw new Exception("Writer failed", failure.get());
+        }
+        return elapsed;
+    }
+
+    private void populate(FileDataStore store) throws Exception {
+        final DataTransaction.Builder transaction = DataTransaction.builder();
+        for (int group = 0; group < groups; ++group) {
+            final int groupNum = group;
+            transaction.add("group", groupId(group), new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                    final Set<Context> global = ImmutableSet.of();
+                    ImmutableOptionSubjectData ret = input.setPermission(global, "soak.group." + groupNum, Tristate.TRUE)
+                            .setOption(global, "prefix", "[" + groupNum + "]");
+                    for (String world : WORLDS) {
+                        ret = ret.setPermission(ImmutableSet.of(new Context("world", world)), "soak.world." + world, Tristate.TRUE)
+                                .setPermission(ImmutableSet.of(new Context("world", world)), "soak.build", Tristate.fromBoolean(groupNum % 2 == 0));
+                    }
+                    if (groupNum > 0) {
+                        // Chain each group to the previous one, so checks walk a realistic inheritance depth
+                        ret = ret.addParent(global, "group", groupId(groupNum - 1));
+                    }
+                    return ret;
+                }
+            });
+        }
+        for (int player = 0; player < players; ++player) {
+            final int group = player % groups;
+            transaction.add("user", userId(player), new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                    return input.addParent(ImmutableSet.<Context>of(), "group", groupId(group))
+                            .setPermission(contexts("world", "lobby"), "soak.lobby.chat", Tristate.TRUE);
+                }
+            });
+        }
+        store.applyTransaction(transaction.build()).get();
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private final FileDataStore store;
+        private final PEXSubjectCollection users;
+        private final long deadline;
+        private final CountDownLatch done;
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+        private volatile Throwable failure;
+
+        private Worker(int index, FileDataStore store, PEXSubjectCollection users, long deadline, CountDownLatch done) {
+            this.index = index;
+            this.store = store;
+            this.users = users;
+            this.deadline = deadline;
+            this.done = done;
+            for (int i = 0; i < latencies.length; ++i) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Random random = new Random(index);
+                final List<Integer> ownPlayers = new ArrayList<>();
+                for (int player = index; player < players; player += threads) {
+                    ownPlayers.add(player);
+                }
+                if (ownPlayers.isEmpty()) {
+                    return;
+                }
+                final Set<Context>[] playerContexts = contextsArray(players);
+                for (int player : ownPlayers) {
+                    playerContexts[player] = contexts(WORLDS[0], SERVERS[0]);
+                }
+
+                while (System.nanoTime() < deadline) {
+                    final int player = ownPlayers.get(random.nextInt(ownPlayers.size()));
+                    final int roll = random.nextInt(100);
+                    final Op op = roll < editPercent ? Op.EDIT : roll < editPercent + 5 ? Op.SWITCH : roll < editPercent + 20 ? Op.OPTION : Op.CHECK;
+                    final long start = System.nanoTime();
+                    switch (op) {
+                        case CHECK:
+                            check(player, playerContexts[player], random);
+                            break;
+                        case OPTION:
+                            if (!users.get(userId(player)).getOption(playerContexts[player], "prefix").isPresent()) {
+                                violations.incrementAndGet();
+                            }
+                            break;
+                        case SWITCH:
+                            playerContexts[player] = contexts(WORLDS[random.nextInt(WORLDS.length)], SERVERS[random.nextInt(SERVERS.length)]);
+                            break;
+                        case EDIT:
+                            edit(player, playerContexts[player], random);
+                            break;
+                    }
+                    latencies[op.ordinal()].record(System.nanoTime() - start);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void check(int player, Set<Context> contexts, Random random) {
+            final PermissionsExSubject subject = users.get(userId(player));
+            if (random.nextBoolean()) {
+                // Invariant: the player's own group always grants its node
+                if (subject.getPermissionValue(contexts, "soak.group." + (player % groups) + ".use") != Tristate.TRUE) {
+                    violations.incrementAndGet();
+                }
+            } else {
+                subject.getPermissionValue(contexts, random.nextBoolean() ? "soak.build" : "soak.world." + WORLDS[random.nextInt(WORLDS.length)]);
+            }
+        }
+
+        private void edit(final int player, Set<Context> contexts, Random random) throws Exception {
+            final String node = "soak.edit." + random.nextInt(8);
+            final Tristate value = random.nextBoolean() ? Tristate.TRUE : Tristate.UNDEFINED;
+            store.applyTransaction(DataTransaction.builder()
+                    .add("user", userId(player), new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+                        @Override
+                        public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                            final Set<Context> global = ImmutableSet.of();
+                            final Map<String, String> options = input.getOptions(global);
+                            final String count = options == null ? null : options.get(EDIT_COUNTER);
+                            return input.setPermission(global, node, value)
+                                    .setOption(global, EDIT_COUNTER, String.valueOf(count == null ? 1 : Long.parseLong(count) + 1));
+                        }
+                    }).build()).get();
+            acknowledgedEdits[player].incrementAndGet();
+            // Only this worker edits the player, so nothing can have changed the node since
+            if (users.get(userId(player)).getPermissionValue(contexts, node) != value) {
+                staleReads.incrementAndGet();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Context>[] contextsArray(int size) {
+        return (Set<Context>[]) new Set<?>[size];
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 10000) {
+            return nanos + "ns";
+        } else if (nanos < 10000000) {
+            return (nanos / 1000) + "us";
+        } else {
+            return (nanos / 1000000) + "ms";
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A log-linear latency histogram: values are bucketed by power of two, each split into 8 linear sub-buckets,
+     * giving percentiles to within 12.5%. Not thread safe; each worker keeps its own and they are merged at the end.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count, max;
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(value, 0);
+            }
+            final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            return (1L << magnitude) | ((long) (bucket % SUB_BUCKETS) << (magnitude - SUB_BITS));
+        }
+
+        void record(long nanos) {
+            ++counts[bucket(nanos)];
+            ++count;
+            max = Math.max(max, nanos);
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        long getPercentile(double percentile) {
+            final long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(lowerBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
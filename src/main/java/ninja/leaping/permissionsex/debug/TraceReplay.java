@@ -0,0 +1,240 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.file.FileDataStore;
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.sponge.PermissionsExPlugin;
+import ninja.leaping.permissionsex.sponge.PermissionsExSubject;
+import ninja.leaping.permissionsex.sponge.SubjectCollections;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace captured by {@link CheckTrace} against a backup of the data it was captured on, then reports
+ * throughput, latency percentiles and how many checks returned a different result than when they were captured.
+ *
+ * <p>The backup is restored into a fresh {@link PermissionsEx} instance in a temporary directory. Every check is made
+ * through a {@link PermissionsExSubject} backed by that instance's data, so it resolves through the same caches as
+ * checks made on the plugin. Checks run in trace order on a single thread, so runs over the same trace and data
+ * do the same work. Checks are either made back to back, or spaced out as they were when captured.</p>
+ *
+ * <p>Run with {@code key=value} arguments: {@code trace} and {@code backup} (both required), {@code speed}
+ * ({@code max} or {@code recorded}), {@code type} (the subject type checked subjects are looked for first,
+ * {@code user} by default) and {@code warmup} (untimed passes to make before the measured one).</p>
+ */
+public class TraceReplay {
+    private final CheckTrace trace;
+    private final File backup;
+    private final boolean recordedSpeed;
+    private final String preferredType;
+    private final int warmupPasses;
+
+    public TraceReplay(CheckTrace trace, File backup, boolean recordedSpeed, String preferredType, int warmupPasses) {
+        this.trace = trace;
+        this.backup = backup;
+        this.recordedSpeed = recordedSpeed;
+        this.preferredType = preferredType;
+        this.warmupPasses = warmupPasses;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File trace = null, backup = null;
+        boolean recordedSpeed = false;
+        String type = "user";
+        int warmup = 1;
+        for (String arg : args) {
+            final int split = arg.indexOf('=');
+            if (split == -1) {
+                System.err.println("Arguments must be key=value, got " + arg);
+                System.exit(1);
+            }
+            final String key = arg.substring(0, split), value = arg.substring(split + 1);
+            switch (key) {
+                case "trace": trace = new File(value); break;
+                case "backup": backup = new File(value); break;
+                case "speed": recordedSpeed = value.equals("recorded"); break;
+                case "type": type = value; break;
+                case "warmup": warmup = Integer.parseInt(value); break;
+                default:
+                    System.err.println("Unknown argument " + key);
+                    System.exit(1);
+            }
+        }
+        if (trace == null || backup == null) {
+            System.err.println("Both trace=<file> and backup=<file> are required");
+            System.exit(1);
+        }
+        new TraceReplay(CheckTrace.read(trace), backup, recordedSpeed, type, warmup).run(System.out);
+    }
+
+    /**
+     * The outcome of a replay
+     */
+    public static class Report {
+        private final long checks, elapsedNanos, mismatches, unknownSubjects;
+        private final SoakHarness.LatencyHistogram latencies;
+
+        Report(long checks, long elapsedNanos, long mismatches, long unknownSubjects, SoakHarness.LatencyHistogram latencies) {
+            this.checks = checks;
+            this.elapsedNanos = elapsedNanos;
+            this.mismatches = mismatches;
+            this.unknownSubjects = unknownSubjects;
+            this.latencies = latencies;
+        }
+
+        public long getChecks() {
+            return checks;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Get the number of checks whose result differs from the one captured
+         *
+         * @return The number of differing checks
+         */
+        public long getMismatches() {
+            return mismatches;
+        }
+
+        /**
+         * Get the number of distinct subjects in the trace with no data in the backup
+         *
+         * @return The number of unknown subjects
+         */
+        public long getUnknownSubjects() {
+            return unknownSubjects;
+        }
+
+        public double getChecksPerSecond() {
+            return checks / (elapsedNanos / 1e9);
+        }
+
+        public long getLatencyPercentile(double percentile) {
+            return latencies.getPercentile(percentile);
+        }
+
+        public long getMaxLatency() {
+            return latencies.getMax();
+        }
+    }
+
+    /**
+     * Restore the backup and replay the trace against it, printing results as it goes
+     *
+     * @param out Where to print progress and results
+     * @return The results of the measured pass
+     * @throws Exception if the data could not be restored
+     */
+    public Report run(PrintStream out) throws Exception {
+        final File dir = SoakHarness.createTempDir("pex-replay");
+        try {
+            final PermissionsEx manager = SoakHarness.openFileStore(dir, "replay", false, true);
+            try {
+                final FileDataStore store = (FileDataStore) manager.getActiveDataStore();
+                store.restore(backup).get();
+                out.println("Restored " + backup + ", replaying " + trace.size() + " checks on " + trace.getSubjects().size() + " subjects");
+                if (trace.getDroppedCount() > 0) {
+                    out.println("Warning: " + trace.getDroppedCount() + " checks were dropped while capturing this trace");
+                }
+
+                final PermissionsExSubject[] subjects = resolveSubjects(new SubjectCollections(store, new PermissionsExPlugin()), store.getSnapshot());
+                long unknown = 0;
+                for (PermissionsExSubject subject : subjects) {
+                    if (subject == null) {
+                        ++unknown;
+                    }
+                }
+                for (int i = 0; i < warmupPasses; ++i) {
+                    replay(subjects, false);
+                }
+                final Report report = replay(subjects, recordedSpeed);
+                final Report ret = new Report(report.checks, report.elapsedNanos, report.mismatches, unknown, report.latencies);
+                out.printf("%d checks in %s: %.0f checks/s%n", ret.getChecks(), SoakHarness.formatNanos(ret.getElapsedNanos()), ret.getChecksPerSecond());
+                out.printf("  p50=%s p99=%s p999=%s max=%s%n", SoakHarness.formatNanos(ret.getLatencyPercentile(0.5)),
+                        SoakHarness.formatNanos(ret.getLatencyPercentile(0.99)), SoakHarness.formatNanos(ret.getLatencyPercentile(0.999)),
+                        SoakHarness.formatNanos(ret.getMaxLatency()));
+                out.println(ret.getMismatches() + " checks returned a different result than when captured, "
+                        + ret.getUnknownSubjects() + " subjects have no data");
+                return ret;
+            } finally {
+                manager.close();
+            }
+        } finally {
+            SoakHarness.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Find the subject for each traced identifier, under the type it has data under, preferring the configured type
+     *
+     * @return The subjects, by subject index, or null where no type has data for the identifier
+     */
+    private PermissionsExSubject[] resolveSubjects(SubjectCollections collections, DataSnapshot snapshot) {
+        final List<String> subjects = trace.getSubjects();
+        final PermissionsExSubject[] ret = new PermissionsExSubject[subjects.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            String found = null;
+            if (snapshot.get(preferredType, subjects.get(i)) != null) {
+                found = preferredType;
+            } else {
+                for (String type : snapshot.getTypes()) {
+                    if (snapshot.get(type, subjects.get(i)) != null) {
+                        found = type;
+                        break;
+                    }
+                }
+            }
+            if (found != null) {
+                ret[i] = collections.get(found).get(subjects.get(i));
+            }
+        }
+        return ret;
+    }
+
+    private Report replay(PermissionsExSubject[] subjects, boolean recordedSpeed) {
+        final SoakHarness.LatencyHistogram latencies = new SoakHarness.LatencyHistogram();
+        long mismatches = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < trace.size(); ++i) {
+            if (recordedSpeed) {
+                final long wait = start + TimeUnit.MILLISECONDS.toNanos(trace.getTime(i)) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            final long checkStart = System.nanoTime();
+            final PermissionsExSubject subject = subjects[trace.getSubjectIndex(i)];
+            final Tristate result = subject == null ? Tristate.UNDEFINED : subject.getPermissionValue(trace.getContexts(i), trace.getNode(i));
+            latencies.record(System.nanoTime() - checkStart);
+            if (result != trace.getResult(i)) {
+                ++mismatches;
+            }
+        }
+        return new Report(trace.size(), System.nanoTime() - start, mismatches, 0, latencies);
+    }
+
+}
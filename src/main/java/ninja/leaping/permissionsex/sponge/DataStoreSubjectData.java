@@ -0,0 +1,287 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import ninja.leaping.permissionsex.backends.DataTransaction;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.sponge.option.OptionSubjectData;
+import org.spongepowered.api.service.permission.Subject;
+import org.spongepowered.api.service.permission.SubjectCollection;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Subject data read from and written through to a data store. Nothing is held here: every read sees the store's
+ * current data, and every change is applied to the store as a transaction. Changing methods wait for the store to
+ * write the change, so it is visible and saved once they return, and report a failed write by throwing.
+ *
+ * <p>Lookups for one context set return the data that applies in those contexts, merged from every applicable set
+ * with more specific sets taking precedence, since that is the data a subject resolves checks in those contexts from.
+ * The {@code getAll} methods return the data exactly as stored.
+ */
+class DataStoreSubjectData implements OptionSubjectData {
+    private final SubjectCollections collections;
+    private final String type, identifier;
+
+    DataStoreSubjectData(SubjectCollections collections, String type, String identifier) {
+        this.collections = collections;
+        this.type = type;
+        this.identifier = identifier;
+    }
+
+    private ImmutableOptionSubjectData get() {
+        return collections.getDataStore().getData(type, identifier, null);
+    }
+
+    /**
+     * Apply a change to the stored data, and wait for the store to finish writing it
+     *
+     * @return Whether the data changed
+     * @throws RuntimeException if the store could not apply the change
+     */
+    private boolean update(final Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> change) {
+        final AtomicBoolean changed = new AtomicBoolean();
+        final ListenableFuture<Void> result = collections.getDataStore().applyTransaction(DataTransaction.builder().add(type, identifier, new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                final ImmutableOptionSubjectData ret = change.apply(input);
+                changed.set(ret != input);
+                return ret;
+            }
+        }).build());
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            // The change is still being written, so only stop waiting for it
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to change the data of " + type + " " + identifier, e.getCause());
+        }
+        return changed.get();
+    }
+
+    private Subject toSubject(Map.Entry<String, String> parent) {
+        return collections.get(parent.getKey()).get(parent.getValue());
+    }
+
+    @Override
+    public Map<Set<Context>, Map<String, String>> getAllOptions() {
+        return get().getAllOptions();
+    }
+
+    @Override
+    public Map<String, String> getOptions(Set<Context> contexts) {
+        final ImmutableOptionSubjectData data = get();
+        final Map<String, String> ret = new HashMap<>();
+        for (Set<Context> set : data.getApplicableContexts(contexts)) {
+            final Map<String, String> options = data.getOptions(set);
+            if (options != null) {
+                for (Map.Entry<String, String> ent : options.entrySet()) {
+                    if (!ret.containsKey(ent.getKey())) {
+                        ret.put(ent.getKey(), ent.getValue());
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean setOption(final Set<Context> contexts, final String key, final String value) {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.setOption(contexts, key, value);
+            }
+        });
+    }
+
+    @Override
+    public boolean clearOptions(final Set<Context> contexts) {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.clearOptions(contexts);
+            }
+        });
+    }
+
+    @Override
+    public boolean clearOptions() {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.clearOptions();
+            }
+        });
+    }
+
+    @Override
+    public Map<Set<Context>, Map<String, Boolean>> getAllPermissions() {
+        final ImmutableMap.Builder<Set<Context>, Map<String, Boolean>> ret = ImmutableMap.builder();
+        for (Map.Entry<Set<Context>, Map<String, Tristate>> ent : get().getAllPermissions().entrySet()) {
+            final ImmutableMap.Builder<String, Boolean> permissions = ImmutableMap.builder();
+            for (Map.Entry<String, Tristate> permission : ent.getValue().entrySet()) {
+                if (permission.getValue() != Tristate.UNDEFINED) {
+                    permissions.put(permission.getKey(), permission.getValue().asBoolean());
+                }
+            }
+            ret.put(ent.getKey(), permissions.build());
+        }
+        return ret.build();
+    }
+
+    @Override
+    public Map<String, Boolean> getPermissions(Set<Context> contexts) {
+        final ImmutableOptionSubjectData data = get();
+        final Map<String, Boolean> ret = new HashMap<>();
+        for (Set<Context> set : data.getApplicableContexts(contexts)) {
+            final Map<String, Tristate> permissions = data.getPermissions(set);
+            if (permissions != null) {
+                for (Map.Entry<String, Tristate> ent : permissions.entrySet()) {
+                    if (ent.getValue() != Tristate.UNDEFINED && !ret.containsKey(ent.getKey())) {
+                        ret.put(ent.getKey(), ent.getValue().asBoolean());
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean setPermission(final Set<Context> contexts, final String permission, final Tristate value) {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.setPermission(contexts, permission, value);
+            }
+        });
+    }
+
+    @Override
+    public boolean clearPermissions() {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.clearPermissions();
+            }
+        });
+    }
+
+    @Override
+    public boolean clearPermissions(final Set<Context> contexts) {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.clearPermissions(contexts);
+            }
+        });
+    }
+
+    @Override
+    public Map<Set<Context>, List<Subject>> getAllParents() {
+        final ImmutableMap.Builder<Set<Context>, List<Subject>> ret = ImmutableMap.builder();
+        for (Map.Entry<Set<Context>, List<Map.Entry<String, String>>> ent : get().getAllParents().entrySet()) {
+            final ImmutableList.Builder<Subject> parents = ImmutableList.builder();
+            for (Map.Entry<String, String> parent : ent.getValue()) {
+                parents.add(toSubject(parent));
+            }
+            ret.put(ent.getKey(), parents.build());
+        }
+        return ret.build();
+    }
+
+    @Override
+    public List<Subject> getParents(Set<Context> contexts) {
+        final ImmutableOptionSubjectData data = get();
+        final Set<Map.Entry<String, String>> parents = new LinkedHashSet<>();
+        for (Set<Context> set : data.getApplicableContexts(contexts)) {
+            final List<Map.Entry<String, String>> setParents = data.getParents(set);
+            if (setParents != null) {
+                parents.addAll(setParents);
+            }
+        }
+        final List<Subject> ret = new ArrayList<>(parents.size());
+        for (Map.Entry<String, String> parent : parents) {
+            ret.add(toSubject(parent));
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean addParent(final Set<Context> contexts, Subject parent) {
+        final SubjectCollection parentCollection = parent.getContainingCollection();
+        if (parentCollection == null) {
+            throw new IllegalArgumentException("Parent " + parent.getIdentifier() + " does not belong to a collection");
+        }
+        final String parentType = parentCollection.getIdentifier(), parentIdentifier = parent.getIdentifier();
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.addParent(contexts, parentType, parentIdentifier);
+            }
+        });
+    }
+
+    @Override
+    public boolean removeParent(final Set<Context> contexts, Subject parent) {
+        final SubjectCollection parentCollection = parent.getContainingCollection();
+        if (parentCollection == null) {
+            return false;
+        }
+        final String parentType = parentCollection.getIdentifier(), parentIdentifier = parent.getIdentifier();
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.removeParent(contexts, parentType, parentIdentifier);
+            }
+        });
+    }
+
+    @Override
+    public boolean clearParents() {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.clearParents();
+            }
+        });
+    }
+
+    @Override
+    public boolean clearParents(final Set<Context> contexts) {
+        return update(new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.clearParents(contexts);
+            }
+        });
+    }
+}
@@ -16,24 +16,35 @@
  */
 package ninja.leaping.permissionsex.sponge;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
 import ninja.leaping.permissionsex.backends.DataStore;
 import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.SubjectCollection;
 import org.spongepowered.api.service.permission.context.Context;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Subject collection
+ * Subject collection. Subjects are created on first use and held weakly, so once nothing else refers to a subject,
+ * such as after a player leaves, it can be collected and its data compressed by the store. Subjects holding state
+ * the store can't give back, transient data or a materialized table, are held strongly while they have it.
  */
 public class PEXSubjectCollection implements SubjectCollection {
+    private final SubjectCollections collections;
     private final DataStore data;
     private final String type;
+    private final ConcurrentMap<String, PermissionsExSubject> subjects = new MapMaker().weakValues().makeMap();
+    private final Set<PermissionsExSubject> kept = Collections.newSetFromMap(new ConcurrentHashMap<PermissionsExSubject, Boolean>());
 
-    public PEXSubjectCollection(DataStore data, String type) {
-        this.data = data;
+    PEXSubjectCollection(SubjectCollections collections, String type) {
+        this.collections = collections;
+        this.data = collections.getDataStore();
         this.type = type;
     }
 
@@ -43,8 +54,49 @@ public class PEXSubjectCollection implements SubjectCollection {
     }
 
     @Override
-    public Subject get(String identifier) {
-        return null;
+    public PermissionsExSubject get(String identifier) {
+        PermissionsExSubject ret = subjects.get(identifier);
+        if (ret == null) {
+            ret = new PermissionsExSubject(identifier, new DataStoreSubjectData(collections, type, identifier), collections.getService(), this);
+            final PermissionsExSubject existing = subjects.putIfAbsent(identifier, ret);
+            if (existing != null) {
+                ret = existing;
+            } else {
+                data.getData(type, identifier, ret.getStoreListener()); // Changes to the subject's data, or its ancestors' data, reach it from here on
+            }
+        }
+        return ret;
+    }
+
+    DataStore getDataStore() {
+        return data;
+    }
+
+    /**
+     * Record that a subject in this collection was resolved in a context set
+     */
+    void recordUse(String identifier, Set<Context> contexts) {
+        collections.recordUse(type, identifier, contexts);
+    }
+
+    /**
+     * Hold a subject strongly, or go back to holding it weakly
+     */
+    void setKept(PermissionsExSubject subject, boolean keep) {
+        if (keep) {
+            kept.add(subject);
+        } else {
+            kept.remove(subject);
+        }
+    }
+
+    /**
+     * Get every subject that is currently loaded
+     *
+     * @return A copy of the loaded subjects, since collected subjects only leave the map's counts lazily
+     */
+    public Collection<PermissionsExSubject> getLoadedSubjects() {
+        return ImmutableList.copyOf(subjects.values());
     }
 
     @Override
@@ -16,7 +16,10 @@
  */
 package ninja.leaping.permissionsex.sponge;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.inject.Inject;
@@ -29,9 +32,14 @@ import ninja.leaping.configurate.objectmapping.serialize.TypeSerializers;
 import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
 import ninja.leaping.permissionsex.PermissionsEx;
 import ninja.leaping.permissionsex.exception.PEBKACException;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 import ninja.leaping.permissionsex.config.ConfigTransformations;
 import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
 import ninja.leaping.permissionsex.config.DataStoreSerializer;
+import ninja.leaping.permissionsex.debug.CheckLog;
+import ninja.leaping.permissionsex.debug.CheckSampler;
+import ninja.leaping.permissionsex.debug.CheckTrace;
+import ninja.leaping.permissionsex.sponge.option.ResolvedPermissionsPool;
 import org.slf4j.Logger;
 import org.spongepowered.api.event.state.PreInitializationEvent;
 import org.spongepowered.api.event.state.ServerStoppedEvent;
@@ -44,13 +52,17 @@ import org.spongepowered.api.service.config.DefaultConfig;
 import org.spongepowered.api.service.permission.PermissionService;
 import org.spongepowered.api.service.permission.SubjectCollection;
 import org.spongepowered.api.service.permission.SubjectData;
+import org.spongepowered.api.service.permission.context.Context;
 import org.spongepowered.api.service.permission.context.ContextCalculator;
 import org.spongepowered.api.service.scheduler.Scheduler;
 import org.spongepowered.api.service.sql.SqlService;
 import org.spongepowered.api.util.event.Subscribe;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -60,6 +72,8 @@ import java.util.concurrent.Callable;
  */
 @Plugin(id = PomData.ARTIFACT_ID, name = PomData.NAME, version = PomData.VERSION)
 public class PermissionsExPlugin implements PermissionService {
+    private static final int SAMPLE_REPORT_SIZE = 50;
+
     static {
         TypeSerializers.registerSerializer(new DataStoreSerializer());
     }
@@ -71,6 +85,11 @@ public class PermissionsExPlugin implements PermissionService {
     @Inject @ConfigDir(sharedRoot = false) private File configDir;
     @Inject @DefaultConfig(sharedRoot = false) private ConfigurationLoader<CommentedConfigurationNode> configLoader;
     private PermissionsEx manager;
+    private SubjectCollections subjects;
+    private CheckLog checkLog, checkTrace;
+    private CheckSampler sampler;
+    private CheckTrace.Writer traceWriter;
+    private File traceFile;
     private PermissionsExConfiguration config;
     private ConfigurationNode rawConfig;
 
@@ -89,14 +108,6 @@ public class PermissionsExPlugin implements PermissionService {
             throw new RuntimeException("Error occurred while enabling " + PomData.NAME, e);
         }
 
-        try {
-            configDir.mkdirs();
-            PermissionsExConfiguration.MAPPER.serializeObject(config, rawConfig);
-            configLoader.save(rawConfig);
-        } catch (IOException | ObjectMappingException e) {
-            throw new RuntimeException(e);
-        }
-
         // Registering the PEX service *must* occur after the plugin has been completely initialized
         try {
             event.getGame().getServiceManager().setProvider(this, PermissionService.class, this);
@@ -104,6 +115,15 @@ public class PermissionsExPlugin implements PermissionService {
             manager.close();
             throw new PEBKACException("Your appear to already be using a different permissions plugin: " + e.getLocalizedMessage());
         }
+
+        // Only write back the configuration once the service is available, since nothing depends on it
+        try {
+            configDir.mkdirs();
+            PermissionsExConfiguration.MAPPER.serializeObject(config, rawConfig);
+            configLoader.save(rawConfig);
+        } catch (IOException | ObjectMappingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Subscribe
@@ -113,6 +133,13 @@ public class PermissionsExPlugin implements PermissionService {
             manager.close();
             manager = null;
         }
+        if (checkLog != null) {
+            PermissionsExSubject.setCheckLog(null);
+            checkLog.close();
+            checkLog = null;
+        }
+        stopTrace();
+        stopSampler();
     }
 
     static ConfigurationNode loadDefaultConfiguration() throws IOException {
@@ -155,11 +182,52 @@ public class PermissionsExPlugin implements PermissionService {
                 throw new Error("PEX's default configuration could not be loaded!", e);
             }
             rawConfig.mergeValuesFrom(fallbackConfig);
+            final PermissionsExConfiguration oldConfig = config;
             config = PermissionsExConfiguration.MAPPER.newInstance(rawConfig);
-            PermissionsEx oldManager = manager;
-            manager = new PermissionsEx(config, configDir);
-            if (oldManager != null) {
-                oldManager.close();
+            // Backends own their files, such as the permissions journal, so the old ones must let go before new ones open
+            if (manager != null) {
+                manager.close();
+                manager = null;
+            }
+            try {
+                manager = new PermissionsEx(config, configDir);
+            } catch (PermissionsLoadingException e) {
+                if (oldConfig != null) {
+                    logger.error("Unable to load the new configuration, restoring the previous one", e);
+                    config = oldConfig;
+                    manager = new PermissionsEx(config, configDir);
+                }
+                throw e;
+            }
+            ResolvedPermissionsPool.clear();
+            subjects = new SubjectCollections(manager.getActiveDataStore(), manager.getHotSet(), this);
+            subjects.warmUp(manager);
+            final CheckLog oldCheckLog = checkLog;
+            checkLog = config.isLogChecksEnabled() ? createCheckLog(config) : null;
+            if (checkLog != null) {
+                checkLog.start();
+            }
+            PermissionsExSubject.setCheckLog(checkLog);
+            if (oldCheckLog != null) {
+                oldCheckLog.close();
+            }
+            stopSampler();
+            if (config.getCheckSampleRate() > 0) {
+                sampler = new CheckSampler(config.getCheckSampleRate(), config.getCheckSampleSize());
+                PermissionsExSubject.setCheckSampler(sampler);
+            }
+            // A trace keeps running across reloads unless its file changes, since starting again would overwrite it
+            final File newTraceFile = config.getTraceFile().isEmpty() ? null : new File(configDir, config.getTraceFile());
+            if (!Objects.equal(newTraceFile, traceFile)) {
+                stopTrace();
+                if (newTraceFile != null) {
+                    traceWriter = new CheckTrace.Writer(newTraceFile);
+                    traceFile = newTraceFile;
+                    checkTrace = new CheckLog(traceWriter, CheckLog.Filter.ALL, config.getDebugBufferSize());
+                    checkTrace.start();
+                    PermissionsExSubject.setCheckTrace(checkTrace);
+                    logger.info("Capturing permission checks to " + newTraceFile);
+                }
             }
 
         } catch (IOException e) {
@@ -167,6 +235,63 @@ public class PermissionsExPlugin implements PermissionService {
         }
     }
 
+    /**
+     * Stop capturing checks, finishing the trace file with every check captured so far
+     */
+    private void stopTrace() {
+        if (checkTrace == null) {
+            return;
+        }
+        PermissionsExSubject.setCheckTrace(null);
+        checkTrace.close();
+        checkTrace = null;
+        try {
+            traceWriter.close();
+        } catch (IOException e) {
+            logger.warn("Unable to write permission check trace", e);
+        }
+        traceWriter = null;
+        traceFile = null;
+    }
+
+    /**
+     * Stop sampling checks, writing a report of the samples taken so far
+     */
+    private void stopSampler() {
+        if (sampler == null) {
+            return;
+        }
+        PermissionsExSubject.setCheckSampler(null);
+        final CheckSampler.Report report = sampler.report(SAMPLE_REPORT_SIZE);
+        sampler = null;
+        if (report.getSampleCount() == 0) {
+            return;
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(configDir, "check-samples.json")), "UTF-8")) {
+            report.writeJson(out);
+        } catch (IOException e) {
+            logger.warn("Unable to write permission check samples", e);
+        }
+    }
+
+    private CheckLog createCheckLog(PermissionsExConfiguration config) throws PEBKACException {
+        final ImmutableSet.Builder<Context> contexts = ImmutableSet.builder();
+        for (String context : config.getDebugContexts()) {
+            final int split = context.indexOf('=');
+            if (split == -1) {
+                throw new PEBKACException("Debug context '" + context + "' must be given as type=name");
+            }
+            contexts.add(new Context(context.substring(0, split), context.substring(split + 1)));
+        }
+        final CheckLog.Filter filter = new CheckLog.Filter(ImmutableSet.copyOf(config.getDebugSubjects()), config.getDebugPermissions(), contexts.build());
+        return new CheckLog(new CheckLog.Sink() {
+            @Override
+            public void write(String line) {
+                logger.info(line);
+            }
+        }, filter, config.getDebugBufferSize());
+    }
+
     public ListenableFuture<Void> reload() {
         return ListenableFutureTask.create(new Callable<Void>() {
             @Override
@@ -180,12 +305,12 @@ public class PermissionsExPlugin implements PermissionService {
 
     @Override
     public SubjectCollection getUserSubjects() {
-        return null;
+        return subjects.get("user");
     }
 
     @Override
     public SubjectCollection getGroupSubjects() {
-        return null;
+        return subjects.get("group");
     }
 
     @Override
@@ -195,12 +320,12 @@ public class PermissionsExPlugin implements PermissionService {
 
     @Override
     public Optional<SubjectCollection> getSubjects(String identifier) {
-        return null;
+        return Optional.<SubjectCollection>of(subjects.get(identifier));
     }
 
     @Override
     public Map<String, SubjectCollection> getKnownSubjects() {
-        return null;
+        return ImmutableMap.<String, SubjectCollection>copyOf(subjects.getAll());
     }
 
     @Override
@@ -17,31 +17,339 @@
 package ninja.leaping.permissionsex.sponge;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
 import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.MemoryEstimator;
+import ninja.leaping.permissionsex.debug.CheckLog;
+import ninja.leaping.permissionsex.debug.CheckSampler;
+import ninja.leaping.permissionsex.sponge.option.MaterializedPermissions;
+import ninja.leaping.permissionsex.sponge.option.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.sponge.option.OptionSubject;
 import ninja.leaping.permissionsex.sponge.option.OptionSubjectData;
-import org.spongepowered.api.service.permission.MemorySubjectData;
+import ninja.leaping.permissionsex.sponge.option.PermissionBatch;
+import ninja.leaping.permissionsex.sponge.option.ResolvedOptions;
+import ninja.leaping.permissionsex.sponge.option.ResolvedPermissions;
+import ninja.leaping.permissionsex.sponge.option.ResolvedPermissionsPool;
 import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.SubjectCollection;
-import org.spongepowered.api.service.permission.SubjectData;
 import org.spongepowered.api.service.permission.context.Context;
 import org.spongepowered.api.util.Tristate;
 import org.spongepowered.api.util.command.CommandSource;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Permissions subject implementation
  */
-public class PermissionsExSubject implements Subject, Caching {
-    private final SubjectData data, transientData;
+public class PermissionsExSubject implements OptionSubject, Caching {
+    @Nullable private static volatile CheckSampler sampler;
+    @Nullable private static volatile CheckLog checkLog;
+    @Nullable private static volatile CheckLog checkTrace;
+    private final OptionSubjectData data, transientData;
     private final String identifier;
+    @Nullable private final SubjectCollection collection;
+    /**
+     * Cached results are stamped with the generation they were resolved at, and only used while it is current.
+     * Any change to this subject's data, or to the persistent results of a parent, moves to a new generation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentMap<Set<Context>, Stamped<ResolvedOptions>> optionCache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Set<Context>, Stamped<ResolvedPermissions>> permissionCache = new ConcurrentHashMap<>();
+    /**
+     * Subjects that have resolved through this one as a persistent parent. They may no longer have it as a parent,
+     * which only costs them an unneeded invalidation.
+     */
+    private final Set<PermissionsExSubject> dependents = newWeakSet();
+    /**
+     * Told by the data store when this subject's data, or that of any subject it inherits from, changes. The store
+     * notifies every descendant of a changed subject itself, so this does not pass the change on to dependents the
+     * store also notifies.
+     */
+    private final Caching storeListener = new Caching() {
+        @Override
+        public void clearCache() {
+            invalidate(newIdentitySet(), newIdentitySet(), true);
+        }
 
+        @Override
+        public void clearNodeCache(String node) {
+            invalidate(newIdentitySet(), newIdentitySet(), true);
+        }
+
+        @Override
+        public void clearInheritanceCache(Subject subject) {
+            invalidate(newIdentitySet(), newIdentitySet(), true);
+        }
+    };
+    /**
+     * Transient data is resolved separately from persistent data and layered over it on lookup, so that changes to
+     * transient data only invalidate these overlays. Overlays built before the current version are rebuilt when next used.
+     * Persistent results inherit only the persistent results of parents, so transient data applies to the subject
+     * that holds it and to subjects that have it as a transient parent. An overlay includes the full results of its
+     * transient parents, so any change to those parents moves it to a new version too.
+     */
+    private final ConcurrentMap<Set<Context>, TransientOverlay> transientCache = new ConcurrentHashMap<>();
+    private final AtomicLong transientVersion = new AtomicLong();
+    /**
+     * Subjects that have resolved through this one as a transient parent
+     */
+    private final Set<PermissionsExSubject> transientDependents = newWeakSet();
+    /**
+     * Whether transient data has ever been set, in which case the collection must not let this subject be collected.
+     * Guarded by {@link #materializeLock}.
+     */
+    private boolean hasTransientData;
+    /**
+     * While the subject is online, every effective permission in its active contexts is kept in a materialized table.
+     * Any invalidation of this subject, including one passed on from a parent, moves to a new materialized version and
+     * schedules a refresh on the executor. Refreshes are coalesced and only write the nodes that changed. The table
+     * is only used while it is stamped with the current version, so checks resolve lazily until a refresh completes.
+     *
+     * <p>A refresh resolves the subject again rather than applying a per-node delta, since the data store only reports
+     * which subjects changed. When nothing the subject resolves from changed, the pool hands back the same table and
+     * the refresh stops there. Otherwise building the new table and diffing it against the old one both take time
+     * linear in the subject's effective nodes, on the executor rather than on the checking thread.</p>
+     */
+    private final Object materializeLock = new Object();
+    private final AtomicLong materializeVersion = new AtomicLong();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            refreshScheduled.set(false);
+            synchronized (materializeLock) {
+                if (materializeExecutor == null) {
+                    return;
+                }
+                final Set<Context> contexts = activeContexts;
+                final long version = materializeVersion.get();
+                final Materialized current = materialized;
+                final MaterializedPermissions table = current != null && current.table.getContexts().equals(contexts)
+                        ? current.table : new MaterializedPermissions(contexts);
+                final ResolvedPermissions permissions = getResolvedPermissions(contexts);
+                table.update(permissions.asMap());
+                materialized = new Materialized(table, version, permissions.getDepth());
+            }
+        }
+    };
+    @Nullable private volatile Executor materializeExecutor;
+    @Nullable private volatile Materialized materialized;
+    private volatile Set<Context> activeContexts = ImmutableSet.of();
+
+    /**
+     * Create a subject with persistent data held in memory
+     *
+     * @param identifier The subject's identifier
+     * @param service The permission service the subject belongs to
+     */
+    public PermissionsExSubject(String identifier, PermissionsExPlugin service) {
+        this.identifier = identifier;
+        this.collection = null;
+        this.data = new MemoryOptionSubjectData(service, this);
+        this.transientData = createTransientData(service);
+    }
+
+    /**
+     * Create a subject over existing persistent data. Changes to the data must be reported through this subject's
+     * {@link Caching} methods for its results to stay current.
+     *
+     * @param identifier The subject's identifier
+     * @param data The subject's persistent data
+     * @param service The permission service the subject belongs to
+     */
     public PermissionsExSubject(String identifier, OptionSubjectData data, PermissionsExPlugin service) {
+        this(identifier, data, service, null);
+    }
+
+    /**
+     * Create a subject over existing persistent data, as part of a collection
+     *
+     * @param identifier The subject's identifier
+     * @param data The subject's persistent data
+     * @param service The permission service the subject belongs to
+     * @param collection The collection holding the subject
+     */
+    public PermissionsExSubject(String identifier, OptionSubjectData data, PermissionsExPlugin service, @Nullable SubjectCollection collection) {
         this.data = data;
         this.identifier = identifier;
-        this.transientData = new MemorySubjectData(service);
+        this.collection = collection;
+        this.transientData = createTransientData(service);
+    }
+
+    private OptionSubjectData createTransientData(PermissionsExPlugin service) {
+        return new MemoryOptionSubjectData(service, new Caching() {
+            @Override
+            public void clearCache() {
+                transientDataChanged();
+            }
+
+            @Override
+            public void clearNodeCache(String node) {
+                transientDataChanged();
+            }
+
+            @Override
+            public void clearInheritanceCache(Subject subject) {
+                transientDataChanged();
+            }
+        });
+    }
+
+    private void transientDataChanged() {
+        synchronized (materializeLock) {
+            hasTransientData = true;
+            updateKept();
+        }
+        invalidateTransient(newIdentitySet());
+    }
+
+    /**
+     * Make the collection hold this subject strongly while it has state that can't be rebuilt from the data store.
+     * Must be called while holding {@link #materializeLock}.
+     */
+    private void updateKept() {
+        if (collection instanceof PEXSubjectCollection) {
+            ((PEXSubjectCollection) collection).setKept(this, hasTransientData || materializeExecutor != null);
+        }
+    }
+
+    /**
+     * Set the sampler that permission checks on every subject are recorded to
+     *
+     * @param sampler The sampler to use, or null to stop sampling
+     */
+    public static void setCheckSampler(@Nullable CheckSampler sampler) {
+        PermissionsExSubject.sampler = sampler;
+    }
+
+    @Nullable
+    public static CheckSampler getCheckSampler() {
+        return sampler;
+    }
+
+    /**
+     * Set the log that permission checks on every subject are written to
+     *
+     * @param log The log to use, or null to stop logging checks
+     */
+    public static void setCheckLog(@Nullable CheckLog log) {
+        PermissionsExSubject.checkLog = log;
+    }
+
+    /**
+     * Start or stop keeping this subject's effective permissions in its active contexts materialized.
+     * This is meant for subjects that are checked often, such as online players.
+     *
+     * @param executor The executor to build tables on, or null to stop materializing
+     */
+    public void setMaterialized(@Nullable Executor executor) {
+        synchronized (materializeLock) {
+            this.materializeExecutor = executor;
+            if (executor == null) {
+                this.materialized = null;
+            }
+            updateKept();
+        }
+        if (executor != null) {
+            scheduleRefresh(executor);
+        }
+    }
+
+    /**
+     * Set the contexts checks without explicit contexts are made in. If this subject is materialized,
+     * its table is rebuilt for the new contexts in the background.
+     *
+     * @param contexts The new active contexts
+     */
+    public void setActiveContexts(Set<Context> contexts) {
+        this.activeContexts = ImmutableSet.copyOf(contexts);
+        final Executor executor = this.materializeExecutor;
+        if (executor != null) {
+            scheduleRefresh(executor);
+        }
+    }
+
+    private void scheduleRefresh(Executor executor) {
+        if (refreshScheduled.compareAndSet(false, true)) {
+            executor.execute(refreshTask);
+        }
+    }
+
+    /**
+     * Stop using this subject's materialized table until it has caught up with a change, which happens in the background
+     */
+    private void refreshMaterialized() {
+        materializeVersion.incrementAndGet();
+        final Executor executor = materializeExecutor;
+        if (executor != null) {
+            scheduleRefresh(executor);
+        }
+    }
+
+    /**
+     * Get the materialized table for a context set, if there is one and it is up to date
+     */
+    @Nullable
+    private Materialized getMaterialized(Set<Context> contexts) {
+        final Materialized ret = materialized;
+        if (ret != null && ret.version == materializeVersion.get()
+                && (ret.table.getContexts() == contexts || ret.table.getContexts().equals(contexts))) {
+            return ret;
+        }
+        return null;
+    }
+
+    /**
+     * Get the listener to register with the data store this subject's data is held in
+     *
+     * @return The listener, which lives as long as this subject
+     */
+    Caching getStoreListener() {
+        return storeListener;
+    }
+
+    /**
+     * Get the generation cached results are currently stamped with
+     *
+     * @return The generation, which moves on with every invalidation
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Whether checks in a context set are currently answered from a materialized table
+     *
+     * @param contexts The contexts to check in
+     * @return Whether the table is used
+     */
+    boolean isMaterialized(Set<Context> contexts) {
+        return getMaterialized(contexts) != null;
+    }
+
+    /**
+     * Set the log that every permission check is captured to for later replay. Unlike the check log,
+     * this is not affected by debug filters.
+     *
+     * @param trace The log to use, usually writing to a {@link ninja.leaping.permissionsex.debug.CheckTrace.Writer},
+     *              or null to stop capturing checks
+     */
+    public static void setCheckTrace(@Nullable CheckLog trace) {
+        PermissionsExSubject.checkTrace = trace;
     }
 
     @Override
@@ -56,72 +364,518 @@ public class PermissionsExSubject implements Subject, Caching {
 
     @Override
     public SubjectCollection getContainingCollection() {
-        return null;
+        return collection;
     }
 
     @Override
-    public SubjectData getData() {
+    public OptionSubjectData getData() {
         return data;
     }
 
     @Override
-    public SubjectData getTransientData() {
+    public OptionSubjectData getTransientData() {
         return transientData;
     }
 
+    @Override
+    public Optional<String> getOption(Set<Context> contexts, String key) {
+        return getResolvedOptions(contexts).getString(key);
+    }
+
+    @Override
+    public Optional<String> getOption(String key) {
+        return getOption(getActiveContexts(), key);
+    }
+
+    public Optional<Integer> getIntOption(Set<Context> contexts, String key) {
+        return getResolvedOptions(contexts).getInt(key);
+    }
+
+    public Optional<Double> getDoubleOption(Set<Context> contexts, String key) {
+        return getResolvedOptions(contexts).getDouble(key);
+    }
+
+    public Optional<Boolean> getBooleanOption(Set<Context> contexts, String key) {
+        return getResolvedOptions(contexts).getBoolean(key);
+    }
+
+    /**
+     * Get every option that applies to this subject in the given contexts, including inherited options.
+     * The result is cached until this subject's data or the data of one of its parents changes.
+     *
+     * @param contexts The contexts to resolve in
+     * @return The resolved options
+     */
+    public ResolvedOptions getResolvedOptions(Set<Context> contexts) {
+        return getResolvedOptions(contexts, new Resolution());
+    }
+
+    private ResolvedOptions getResolvedOptions(Set<Context> contexts, Resolution resolution) {
+        final ResolvedOptions persistent = getPersistentOptions(contexts, resolution);
+        final TransientOverlay overlay = getTransientOverlay(contexts, resolution);
+        return overlay == null ? persistent : overlay.layer(persistent);
+    }
+
+    private ResolvedOptions getPersistentOptions(Set<Context> contexts, Resolution resolution) {
+        final long generation = this.generation.get();
+        final Stamped<ResolvedOptions> cached = optionCache.get(contexts);
+        if (cached != null && cached.stamp == generation) {
+            return cached.value;
+        }
+        final int outerLoop = resolution.enter(this, false);
+        if (outerLoop == Resolution.LOOP) { // Inheritance loop, contributes nothing further
+            return ResolvedOptions.EMPTY;
+        }
+        final Map<String, String> options = new HashMap<>();
+        putAllAbsent(options, data.getOptions(contexts));
+        for (Subject parent : nullToEmpty(data.getParents(contexts))) {
+            if (parent instanceof PermissionsExSubject) {
+                ((PermissionsExSubject) parent).dependents.add(this);
+                putAllAbsent(options, ((PermissionsExSubject) parent).getPersistentOptions(contexts, resolution).asMap());
+            }
+        }
+        final ResolvedOptions ret = new ResolvedOptions(options);
+        if (resolution.exit(this, false, outerLoop)) {
+            cache(optionCache, contexts, generation, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Get every permission that applies to this subject in the given contexts, including inherited permissions.
+     * The result is cached until this subject's data or the data of one of its parents changes.
+     *
+     * @param contexts The contexts to resolve in
+     * @return The resolved permissions
+     */
+    public ResolvedPermissions getResolvedPermissions(Set<Context> contexts) {
+        return getResolvedPermissions(contexts, new Resolution());
+    }
+
+    private ResolvedPermissions getResolvedPermissions(Set<Context> contexts, Resolution resolution) {
+        final ResolvedPermissions persistent = getPersistentPermissions(contexts, resolution);
+        final TransientOverlay overlay = getTransientOverlay(contexts, resolution);
+        return overlay == null ? persistent : overlay.layer(persistent);
+    }
+
+    private ResolvedPermissions getPersistentPermissions(Set<Context> contexts, Resolution resolution) {
+        final long generation = this.generation.get();
+        final Stamped<ResolvedPermissions> cached = permissionCache.get(contexts);
+        if (cached != null && cached.stamp == generation) {
+            return cached.value;
+        }
+        final int outerLoop = resolution.enter(this, false);
+        if (outerLoop == Resolution.LOOP) { // Inheritance loop, contributes nothing further
+            return ResolvedPermissions.EMPTY;
+        }
+        // Only recorded when resolving, so checks answered from the cache stay free of the hot set's lock
+        if (collection instanceof PEXSubjectCollection) {
+            ((PEXSubjectCollection) collection).recordUse(identifier, contexts);
+        }
+        final Map<String, Boolean> own = data.getPermissions(contexts);
+        final List<ResolvedPermissions> parentTables = new ArrayList<>();
+        for (Subject parent : nullToEmpty(data.getParents(contexts))) {
+            if (parent instanceof PermissionsExSubject) {
+                ((PermissionsExSubject) parent).dependents.add(this);
+                parentTables.add(((PermissionsExSubject) parent).getPersistentPermissions(contexts, resolution));
+            }
+        }
+        // Subjects with the same own permissions and parents share one table
+        final ResolvedPermissions ret = ResolvedPermissionsPool.get(own == null ? Collections.<String, Boolean>emptyMap() : own, parentTables);
+        if (resolution.exit(this, false, outerLoop)) {
+            cache(permissionCache, contexts, generation, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Cache a result resolved at the given generation. If the generation has moved on since, the result may be
+     * missing the change, so it is removed again rather than left for lookups to skip.
+     */
+    private <T> void cache(ConcurrentMap<Set<Context>, Stamped<T>> cache, Set<Context> contexts, long generation, T value) {
+        final Set<Context> key = ImmutableSet.copyOf(contexts);
+        final Stamped<T> entry = new Stamped<>(generation, value);
+        cache.put(key, entry);
+        if (this.generation.get() != generation) {
+            cache.remove(key, entry);
+        }
+    }
+
+    /**
+     * Get the transient data for a context set, resolved through any transient parents.
+     *
+     * @return The overlay, or null if there is no transient data in these contexts
+     */
+    @Nullable
+    private TransientOverlay getTransientOverlay(Set<Context> contexts, Resolution resolution) {
+        final long version = transientVersion.get();
+        TransientOverlay ret = transientCache.get(contexts);
+        if (ret == null || ret.version != version) {
+            final int outerLoop = resolution.enter(this, true);
+            if (outerLoop == Resolution.LOOP) {
+                return null;
+            }
+            final Map<String, Boolean> permissions = new HashMap<>();
+            final Map<String, String> options = new HashMap<>();
+            putAllAbsent(permissions, transientData.getPermissions(contexts));
+            putAllAbsent(options, transientData.getOptions(contexts));
+            int parentDepth = 0;
+            for (Subject parent : nullToEmpty(transientData.getParents(contexts))) {
+                if (parent instanceof PermissionsExSubject) {
+                    ((PermissionsExSubject) parent).transientDependents.add(this);
+                    final ResolvedPermissions parentPermissions = ((PermissionsExSubject) parent).getResolvedPermissions(contexts, resolution);
+                    putAllAbsent(permissions, parentPermissions.asMap());
+                    putAllAbsent(options, ((PermissionsExSubject) parent).getResolvedOptions(contexts, resolution).asMap());
+                    parentDepth = Math.max(parentDepth, parentPermissions.getDepth());
+                }
+            }
+            ret = new TransientOverlay(version, new ResolvedPermissions(permissions, parentDepth + 1), new ResolvedOptions(options));
+            if (resolution.exit(this, true, outerLoop)) {
+                final Set<Context> key = ImmutableSet.copyOf(contexts);
+                transientCache.put(key, ret);
+                if (transientVersion.get() != version) {
+                    transientCache.remove(key, ret);
+                }
+            }
+        }
+        return ret.isEmpty() ? null : ret;
+    }
+
+    private static <T> List<T> nullToEmpty(@Nullable List<T> list) {
+        return list == null ? Collections.<T>emptyList() : list;
+    }
+
+    private static <K, V> void putAllAbsent(Map<K, V> target, Map<K, V> source) {
+        if (source == null) {
+            return;
+        }
+        for (Map.Entry<K, V> ent : source.entrySet()) {
+            if (!target.containsKey(ent.getKey())) {
+                target.put(ent.getKey(), ent.getValue());
+            }
+        }
+    }
+
+    /**
+     * Estimate the memory used by this subject's resolution caches. Lazily parsed option values are not counted,
+     * and permission tables shared with other subjects are counted in full for each of them.
+     *
+     * @return The estimated size in bytes
+     */
+    public long estimateCacheBytes() {
+        long size = 0;
+        for (Stamped<ResolvedPermissions> permissions : permissionCache.values()) {
+            size += MemoryEstimator.estimateStringKeyed(permissions.value.asMap());
+        }
+        for (Stamped<ResolvedOptions> options : optionCache.values()) {
+            size += MemoryEstimator.estimateStringKeyed(options.value.asMap());
+        }
+        for (TransientOverlay overlay : transientCache.values()) {
+            size += MemoryEstimator.estimateStringKeyed(overlay.permissions.asMap());
+            size += MemoryEstimator.estimateStringKeyed(overlay.options.asMap());
+        }
+        final Materialized materialized = this.materialized;
+        if (materialized != null) {
+            size += MemoryEstimator.estimateStringKeyed(materialized.table.asMap());
+        }
+        return size;
+    }
+
     @Override
     public boolean hasPermission(Set<Context> contexts, String permission) {
-        return false;
+        return getPermissionValue(contexts, permission).asBoolean();
     }
 
     @Override
     public boolean hasPermission(String permission) {
-        return false;
+        return hasPermission(getActiveContexts(), permission);
     }
 
     @Override
     public Tristate getPermissionValue(Set<Context> contexts, String permission) {
-        return null;
+        final CheckSampler sampler = PermissionsExSubject.sampler;
+        final boolean sample = sampler != null && sampler.shouldSample();
+        final long start = sample ? System.nanoTime() : 0;
+        final Materialized materialized = getMaterialized(contexts);
+        final Tristate ret;
+        final int depth;
+        if (materialized != null) {
+            ret = materialized.table.get(permission);
+            depth = materialized.depth;
+        } else {
+            final ResolvedPermissions permissions = getResolvedPermissions(contexts);
+            ret = permissions.get(permission);
+            depth = permissions.getDepth();
+        }
+        if (sample) {
+            sampler.record(identifier, permission, contexts, depth, System.nanoTime() - start);
+        }
+        final CheckLog log = PermissionsExSubject.checkLog;
+        if (log != null) {
+            log.record(identifier, permission, contexts, ret);
+        }
+        final CheckLog trace = PermissionsExSubject.checkTrace;
+        if (trace != null) {
+            trace.record(identifier, permission, contexts, ret);
+        }
+        return ret;
+    }
+
+    @Override
+    public PermissionBatch.Result getPermissionValues(Set<Context> contexts, PermissionBatch batch) {
+        final CheckSampler sampler = PermissionsExSubject.sampler;
+        final long start = sampler != null ? System.nanoTime() : 0;
+        final Materialized materialized = getMaterialized(contexts);
+        final PermissionBatch.Result ret;
+        final int depth;
+        if (materialized != null) {
+            ret = materialized.table.get(batch);
+            depth = materialized.depth;
+        } else {
+            final ResolvedPermissions permissions = getResolvedPermissions(contexts);
+            ret = permissions.get(batch);
+            depth = permissions.getDepth();
+        }
+        // Each node counts as one check, so batched checks show up in samples, logs and traces like single ones.
+        // Nodes are not timed separately, so a sampled node is charged its share of the whole batch.
+        final long elapsed = sampler != null && batch.size() > 0 ? (System.nanoTime() - start) / batch.size() : 0;
+        final CheckLog log = PermissionsExSubject.checkLog, trace = PermissionsExSubject.checkTrace;
+        for (int i = 0; i < batch.size(); ++i) {
+            final String permission = batch.getNodes().get(i);
+            if (sampler != null && sampler.shouldSample()) {
+                sampler.record(identifier, permission, contexts, depth, elapsed);
+            }
+            if (log != null) {
+                log.record(identifier, permission, contexts, ret.get(i));
+            }
+            if (trace != null) {
+                trace.record(identifier, permission, contexts, ret.get(i));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public PermissionBatch.Result getPermissionValues(PermissionBatch batch) {
+        return getPermissionValues(getActiveContexts(), batch);
     }
 
     @Override
     public boolean isChildOf(Subject parent) {
-        return false;
+        return isChildOf(getActiveContexts(), parent);
     }
 
     @Override
     public boolean isChildOf(Set<Context> contexts, Subject parent) {
-        return false;
+        return getParents(contexts).contains(parent);
     }
 
     @Override
     public Set<Context> getActiveContexts() {
-        return Collections.emptySet();
+        return activeContexts;
     }
 
     @Override
     public List<Subject> getParents() {
-        return Collections.emptyList();
+        return getParents(getActiveContexts());
     }
 
     @Override
     public List<Subject> getParents(Set<Context> contexts) {
-        return null;
+        final List<Subject> transientParents = transientData.getParents(contexts),
+                parents = data.getParents(contexts);
+        if (transientParents == null || transientParents.isEmpty()) {
+            return parents == null ? Collections.<Subject>emptyList() : parents;
+        } else if (parents == null || parents.isEmpty()) {
+            return transientParents;
+        } else {
+            return ImmutableList.<Subject>builder().addAll(transientParents).addAll(parents).build();
+        }
     }
 
 
     @Override
     public void clearCache() {
-
+        invalidate(newIdentitySet(), newIdentitySet(), false);
     }
 
     @Override
     public void clearNodeCache(String node) {
-
+        invalidate(newIdentitySet(), newIdentitySet(), false);
     }
 
     @Override
     public void clearInheritanceCache(Subject subject) {
+        invalidate(newIdentitySet(), newIdentitySet(), false);
+    }
+
+    /**
+     * Move this subject and every subject resolving through it to a new generation, so none of their cached
+     * results are used again. Subjects with any of them as a transient parent have their overlays invalidated.
+     *
+     * @param seen Subjects already invalidated, to stop at inheritance loops
+     * @param transientSeen Subjects whose overlays were already invalidated
+     * @param fromStore Whether the data store is notifying this subject, and so also notifies its dependents that
+     *                  share the store
+     */
+    private void invalidate(Set<PermissionsExSubject> seen, Set<PermissionsExSubject> transientSeen, boolean fromStore) {
+        if (!seen.add(this)) {
+            return;
+        }
+        generation.incrementAndGet();
+        optionCache.clear();
+        permissionCache.clear();
+        refreshMaterialized();
+        for (PermissionsExSubject dependent : transientDependents) {
+            dependent.invalidateTransient(transientSeen);
+        }
+        for (PermissionsExSubject dependent : dependents) {
+            if (!fromStore || !dependent.sharesStoreWith(this)) {
+                dependent.invalidate(seen, transientSeen, false);
+            }
+        }
+    }
+
+    /**
+     * Whether another subject's data is in the same data store as this one's, so the store notifies both of changes
+     */
+    private boolean sharesStoreWith(PermissionsExSubject other) {
+        return collection instanceof PEXSubjectCollection && other.collection instanceof PEXSubjectCollection
+                && ((PEXSubjectCollection) collection).getDataStore() == ((PEXSubjectCollection) other.collection).getDataStore();
+    }
+
+    /**
+     * Move this subject's transient overlays, and those of every subject with it as a transient parent, to a new version
+     *
+     * @param seen Subjects already invalidated, to stop at inheritance loops
+     */
+    private void invalidateTransient(Set<PermissionsExSubject> seen) {
+        if (!seen.add(this)) {
+            return;
+        }
+        transientVersion.incrementAndGet();
+        transientCache.clear();
+        refreshMaterialized();
+        for (PermissionsExSubject dependent : transientDependents) {
+            dependent.invalidateTransient(seen);
+        }
+    }
+
+    private static Set<PermissionsExSubject> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<PermissionsExSubject, Boolean>());
+    }
+
+    private static Set<PermissionsExSubject> newWeakSet() {
+        return Collections.newSetFromMap(new MapMaker().weakKeys().<PermissionsExSubject, Boolean>makeMap());
+    }
+
+    /**
+     * A cached result, with the generation it was resolved at
+     */
+    private static final class Stamped<T> {
+        private final long stamp;
+        private final T value;
+
+        private Stamped(long stamp, T value) {
+            this.stamp = stamp;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A materialized table, with the materialized version it was last brought up to date at
+     */
+    private static final class Materialized {
+        private final MaterializedPermissions table;
+        private final long version;
+        private final int depth;
+
+        private Materialized(MaterializedPermissions table, long version, int depth) {
+            this.table = table;
+            this.version = version;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The subjects being resolved by one lookup. A subject reached again while it is still being resolved
+     * contributes nothing, which cuts inheritance loops. Results of subjects resolved inside such a loop are missing
+     * what the cut subject would have contributed, so they are kept out of the caches. The subject the loop returned
+     * to has the complete result, since everything cut from its inheritance is its own.
+     */
+    private static final class Resolution {
+        static final int LOOP = -1;
+        private final Map<PermissionsExSubject, Integer> persistent = new IdentityHashMap<>(), transients = new IdentityHashMap<>();
+        private int loopDepth = Integer.MAX_VALUE;
+
+        /**
+         * Start resolving a subject
+         *
+         * @return A token to pass to {@link #exit(PermissionsExSubject, boolean, int)}, or {@link #LOOP} if the
+         *          subject is already being resolved
+         */
+        public int enter(PermissionsExSubject subject, boolean transientData) {
+            final Map<PermissionsExSubject, Integer> stack = transientData ? transients : persistent;
+            final Integer existing = stack.get(subject);
+            if (existing != null) {
+                loopDepth = Math.min(loopDepth, existing);
+                return LOOP;
+            }
+            stack.put(subject, persistent.size() + transients.size());
+            final int outer = loopDepth;
+            loopDepth = Integer.MAX_VALUE;
+            return outer;
+        }
+
+        /**
+         * Finish resolving a subject
+         *
+         * @return Whether the subject's result is complete and may be cached
+         */
+        public boolean exit(PermissionsExSubject subject, boolean transientData, int outer) {
+            final int depth = (transientData ? transients : persistent).remove(subject);
+            final boolean complete = loopDepth >= depth;
+            loopDepth = Math.min(loopDepth, outer);
+            return complete;
+        }
+    }
+
+    /**
+     * Transient data resolved at one version, with the most recent views of it over the persistent results
+     */
+    private static final class TransientOverlay {
+        private final long version;
+        private final ResolvedPermissions permissions;
+        private final ResolvedOptions options;
+        private volatile ResolvedPermissions layeredPermissions;
+        private volatile ResolvedOptions layeredOptions;
+
+        private TransientOverlay(long version, ResolvedPermissions permissions, ResolvedOptions options) {
+            this.version = version;
+            this.permissions = permissions;
+            this.options = options;
+        }
+
+        public boolean isEmpty() {
+            return permissions.asMap().isEmpty() && options.asMap().isEmpty();
+        }
+
+        public ResolvedPermissions layer(ResolvedPermissions base) {
+            ResolvedPermissions ret = layeredPermissions;
+            if (ret == null || !ret.isLayeredOver(base)) {
+                ret = permissions.layeredOver(base);
+                layeredPermissions = ret;
+            }
+            return ret;
+        }
 
+        public ResolvedOptions layer(ResolvedOptions base) {
+            ResolvedOptions ret = layeredOptions;
+            if (ret == null || !ret.isLayeredOver(base)) {
+                ret = options.layeredOver(base);
+                layeredOptions = ret;
+            }
+            return ret;
+        }
     }
 }
@@ -0,0 +1,148 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.data.HotSet;
+import org.spongepowered.api.service.permission.context.Context;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The subject collections over one data store, one for each subject type, created on first use
+ */
+public class SubjectCollections {
+    private final DataStore store;
+    @Nullable private final HotSet hotSet;
+    private final PermissionsExPlugin service;
+    private final ConcurrentMap<String, PEXSubjectCollection> collections = new ConcurrentHashMap<>();
+
+    public SubjectCollections(DataStore store, PermissionsExPlugin service) {
+        this(store, null, service);
+    }
+
+    /**
+     * Create collections that record the contexts their subjects are resolved in
+     *
+     * @param store The data store holding subject data
+     * @param hotSet The hot set to record subjects and their contexts to, or null to not record them
+     * @param service The permission service the subjects belong to
+     */
+    public SubjectCollections(DataStore store, @Nullable HotSet hotSet, PermissionsExPlugin service) {
+        this.store = store;
+        this.hotSet = hotSet;
+        this.service = service;
+    }
+
+    public DataStore getDataStore() {
+        return store;
+    }
+
+    PermissionsExPlugin getService() {
+        return service;
+    }
+
+    /**
+     * Record that a subject was resolved in a context set, so it is resolved in them again on the next start
+     */
+    void recordUse(String type, String identifier, Set<Context> contexts) {
+        if (hotSet != null) {
+            hotSet.touch(type, identifier, contexts);
+        }
+    }
+
+    /**
+     * Get the collection of subjects of a type
+     *
+     * @param type The subject type
+     * @return The collection
+     */
+    public PEXSubjectCollection get(String type) {
+        PEXSubjectCollection ret = collections.get(type);
+        if (ret == null) {
+            ret = new PEXSubjectCollection(this, type);
+            final PEXSubjectCollection existing = collections.putIfAbsent(type, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get every collection that has been used so far
+     *
+     * @return An unmodifiable view of the collections, by type
+     */
+    public Map<String, PEXSubjectCollection> getAll() {
+        return Collections.unmodifiableMap(collections);
+    }
+
+    /**
+     * Resolve the subjects used before the last shutdown in the contexts they were used in, once the manager's
+     * warm-up has loaded their data. Their first checks are then answered from their caches. The manager must be
+     * the one these collections' data store and hot set belong to.
+     *
+     * <p>These subjects are likely to be checked often again, so each one used in known contexts also has the most
+     * recent of them made its active contexts and materialized, with its table kept up to date on the read threads.
+     *
+     * @param manager The manager to take the subjects, the loading of their data and the read threads from
+     * @return A future completed once every subject has been resolved
+     */
+    public ListenableFuture<Void> warmUp(final PermissionsEx manager) {
+        final List<HotSet.Entry> entries = manager.getHotSet().getSubjects();
+        final Executor readExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                manager.getExecutor().submitRead(Executors.callable(command));
+            }
+        };
+        final ListenableFutureTask<Void> task = ListenableFutureTask.create(new Callable<Void>() {
+            @Override
+            public Void call() {
+                // Oldest first, so resolving touches the hot set back into the same order
+                for (HotSet.Entry entry : ImmutableList.copyOf(entries).reverse()) {
+                    final PermissionsExSubject subject = get(entry.getType()).get(entry.getIdentifier());
+                    for (Set<Context> contexts : ImmutableList.copyOf(entry.getContexts()).reverse()) {
+                        subject.getResolvedPermissions(contexts);
+                        subject.getResolvedOptions(contexts);
+                    }
+                    if (!entry.getContexts().isEmpty()) {
+                        subject.setActiveContexts(entry.getContexts().get(0));
+                        subject.setMaterialized(readExecutor);
+                    }
+                }
+                return null;
+            }
+        });
+        manager.getWarmUp().addListener(task, readExecutor);
+        return task;
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Every effective permission of a subject in one context set, held in an open-addressed table keyed by node hash.
+ * A node with a value of its own is found in a single probe, and any other node by probing each of its parent nodes.
+ *
+ * <p>The table is changed in place by {@link #update(Map)}, which only writes the nodes that differ from the
+ * previous update. Lookups do not lock, and may see an update partly applied while it is in progress.</p>
+ */
+public final class MaterializedPermissions {
+    private static final Slot REMOVED = new Slot(0, null, false);
+    private static final int MIN_CAPACITY = 16;
+
+    private final Set<Context> contexts;
+    private volatile AtomicReferenceArray<Slot> slots;
+    private Map<String, Boolean> current = ImmutableMap.of();
+    private int used; // Slots holding a node or a removal marker, guarded by this
+
+    public MaterializedPermissions(Set<Context> contexts) {
+        this.contexts = ImmutableSet.copyOf(contexts);
+        this.slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+    }
+
+    public Set<Context> getContexts() {
+        return contexts;
+    }
+
+    /**
+     * Get the permissions this table was last updated to
+     *
+     * @return The effective permissions
+     */
+    public synchronized Map<String, Boolean> asMap() {
+        return current;
+    }
+
+    /**
+     * Bring the table in line with a new set of effective permissions, writing only the nodes that changed.
+     * Finding them compares every node of both sets, unless the new set is the one last applied.
+     *
+     * @param permissions The effective permissions
+     * @return The number of nodes added, changed or removed
+     */
+    public synchronized int update(Map<String, Boolean> permissions) {
+        final Map<String, Boolean> previous = this.current;
+        if (previous == permissions) {
+            return 0;
+        }
+        int changed = 0;
+        for (Map.Entry<String, Boolean> ent : permissions.entrySet()) {
+            if (!ent.getValue().equals(previous.get(ent.getKey()))) {
+                put(ent.getKey(), ent.getValue());
+                ++changed;
+            }
+        }
+        for (String node : previous.keySet()) {
+            if (!permissions.containsKey(node)) {
+                remove(node);
+                ++changed;
+            }
+        }
+        this.current = ImmutableMap.copyOf(permissions);
+        return changed;
+    }
+
+    /**
+     * Get the value of a permission. The most specific node that has a value decides the result.
+     *
+     * @param permission The permission to check
+     * @return The permission's value
+     */
+    public Tristate get(String permission) {
+        final AtomicReferenceArray<Slot> slots = this.slots;
+        String node = permission;
+        int split = permission.length();
+        while (true) {
+            final Slot slot = find(slots, node);
+            if (slot != null) {
+                return Tristate.fromBoolean(slot.value);
+            }
+            split = permission.lastIndexOf('.', split - 1);
+            if (split <= 0) {
+                return Tristate.UNDEFINED;
+            }
+            node = permission.substring(0, split);
+        }
+    }
+
+    /**
+     * Get the value of every permission in a batch, as {@link #get(String)} would for each.
+     *
+     * @param batch The permissions to check
+     * @return The permissions' values
+     */
+    public PermissionBatch.Result get(PermissionBatch batch) {
+        final AtomicReferenceArray<Slot> slots = this.slots;
+        final int size = batch.size();
+        final BitSet defined = new BitSet(size), values = new BitSet(size);
+        for (int i = 0; i < size; ++i) {
+            for (String node : batch.getLookupChain(i)) {
+                final Slot slot = find(slots, node);
+                if (slot != null) {
+                    defined.set(i);
+                    values.set(i, slot.value);
+                    break;
+                }
+            }
+        }
+        return new PermissionBatch.Result(batch, defined, values);
+    }
+
+    private static Slot find(AtomicReferenceArray<Slot> slots, String node) {
+        final int hash = hash(node), mask = slots.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final Slot slot = slots.get(i);
+            if (slot == null) {
+                return null;
+            } else if (slot.hash == hash && node.equals(slot.node)) {
+                return slot;
+            }
+        }
+    }
+
+    private void put(String node, boolean value) {
+        if ((used + 1) * 2 > slots.length()) {
+            resize();
+        }
+        final AtomicReferenceArray<Slot> slots = this.slots;
+        final int hash = hash(node), mask = slots.length() - 1;
+        int free = -1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final Slot slot = slots.get(i);
+            if (slot == null) {
+                if (free == -1) {
+                    free = i;
+                    ++used;
+                }
+                break;
+            } else if (slot == REMOVED) {
+                if (free == -1) {
+                    free = i;
+                }
+            } else if (slot.hash == hash && node.equals(slot.node)) {
+                free = i;
+                break;
+            }
+        }
+        slots.set(free, new Slot(hash, node, value));
+    }
+
+    private void remove(String node) {
+        final AtomicReferenceArray<Slot> slots = this.slots;
+        final int hash = hash(node), mask = slots.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final Slot slot = slots.get(i);
+            if (slot == null) {
+                return;
+            } else if (slot.hash == hash && node.equals(slot.node)) {
+                slots.set(i, REMOVED);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy every node into a new table sized for the current contents, dropping removal markers.
+     * Lookups keep using the old table until the new one is published.
+     */
+    private void resize() {
+        final AtomicReferenceArray<Slot> old = this.slots;
+        int live = 0;
+        for (int i = 0; i < old.length(); ++i) {
+            final Slot slot = old.get(i);
+            if (slot != null && slot != REMOVED) {
+                ++live;
+            }
+        }
+        int capacity = MIN_CAPACITY;
+        while (capacity < (live + 1) * 4) {
+            capacity <<= 1;
+        }
+        final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<>(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < old.length(); ++i) {
+            final Slot slot = old.get(i);
+            if (slot != null && slot != REMOVED) {
+                int j = slot.hash & mask;
+                while (slots.get(j) != null) {
+                    j = (j + 1) & mask;
+                }
+                slots.set(j, slot);
+            }
+        }
+        this.used = live;
+        this.slots = slots;
+    }
+
+    private static int hash(String node) {
+        final int h = node.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Slot {
+        private final int hash;
+        private final String node;
+        private final boolean value;
+
+        private Slot(int hash, String node, boolean value) {
+            this.hash = hash;
+            this.node = node;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.data.Caching;
+import org.spongepowered.api.service.permission.MemorySubjectData;
+import org.spongepowered.api.service.permission.PermissionService;
+import org.spongepowered.api.service.permission.Subject;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory subject data that also holds options. Any change is reported to the attached {@link Caching} listener,
+ * so that subjects resolving from this data can drop their cached results.
+ */
+public class MemoryOptionSubjectData extends MemorySubjectData implements OptionSubjectData {
+    private final ConcurrentMap<Set<Context>, Map<String, String>> options = new ConcurrentHashMap<>();
+    @Nullable private final Caching listener;
+
+    public MemoryOptionSubjectData(PermissionService service, @Nullable Caching listener) {
+        super(service);
+        this.listener = listener;
+    }
+
+    private boolean changed() {
+        if (listener != null) {
+            listener.clearCache();
+        }
+        return true;
+    }
+
+    @Override
+    public Map<Set<Context>, Map<String, String>> getAllOptions() {
+        return Collections.unmodifiableMap(options);
+    }
+
+    @Override
+    public Map<String, String> getOptions(Set<Context> contexts) {
+        final Map<String, String> ret = options.get(contexts);
+        return ret == null ? Collections.<String, String>emptyMap() : ret;
+    }
+
+    @Override
+    public boolean setOption(Set<Context> contexts, String key, String value) {
+        contexts = ImmutableSet.copyOf(contexts);
+        Map<String, String> existing, replacement;
+        do {
+            existing = options.get(contexts);
+            Map<String, String> working = existing == null ? new HashMap<String, String>() : new HashMap<>(existing);
+            if (value == null) {
+                if (working.remove(key) == null) {
+                    return false;
+                }
+            } else {
+                working.put(key, value);
+            }
+            replacement = ImmutableMap.copyOf(working);
+        } while (!(existing == null ? options.putIfAbsent(contexts, replacement) == null : options.replace(contexts, existing, replacement)));
+        return changed();
+    }
+
+    @Override
+    public boolean clearOptions(Set<Context> contexts) {
+        return options.remove(contexts) != null && changed();
+    }
+
+    @Override
+    public boolean clearOptions() {
+        if (options.isEmpty()) {
+            return false;
+        }
+        options.clear();
+        return changed();
+    }
+
+    @Override
+    public boolean setPermission(Set<Context> contexts, String permission, Tristate value) {
+        return super.setPermission(contexts, permission, value) && changed();
+    }
+
+    @Override
+    public boolean clearPermissions() {
+        return super.clearPermissions() && changed();
+    }
+
+    @Override
+    public boolean clearPermissions(Set<Context> contexts) {
+        return super.clearPermissions(contexts) && changed();
+    }
+
+    @Override
+    public boolean addParent(Set<Context> contexts, Subject parent) {
+        return super.addParent(contexts, parent) && changed();
+    }
+
+    @Override
+    public boolean removeParent(Set<Context> contexts, Subject parent) {
+        return super.removeParent(contexts, parent) && changed();
+    }
+
+    @Override
+    public boolean clearParents() {
+        return super.clearParents() && changed();
+    }
+
+    @Override
+    public boolean clearParents(Set<Context> contexts) {
+        return super.clearParents(contexts) && changed();
+    }
+}
@@ -44,4 +44,22 @@ public interface OptionSubject extends Subject {
      * @return The value of the option, if any is present
      */
     public Optional<String> getOption(String key);
+
+    /**
+     * Check every permission in a batch in the given context. Contexts and inheritance are resolved
+     * once for the whole batch rather than once per node.
+     *
+     * @param contexts The contexts to check in
+     * @param batch The compiled permissions to check
+     * @return The value of each permission in the batch
+     */
+    public PermissionBatch.Result getPermissionValues(Set<Context> contexts, PermissionBatch batch);
+
+    /**
+     * Check every permission in a batch in the subject's current context
+     *
+     * @param batch The compiled permissions to check
+     * @return The value of each permission in the batch
+     */
+    public PermissionBatch.Result getPermissionValues(PermissionBatch batch);
 }
@@ -0,0 +1,120 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableList;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A fixed list of permission nodes that can be checked together. Compile a batch once and reuse it for every check,
+ * so the work of splitting each node into its lookup chain is only done once.
+ */
+public final class PermissionBatch {
+    private final List<String> nodes;
+    private final String[][] lookupChains;
+
+    private PermissionBatch(List<String> nodes) {
+        this.nodes = ImmutableList.copyOf(nodes);
+        this.lookupChains = new String[this.nodes.size()][];
+        for (int i = 0; i < this.lookupChains.length; ++i) {
+            this.lookupChains[i] = lookupChain(this.nodes.get(i));
+        }
+    }
+
+    public static PermissionBatch compile(String... nodes) {
+        return new PermissionBatch(ImmutableList.copyOf(nodes));
+    }
+
+    public static PermissionBatch compile(List<String> nodes) {
+        return new PermissionBatch(nodes);
+    }
+
+    /**
+     * Get the nodes that are checked for a permission, from the most to the least specific.
+     * For {@code a.b.c} this is {@code a.b.c}, {@code a.b}, {@code a}.
+     *
+     * @param node The permission to check
+     * @return The nodes to check
+     */
+    static String[] lookupChain(String node) {
+        final List<String> chain = new ArrayList<>();
+        chain.add(node);
+        for (int i = node.lastIndexOf('.'); i > 0; i = node.lastIndexOf('.', i - 1)) {
+            chain.add(node.substring(0, i));
+        }
+        return chain.toArray(new String[chain.size()]);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    String[] getLookupChain(int index) {
+        return lookupChains[index];
+    }
+
+    /**
+     * The outcome of checking every node in a batch. Results are packed into two bit sets,
+     * one marking which nodes have a value and one holding those values.
+     */
+    public static final class Result {
+        private final PermissionBatch batch;
+        private final BitSet defined, values;
+
+        Result(PermissionBatch batch, BitSet defined, BitSet values) {
+            this.batch = batch;
+            this.defined = defined;
+            this.values = values;
+        }
+
+        public PermissionBatch getBatch() {
+            return batch;
+        }
+
+        public Tristate get(int index) {
+            if (!defined.get(index)) {
+                return Tristate.UNDEFINED;
+            }
+            return Tristate.fromBoolean(values.get(index));
+        }
+
+        public boolean hasPermission(int index) {
+            return values.get(index);
+        }
+
+        /**
+         * Get the nodes the subject has, as a bit set indexed by position in the batch
+         *
+         * @return A copy of the granted nodes
+         */
+        public BitSet getGranted() {
+            return (BitSet) values.clone();
+        }
+
+        public BitSet getDefined() {
+            return (BitSet) defined.clone();
+        }
+    }
+}
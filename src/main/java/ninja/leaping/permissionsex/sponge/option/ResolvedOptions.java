@@ -0,0 +1,161 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The options of a subject in one context set, with inheritance already applied.
+ * Typed forms of each value are parsed on first request and kept with the value.
+ */
+public final class ResolvedOptions {
+    public static final ResolvedOptions EMPTY = new ResolvedOptions(ImmutableMap.<String, String>of());
+
+    private final Map<String, String> options;
+    private final Map<String, Value> values;
+    @Nullable private final ResolvedOptions base;
+
+    public ResolvedOptions(Map<String, String> options) {
+        this.options = ImmutableMap.copyOf(options);
+        ImmutableMap.Builder<String, Value> values = ImmutableMap.builder();
+        for (Map.Entry<String, String> ent : this.options.entrySet()) {
+            values.put(ent.getKey(), new Value(ent.getValue()));
+        }
+        this.values = values.build();
+        this.base = null;
+    }
+
+    private ResolvedOptions(ResolvedOptions overlay, ResolvedOptions base) {
+        final Map<String, String> options = new HashMap<>(base.options);
+        options.putAll(overlay.options);
+        final Map<String, Value> values = new HashMap<>(base.values);
+        values.putAll(overlay.values);
+        this.options = ImmutableMap.copyOf(options);
+        this.values = ImmutableMap.copyOf(values);
+        this.base = base;
+    }
+
+    /**
+     * Get these options layered over another set, with values set here taking precedence. Values already parsed
+     * in either set are reused.
+     *
+     * @param base The options to fall back to
+     * @return The layered options
+     */
+    public ResolvedOptions layeredOver(ResolvedOptions base) {
+        return new ResolvedOptions(this, base);
+    }
+
+    /**
+     * Check whether these options were created by {@link #layeredOver(ResolvedOptions)} on exactly the given set
+     *
+     * @param base The set to check
+     * @return Whether these options fall back to that set
+     */
+    public boolean isLayeredOver(ResolvedOptions base) {
+        return this.base == base;
+    }
+
+    /**
+     * Get all resolved options
+     *
+     * @return An immutable map of option key to value
+     */
+    public Map<String, String> asMap() {
+        return options;
+    }
+
+    public Optional<String> getString(String key) {
+        return Optional.fromNullable(options.get(key));
+    }
+
+    public Optional<Integer> getInt(String key) {
+        final Value value = values.get(key);
+        return value == null ? Optional.<Integer>absent() : value.asInt();
+    }
+
+    public Optional<Double> getDouble(String key) {
+        final Value value = values.get(key);
+        return value == null ? Optional.<Double>absent() : value.asDouble();
+    }
+
+    public Optional<Boolean> getBoolean(String key) {
+        final Value value = values.get(key);
+        return value == null ? Optional.<Boolean>absent() : value.asBoolean();
+    }
+
+    /**
+     * A single option value. Parsing races are harmless since every thread computes the same result.
+     */
+    private static final class Value {
+        private final String raw;
+        private volatile Optional<Integer> intValue;
+        private volatile Optional<Double> doubleValue;
+        private volatile Optional<Boolean> booleanValue;
+
+        private Value(String raw) {
+            this.raw = raw;
+        }
+
+        public Optional<Integer> asInt() {
+            Optional<Integer> ret = intValue;
+            if (ret == null) {
+                try {
+                    ret = Optional.of(Integer.parseInt(raw.trim()));
+                } catch (NumberFormatException e) {
+                    ret = Optional.absent();
+                }
+                intValue = ret;
+            }
+            return ret;
+        }
+
+        public Optional<Double> asDouble() {
+            Optional<Double> ret = doubleValue;
+            if (ret == null) {
+                try {
+                    ret = Optional.of(Double.parseDouble(raw.trim()));
+                } catch (NumberFormatException e) {
+                    ret = Optional.absent();
+                }
+                doubleValue = ret;
+            }
+            return ret;
+        }
+
+        public Optional<Boolean> asBoolean() {
+            Optional<Boolean> ret = booleanValue;
+            if (ret == null) {
+                final String trimmed = raw.trim();
+                if (trimmed.equalsIgnoreCase("true")) {
+                    ret = Optional.of(true);
+                } else if (trimmed.equalsIgnoreCase("false")) {
+                    ret = Optional.of(false);
+                } else {
+                    ret = Optional.absent();
+                }
+                booleanValue = ret;
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableMap;
+import org.spongepowered.api.util.Tristate;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The permissions of a subject in one context set, with inheritance already applied.
+ * Where a node is set by both a subject and one of its parents, the subject's value wins.
+ */
+public final class ResolvedPermissions {
+    public static final ResolvedPermissions EMPTY = new ResolvedPermissions(ImmutableMap.<String, Boolean>of(), 0);
+
+    private final Map<String, Boolean> permissions;
+    private final int depth;
+    @Nullable private final ResolvedPermissions base;
+    private volatile Map<String, Boolean> merged;
+
+    public ResolvedPermissions(Map<String, Boolean> permissions, int depth) {
+        this.permissions = ImmutableMap.copyOf(permissions);
+        this.depth = depth;
+        this.base = null;
+    }
+
+    private ResolvedPermissions(ResolvedPermissions overlay, ResolvedPermissions base) {
+        this.permissions = overlay.permissions;
+        this.depth = Math.max(overlay.depth, base.depth);
+        this.base = base;
+    }
+
+    /**
+     * Get a view of these permissions layered over another set. Each node is looked up here first,
+     * and in {@code base} only if it is not set here. Creating the view does not copy either table.
+     *
+     * @param base The permissions to fall back to
+     * @return The layered permissions
+     */
+    public ResolvedPermissions layeredOver(ResolvedPermissions base) {
+        return new ResolvedPermissions(this, base);
+    }
+
+    /**
+     * Check whether these permissions are a view created by {@link #layeredOver(ResolvedPermissions)} on exactly
+     * the given table
+     *
+     * @param base The table to check
+     * @return Whether this view falls back to that table
+     */
+    public boolean isLayeredOver(ResolvedPermissions base) {
+        return this.base == base;
+    }
+
+    public Map<String, Boolean> asMap() {
+        if (base == null) {
+            return permissions;
+        }
+        Map<String, Boolean> ret = merged;
+        if (ret == null) {
+            final Map<String, Boolean> working = new HashMap<>(base.asMap());
+            working.putAll(permissions);
+            ret = ImmutableMap.copyOf(working);
+            merged = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Get the number of levels of inheritance these permissions were resolved through.
+     * A subject with no parents has a depth of 1.
+     *
+     * @return The inheritance depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Get the value of a permission. The most specific node that has a value decides the result.
+     *
+     * @param permission The permission to check
+     * @return The permission's value
+     */
+    public Tristate get(String permission) {
+        return get(PermissionBatch.lookupChain(permission));
+    }
+
+    private Tristate get(String[] lookupChain) {
+        for (String node : lookupChain) {
+            final Boolean value = getNode(node);
+            if (value != null) {
+                return Tristate.fromBoolean(value);
+            }
+        }
+        return Tristate.UNDEFINED;
+    }
+
+    @Nullable
+    private Boolean getNode(String node) {
+        final Boolean value = permissions.get(node);
+        return value != null || base == null ? value : base.getNode(node);
+    }
+
+    public PermissionBatch.Result get(PermissionBatch batch) {
+        final int size = batch.size();
+        final BitSet defined = new BitSet(size), values = new BitSet(size);
+        for (int i = 0; i < size; ++i) {
+            final Tristate value = get(batch.getLookupChain(i));
+            if (value != Tristate.UNDEFINED) {
+                defined.set(i);
+                values.set(i, value.asBoolean());
+            }
+        }
+        return new PermissionBatch.Result(batch, defined, values);
+    }
+}
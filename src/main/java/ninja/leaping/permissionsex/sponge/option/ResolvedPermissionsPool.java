@@ -0,0 +1,131 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares resolved permission tables between subjects that would resolve to the same result.
+ *
+ * <p>A table is determined by the subject's own permissions and the tables of its parents, in order. Subjects that
+ * have no permissions of their own and the same parents, such as most members of a rank, get the same
+ * table instance. Parent tables are themselves shared, so they are compared by identity. The contexts being resolved
+ * in are not part of the signature: they only matter through the own permissions and parent tables they select.
+ *
+ * <p>Tables are held weakly, and dropped once no subject's cache refers to them. The pool is also cleared on reload,
+ * so no table is shared across configurations.
+ */
+public final class ResolvedPermissionsPool {
+    private static final ConcurrentMap<Signature, ResolvedPermissions> TABLES = new MapMaker().weakValues().makeMap();
+
+    private ResolvedPermissionsPool() {
+    }
+
+    /**
+     * Get the resolved table for a subject, creating it only if no subject with the same signature has one
+     *
+     * @param own The subject's own permissions, already merged across its data sources
+     * @param parents The resolved tables of the subject's parents, in inheritance order
+     * @return The shared table
+     */
+    public static ResolvedPermissions get(Map<String, Boolean> own, List<ResolvedPermissions> parents) {
+        final Signature signature = new Signature(ImmutableMap.copyOf(own), ImmutableList.copyOf(parents));
+        ResolvedPermissions ret = TABLES.get(signature);
+        if (ret == null) {
+            final Map<String, Boolean> permissions = new HashMap<>(own);
+            int parentDepth = 0;
+            for (ResolvedPermissions parent : parents) {
+                for (Map.Entry<String, Boolean> ent : parent.asMap().entrySet()) {
+                    if (!permissions.containsKey(ent.getKey())) {
+                        permissions.put(ent.getKey(), ent.getValue());
+                    }
+                }
+                parentDepth = Math.max(parentDepth, parent.getDepth());
+            }
+            ret = new ResolvedPermissions(permissions, parentDepth + 1);
+            final ResolvedPermissions existing = TABLES.putIfAbsent(signature, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Forget every shared table. Subjects holding a table keep it, but new lookups no longer return it.
+     */
+    public static void clear() {
+        TABLES.clear();
+    }
+
+    /**
+     * Get the number of distinct tables currently shared
+     *
+     * @return The number of tables
+     */
+    public static int size() {
+        return TABLES.size();
+    }
+
+    private static final class Signature {
+        private final Map<String, Boolean> own;
+        private final List<ResolvedPermissions> parents;
+        private final int hash;
+
+        private Signature(Map<String, Boolean> own, List<ResolvedPermissions> parents) {
+            this.own = own;
+            this.parents = parents;
+            int hash = own.hashCode();
+            for (ResolvedPermissions parent : parents) {
+                hash = 31 * hash + System.identityHashCode(parent);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            final Signature other = (Signature) o;
+            if (hash != other.hash || parents.size() != other.parents.size()) {
+                return false;
+            }
+            for (int i = 0; i < parents.size(); ++i) {
+                if (parents.get(i) != other.parents.get(i)) {
+                    return false;
+                }
+            }
+            return own.equals(other.own);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DataStoreExecutorTest {
+    private static Callable<Void> blockUntil(final CountDownLatch started, final CountDownLatch release) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        };
+    }
+
+    private static Callable<Void> count(final AtomicInteger counter) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                counter.incrementAndGet();
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testCoalescesQueuedWrites() throws Exception {
+        final DataStoreExecutor executor = new DataStoreExecutor(1, 1, 4, DataStoreExecutor.OverflowPolicy.COALESCE);
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        final ListenableFuture<String> blocker = executor.submitWrite(null, blockUntil(started, release), "blocker");
+        started.await();
+
+        final AtomicInteger runs = new AtomicInteger();
+        final ListenableFuture<String> first = executor.submitWrite("subject", count(runs), "first");
+        final ListenableFuture<String> second = executor.submitWrite("subject", count(runs), "second");
+        assertEquals(1, executor.getWriteMetrics().getQueueDepth());
+        release.countDown();
+
+        assertEquals("blocker", blocker.get(5, TimeUnit.SECONDS));
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+        assertEquals(1, executor.getWriteMetrics().getCoalesced());
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        final DataStoreExecutor executor = new DataStoreExecutor(1, 1, 1, DataStoreExecutor.OverflowPolicy.REJECT);
+        final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        executor.submitWrite(null, blockUntil(started, release), null);
+        started.await();
+
+        final AtomicInteger runs = new AtomicInteger();
+        final ListenableFuture<Void> queued = executor.submitWrite(null, count(runs), null);
+        final ListenableFuture<Void> rejected = executor.submitWrite(null, count(runs), null);
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail("Write should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        release.countDown();
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(1, runs.get());
+        assertEquals(1, executor.getWriteMetrics().getRejected());
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+    }
+}
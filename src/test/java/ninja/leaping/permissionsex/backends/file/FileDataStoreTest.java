@@ -0,0 +1,691 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreTransfer;
+import ninja.leaping.permissionsex.backends.DataTransaction;
+import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.DataSnapshot;
+import ninja.leaping.permissionsex.data.HotSet;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.MemoryAccounting;
+import ninja.leaping.permissionsex.data.MemoryReport;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.Subject;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FileDataStoreTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of();
+    private static final Caching LOADED = new Caching() {
+        @Override
+        public void clearCache() {
+        }
+
+        @Override
+        public void clearNodeCache(String node) {
+        }
+
+        @Override
+        public void clearInheritanceCache(Subject subject) {
+        }
+    };
+    private File tempDir;
+    private PermissionsEx manager;
+    private FileDataStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = FileStoreFixture.createTempDir();
+        store = FileStoreFixture.createStore("permissions.conf", false, false);
+        manager = FileStoreFixture.open(store, tempDir);
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        FileStoreFixture.deleteRecursively(tempDir);
+    }
+
+    private static ImmutableOptionSubjectData versionedData(int version) {
+        final Tristate value = Tristate.fromBoolean(version % 2 == 0);
+        return FileOptionSubjectData.EMPTY
+                .setPermission(GLOBAL, "test.a", value)
+                .setPermission(GLOBAL, "test.b", value)
+                .setOption(GLOBAL, "version", String.valueOf(version));
+    }
+
+    @Test
+    public void testDataSurvivesReload() throws Exception {
+        store.setData("group", "admin", versionedData(3)).get();
+        final FileDataStore reloaded = reopen(false);
+        assertTrue(reloaded.isRegistered("group", "admin"));
+        assertEquals("3", reloaded.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        assertEquals(Tristate.FALSE, reloaded.getData("group", "admin", null).getPermissions(GLOBAL).get("test.a"));
+    }
+
+    private FileDataStore reopen(boolean sharded) throws Exception {
+        manager.close();
+        return open(sharded, false);
+    }
+
+    private FileDataStore open(boolean sharded, boolean journal) throws Exception {
+        final FileDataStore reloaded = FileStoreFixture.createStore("permissions.conf", sharded, journal);
+        manager = FileStoreFixture.open(reloaded, tempDir);
+        return reloaded;
+    }
+
+    /**
+     * Wait for writes queued before now, such as saves started in the background during initialization.
+     * There is a single write thread by default, so a no-op write completes after them.
+     */
+    private void awaitWrites() throws Exception {
+        manager.getExecutor().submitWrite(null, new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, null).get();
+    }
+
+    @Test
+    public void testShardedLayout() throws Exception {
+        store.setData("group", "admin", versionedData(3)).get();
+        store.setData("user", "a/b:c", versionedData(4)).get();
+
+        // Switching layouts splits the existing file
+        FileDataStore sharded = reopen(true);
+        awaitWrites();
+        final File adminFile = new File(tempDir, "permissions/group/admin.conf");
+        assertTrue(adminFile.isFile());
+        assertTrue(new File(tempDir, "permissions/user/a%2Fb%3Ac.conf").isFile());
+        assertEquals("4", sharded.getData("user", "a/b:c", null).getOptions(GLOBAL).get("version"));
+
+        // Only changed subjects are written
+        assertTrue(adminFile.delete());
+        sharded.setData("user", "a/b:c", versionedData(5)).get();
+        assertFalse(adminFile.exists());
+        sharded.setData("user", "a/b:c", null).get();
+        assertFalse(new File(tempDir, "permissions/user/a%2Fb%3Ac.conf").exists());
+        sharded.setData("group", "admin", versionedData(6)).get();
+
+        sharded = reopen(true);
+        assertEquals("6", sharded.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        assertFalse(sharded.isRegistered("user", "a/b:c"));
+
+        // And the layouts can be converted back
+        final File joined = new File(tempDir, "joined.conf");
+        ShardedLayout.join(new File(tempDir, "permissions"), joined, FileDataStore.SCHEMA_VERSION);
+        final File split = new File(tempDir, "split");
+        ShardedLayout.split(joined, split);
+        assertEquals("6", new ShardedLayout(split).load().get("group", "admin").getOptions(GLOBAL).get("version"));
+    }
+
+    @Test
+    public void testJournalCanOnlyBeOpenedOnce() throws Exception {
+        manager.close();
+        final FileDataStore journaled = open(false, true);
+        journaled.setData("group", "admin", versionedData(7)).get();
+        final PermissionsEx first = manager;
+        try {
+            open(false, true);
+            fail("A second store opened the same journal");
+        } catch (PermissionsLoadingException expected) {
+        }
+
+        // Once the first store lets go, the next one sees everything it wrote
+        first.close();
+        final FileDataStore reopened = open(false, true);
+        assertEquals("7", reopened.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        reopened.setData("group", "admin", versionedData(8)).get();
+        assertEquals("8", reopen(false).getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+    }
+
+    @Test
+    public void testPreloadedBackendsAreClosed() throws Exception {
+        manager.close();
+        final FileDataStore active = FileStoreFixture.createStore("permissions.conf", false, false);
+        final FileDataStore preloaded = FileStoreFixture.createStore("other.conf", false, true);
+        manager = new PermissionsEx(new PermissionsExConfiguration() {
+            @Override
+            public DataStore getDefaultDataStore() {
+                return active;
+            }
+
+            @Override
+            public DataStore getDataStore(String name) {
+                return name.equals("other") ? preloaded : null;
+            }
+
+            @Override
+            public List<String> getPreloadBackends() {
+                return Collections.singletonList("other");
+            }
+        }, tempDir);
+        assertSame(preloaded, manager.getDataStore("other"));
+        preloaded.setData("group", "admin", versionedData(1)).get();
+        manager.close();
+
+        // Its journal was let go, so another store can open it and sees what was written
+        final FileDataStore reopened = FileStoreFixture.createStore("other.conf", false, true);
+        manager = FileStoreFixture.open(reopened, tempDir);
+        assertEquals("1", reopened.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+    }
+
+    @Test
+    public void testChangesThatFailToJournalAreNotPublished() throws Exception {
+        manager.close();
+        final FileDataStore journaled = open(false, true);
+        journaled.setData("group", "admin", versionedData(1)).get();
+        final AtomicLong cleared = new AtomicLong();
+        final Caching listener = countingListener(cleared);
+        journaled.getData("group", "admin", listener);
+
+        journaled.abandonJournal();
+        try {
+            journaled.setData("group", "admin", versionedData(2)).get();
+            fail("A change was written without its journal");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        try {
+            journaled.applyTransaction(DataTransaction.builder().add("group", "admin", addParent("mod")).build()).get();
+            fail("A transaction was written without its journal");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertEquals("1", journaled.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        assertEquals(versionedData(1).getAllParents(), journaled.getData("group", "admin", null).getAllParents());
+        assertEquals(0, cleared.get());
+        assertNotNull(listener);
+    }
+
+    @Test
+    public void testJournalReplaysAfterCrash() throws Exception {
+        store.setData("group", "admin", versionedData(1)).get();
+        manager.close();
+        final File permissionsFile = new File(tempDir, "permissions.conf");
+        final long mainFileSize = permissionsFile.length();
+
+        FileDataStore journaled = open(false, true);
+        journaled.setData("group", "admin", versionedData(2)).get();
+        journaled.applyTransaction(DataTransaction.builder()
+                .add("group", "mod", addParent("admin"))
+                .add("user", "bob", addParent("mod"))
+                .build()).get();
+        assertEquals(mainFileSize, permissionsFile.length());
+
+        // Simulate a crash part-way through appending a record
+        final File journalFile = new File(tempDir, "permissions.conf.journal");
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+
+        // Reopen without closing, as after a crash
+        journaled.abandonJournal();
+        journaled = open(false, true);
+        awaitWrites();
+        assertEquals("2", journaled.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        assertTrue(journaled.isRegistered("group", "mod"));
+        assertTrue(journaled.isRegistered("user", "bob"));
+        // Replayed changes are compacted into the main file at startup
+        assertEquals(0, journalFile.length());
+
+        journaled = reopen(false);
+        assertEquals("2", journaled.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        assertTrue(journaled.isRegistered("user", "bob"));
+    }
+
+    @Test
+    public void testMemoryAccountingTracksChanges() throws Exception {
+        final MemoryAccounting memory = store.getMemoryAccounting();
+        assertEquals(0, memory.getTotalBytes());
+        store.setData("group", "small", versionedData(1)).get();
+        ImmutableOptionSubjectData large = versionedData(2);
+        for (int i = 0; i < 50; ++i) {
+            large = large.setPermission(ImmutableSet.of(new Context("world", "nether")), "large.node." + i, Tristate.TRUE);
+        }
+        store.setData("group", "large", large).get();
+
+        final MemoryReport report = memory.report(1);
+        assertEquals(2, report.getSubjectCount());
+        assertEquals("group:large", report.getHeaviestSubjects().get(0).getKey());
+        assertEquals("world=nether", report.getHeaviestBlocks().get(0).getKey());
+
+        // Incremental totals match measuring from scratch
+        final MemoryAccounting fresh = new MemoryAccounting();
+        fresh.reset(store.getSnapshot());
+        assertEquals(fresh.getTotalBytes(), memory.getTotalBytes());
+
+        store.setData("group", "large", null).get();
+        store.setData("group", "small", null).get();
+        assertEquals(0, memory.getTotalBytes());
+    }
+
+    @Test
+    public void testTransferResumesFromCheckpoint() throws Exception {
+        final DataTransaction.Builder populate = DataTransaction.builder();
+        for (int i = 0; i < 10; ++i) {
+            populate.add("user", "user-" + i, addParent("group-" + i));
+        }
+        populate.add("group", "admin", addParent("mod"));
+        store.applyTransaction(populate.build()).get();
+
+        ConfigurationNode targetConfig = SimpleConfigurationNode.root();
+        targetConfig.getNode("file").setValue("target.conf");
+        final FileDataStore target = (FileDataStore) new FileDataStore.Factory().createDataStore("target", targetConfig);
+        target.initialize(manager);
+
+        // Pretend an earlier run wrote the whole group type and the first page of users
+        final File checkpoint = new File(tempDir, "transfer.checkpoint");
+        final String[] users = Iterables.toArray(store.getAllIdentifiers("user"), String.class);
+        try (FileOutputStream out = new FileOutputStream(checkpoint)) {
+            out.write(("completed-types=group\ntype=user\nposition=3\nlast-id=" + users[2] + "\n").getBytes("UTF-8"));
+        }
+        final AtomicLong lastProgress = new AtomicLong();
+        final long written = new DataStoreTransfer(store, target, checkpoint, 3, 2, new DataStoreTransfer.ProgressListener() {
+            @Override
+            public void onProgress(String type, long subjects, double subjectsPerSecond) {
+                lastProgress.set(subjects);
+            }
+        }).transfer();
+
+        assertEquals(7, written);
+        assertEquals(10, lastProgress.get());
+        assertFalse(checkpoint.exists());
+        assertFalse(target.isRegistered("group", "admin"));
+        assertFalse(target.isRegistered("user", users[2]));
+        assertTrue(target.isRegistered("user", users[3]));
+        assertEquals(store.getData("user", users[9], null).getAllParents(), target.getData("user", users[9], null).getAllParents());
+        target.close();
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemovedAfterRestart() throws Exception {
+        final long now = System.currentTimeMillis(), day = TimeUnit.DAYS.toMillis(1);
+        store.setData("user", "alice", FileOptionSubjectData.EMPTY
+                .setPermission(GLOBAL, "kit.vip", Tristate.TRUE, now + 1500)
+                .setPermission(GLOBAL, "build", Tristate.TRUE)
+                .addParent(GLOBAL, "group", "vip", now + 1500)
+                .addParent(GLOBAL, "group", "member", now + day)).get();
+        store.setData("user", "bob", versionedData(1)).get();
+        awaitWrites();
+
+        final FileDataStore reloaded = reopen(false);
+        assertTrue(new File(tempDir, "permissions.conf.expiries").isFile());
+        ImmutableOptionSubjectData alice = reloaded.getData("user", "alice", null);
+        for (int i = 0; i < 50 && alice.getPermissions(GLOBAL).containsKey("kit.vip"); ++i) {
+            Thread.sleep(100);
+            alice = reloaded.getData("user", "alice", null);
+        }
+        assertEquals(ImmutableMap.of("build", Tristate.TRUE), alice.getPermissions(GLOBAL));
+        assertEquals(1, alice.getParents(GLOBAL).size());
+        assertEquals("member", alice.getParents(GLOBAL).get(0).getValue());
+        assertEquals(now + day, alice.getNextExpiry());
+        assertEquals(versionedData(1).getAllPermissions(), reloaded.getData("user", "bob", null).getAllPermissions());
+
+        awaitWrites();
+        assertEquals(now + day, reopen(false).getData("user", "alice", null).getNextExpiry());
+    }
+
+    @Test
+    public void testShardChangedOutsideStoreIsRescannedForExpiries() throws Exception {
+        store.setData("user", "alice", versionedData(1)).get();
+        FileDataStore sharded = reopen(true);
+        awaitWrites();
+        sharded = reopen(true);
+        awaitWrites();
+        assertTrue(new File(tempDir, "permissions/expiries.dat").isFile());
+        manager.close();
+
+        // Edited by hand after the expiry index was saved
+        final long expiry = System.currentTimeMillis() + 1000;
+        new ShardedLayout(new File(tempDir, "permissions")).write("user", "alice",
+                (FileOptionSubjectData) versionedData(1).setPermission(GLOBAL, "kit.vip", Tristate.TRUE, expiry));
+
+        sharded = open(true, false);
+        ImmutableOptionSubjectData alice = sharded.getData("user", "alice", null);
+        assertEquals(expiry, alice.getNextExpiry());
+        for (int i = 0; i < 50 && alice.getPermissions(GLOBAL).containsKey("kit.vip"); ++i) {
+            Thread.sleep(100);
+            alice = sharded.getData("user", "alice", null);
+        }
+        assertFalse(alice.getPermissions(GLOBAL).containsKey("kit.vip"));
+    }
+
+    @Test
+    public void testUnusedDataIsCompressed() throws Exception {
+        store.setData("user", "offline", versionedData(4)).get();
+        store.setData("user", "online", versionedData(5)).get();
+        store.getData("user", "online", LOADED);
+
+        assertEquals(0, store.compressUnused()); // Everything was used since it was set
+        assertEquals(1, store.compressUnused());
+        final FileOptionSubjectData offline = (FileOptionSubjectData) store.getSnapshot().get("user", "offline");
+        assertTrue(offline.isCompressed());
+        assertFalse(((FileOptionSubjectData) store.getSnapshot().get("user", "online")).isCompressed());
+
+        assertEquals(versionedData(4).getAllPermissions(), offline.getAllPermissions());
+        assertEquals(versionedData(4).getAllOptions(), store.getData("user", "offline", null).getAllOptions());
+        assertFalse(offline.isCompressed());
+        assertEquals(0, store.compressUnused());
+    }
+
+    @Test
+    public void testLoadedSubjectsAreRememberedAcrossRestarts() throws Exception {
+        final Set<Context> nether = ImmutableSet.of(new Context("world", "nether"));
+        store.setData("group", "vip", versionedData(2)).get();
+        store.setData("user", "alice", FileOptionSubjectData.EMPTY.addParent(nether, "group", "vip")).get();
+        store.setData("user", "idle", versionedData(3)).get();
+        store.getData("user", "alice", LOADED);
+        manager.getHotSet().touch("user", "alice", nether);
+
+        reopen(false);
+        manager.getWarmUp().get(10, TimeUnit.SECONDS);
+        final List<HotSet.Entry> hot = manager.getHotSet().getSubjects();
+        assertEquals(1, hot.size());
+        assertEquals("alice", hot.get(0).getIdentifier());
+        assertEquals(Collections.singletonList(nether), hot.get(0).getContexts());
+    }
+
+    @Test
+    public void testChangesReachOnlyDescendants() throws Exception {
+        final Set<Context> nether = ImmutableSet.of(new Context("world", "nether"));
+        store.setData("group", "moderator", FileOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "staff")).get();
+        store.setData("user", "alice", FileOptionSubjectData.EMPTY.addParent(nether, "group", "moderator")).get();
+        store.setData("user", "bob", FileOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "member")).get();
+        final AtomicLong aliceCleared = new AtomicLong(), bobCleared = new AtomicLong();
+        store.getData("user", "alice", countingListener(aliceCleared));
+        store.getData("user", "bob", countingListener(bobCleared));
+
+        store.setData("group", "staff", versionedData(1)).get();
+        assertEquals(1, aliceCleared.get());
+        assertEquals(0, bobCleared.get());
+
+        // Both ancestors changing together still notifies once
+        store.applyTransaction(DataTransaction.builder()
+                .add("group", "staff", addParent("admin"))
+                .add("group", "moderator", addParent("helper"))
+                .build()).get();
+        assertEquals(2, aliceCleared.get());
+
+        assertEquals(ImmutableSet.of(Maps.immutableEntry("group", "moderator"), Maps.immutableEntry("user", "alice")),
+                store.getInheritance().getDescendants("group", "staff", null));
+        assertEquals(ImmutableSet.of(Maps.immutableEntry("group", "moderator")),
+                store.getInheritance().getDescendants("group", "staff", GLOBAL));
+
+        store.setData("user", "alice", null).get();
+        store.setData("group", "staff", versionedData(2)).get();
+        assertEquals(ImmutableSet.of(Maps.immutableEntry("group", "moderator")), store.getInheritance().getChildren("group", "staff"));
+        assertTrue(store.getInheritance().getChildren("group", "moderator").isEmpty());
+    }
+
+    @Test
+    public void testBackupRestoresCapturedState() throws Exception {
+        store.setData("group", "admin", versionedData(1)).get();
+        store.setData("user", "cold", versionedData(2)).get();
+        store.compressUnused();
+        store.compressUnused();
+        final ListenableFuture<File> backup = store.backup(new File(tempDir, "backups"));
+        store.setData("group", "admin", versionedData(3)).get();
+        store.setData("user", "added", versionedData(4)).get();
+
+        final File backupFile = backup.get(10, TimeUnit.SECONDS);
+        assertTrue(backupFile.getName().startsWith("test-"));
+        assertTrue(((FileOptionSubjectData) store.getSnapshot().get("user", "cold")).isCompressed());
+
+        store.restore(backupFile).get();
+        assertEquals("1", store.getData("group", "admin", null).getOptions(GLOBAL).get("version"));
+        assertEquals("2", store.getData("user", "cold", null).getOptions(GLOBAL).get("version"));
+        assertFalse(store.isRegistered("user", "added"));
+        assertFalse(reopen(false).isRegistered("user", "added"));
+    }
+
+    private static Caching countingListener(final AtomicLong cleared) {
+        return new Caching() {
+            @Override
+            public void clearCache() {
+                cleared.incrementAndGet();
+            }
+
+            @Override
+            public void clearNodeCache(String node) {
+                cleared.incrementAndGet();
+            }
+
+            @Override
+            public void clearInheritanceCache(Subject subject) {
+                cleared.incrementAndGet();
+            }
+        };
+    }
+
+    private static Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> addParent(final String group) {
+        return new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+            @Override
+            public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                return input.addParent(GLOBAL, "group", group);
+            }
+        };
+    }
+
+    private static final Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData> INCREMENT = new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+        @Override
+        public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+            final String count = input.getOptions(GLOBAL) == null ? null : input.getOptions(GLOBAL).get("count");
+            return input.setOption(GLOBAL, "count", String.valueOf(count == null ? 1 : Integer.parseInt(count) + 1));
+        }
+    };
+
+    /**
+     * How writes scale across threads is measured by {@link ninja.leaping.permissionsex.debug.SoakHarness}'s writers mode
+     */
+    @Test
+    public void testParallelWritersAllLand() throws Exception {
+        manager.close();
+        FileDataStore journaled = open(false, true);
+        writeInParallel(journaled, 4, 8000);
+        // Every transaction increments both counters, locking their stripes in opposite orders
+        final int transactions = 8000 / 16;
+        assertEquals(String.valueOf(transactions), journaled.getData("counter", "a", null).getOptions(GLOBAL).get("count"));
+        assertEquals(String.valueOf(transactions), journaled.getData("counter", "b", null).getOptions(GLOBAL).get("count"));
+
+        journaled = reopen(false);
+        assertEquals(String.valueOf(transactions), journaled.getData("counter", "a", null).getOptions(GLOBAL).get("count"));
+        assertEquals(String.valueOf(transactions), journaled.getData("counter", "b", null).getOptions(GLOBAL).get("count"));
+        assertEquals("7999", journaled.getData("user", "user-7999", null).getOptions(GLOBAL).get("version"));
+    }
+
+    /**
+     * Write subjects from several threads at once, each writing different subjects, and check every write landed
+     */
+    private static void writeInParallel(final FileDataStore store, int threads, final int writes) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Void>> results = new ArrayList<>();
+        final int perThread = writes / threads;
+        for (int t = 0; t < threads; ++t) {
+            final int first = t * perThread;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    Future<?> last = null;
+                    for (int i = first; i < first + perThread; ++i) {
+                        if (i % 16 == 0) {
+                            final boolean reversed = i % 32 == 0;
+                            store.applyTransaction(DataTransaction.builder()
+                                    .add("counter", reversed ? "b" : "a", INCREMENT)
+                                    .add("counter", reversed ? "a" : "b", INCREMENT)
+                                    .build()).get();
+                        } else {
+                            last = store.setData("user", "user-" + i, versionedData(i));
+                        }
+                    }
+                    if (last != null) {
+                        last.get();
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<Void> result : results) {
+                result.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < perThread * threads; ++i) {
+            if (i % 16 != 0) {
+                assertEquals(String.valueOf(i), store.getData("user", "user-" + i, null).getOptions(GLOBAL).get("version"));
+            }
+        }
+    }
+
+    @Test
+    public void testTransactionIsAtomic() throws Exception {
+        final DataSnapshot before = store.getSnapshot();
+        try {
+            store.applyTransaction(DataTransaction.builder()
+                    .add("user", "one", addParent("vip"))
+                    .add("user", "two", new Function<ImmutableOptionSubjectData, ImmutableOptionSubjectData>() {
+                        @Override
+                        public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData input) {
+                            throw new IllegalStateException("Failing transform");
+                        }
+                    }).build()).get();
+            fail("Transaction with a failing operation completed successfully");
+        } catch (ExecutionException expected) {
+        }
+        assertSame(before, store.getSnapshot());
+        assertFalse(store.isRegistered("user", "one"));
+
+        store.applyTransaction(DataTransaction.builder()
+                .add("user", "one", addParent("vip"))
+                .add("user", "two", addParent("vip"))
+                .add("user", "one", addParent("staff"))
+                .build()).get();
+        assertEquals(before.getVersion() + 1, store.getSnapshot().getVersion());
+        assertEquals(2, store.getData("user", "one", null).getParents(GLOBAL).size());
+        assertEquals(1, store.getData("user", "two", null).getParents(GLOBAL).size());
+    }
+
+    /**
+     * Writers repeatedly replace their subject's data while readers check that every snapshot they see is
+     * internally consistent and never older than one they have already seen.
+     */
+    @Test
+    public void testConcurrentReadersSeeConsistentSnapshots() throws Exception {
+        final int writers = 4, readers = 4, writesPerWriter = 250;
+        final ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch writersDone = new CountDownLatch(writers);
+        try {
+            Future<?>[] results = new Future<?>[writers + readers];
+            for (int i = 0; i < writers; ++i) {
+                final String identifier = "writer-" + i;
+                results[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        try {
+                            for (int version = 1; version <= writesPerWriter; ++version) {
+                                store.setData("user", identifier, versionedData(version)).get();
+                            }
+                        } finally {
+                            writersDone.countDown();
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < readers; ++i) {
+                results[writers + i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        long lastSnapshotVersion = -1;
+                        final int[] lastSubjectVersions = new int[writers];
+                        while (writing.get()) {
+                            final DataSnapshot snapshot = store.getSnapshot();
+                            assertTrue("Snapshot versions went backwards", snapshot.getVersion() >= lastSnapshotVersion);
+                            lastSnapshotVersion = snapshot.getVersion();
+                            for (Map.Entry<String, ImmutableOptionSubjectData> ent : snapshot.getAll("user").entrySet()) {
+                                final Map<String, Tristate> permissions = ent.getValue().getPermissions(GLOBAL);
+                                assertEquals("Torn subject data for " + ent.getKey(), permissions.get("test.a"), permissions.get("test.b"));
+                                final int version = Integer.parseInt(ent.getValue().getOptions(GLOBAL).get("version"));
+                                final int writer = Integer.parseInt(ent.getKey().substring("writer-".length()));
+                                assertTrue("Subject data went backwards for " + ent.getKey(), version >= lastSubjectVersions[writer]);
+                                lastSubjectVersions[writer] = version;
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            start.countDown();
+            assertTrue("Writers did not finish", writersDone.await(2, TimeUnit.MINUTES));
+            writing.set(false);
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < writers; ++i) {
+            assertEquals(String.valueOf(writesPerWriter), store.getData("user", "writer-" + i, null).getOptions(GLOBAL).get("version"));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FileOptionSubjectDataTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of();
+    private static final Context NETHER = new Context("world", "nether"), LOBBY = new Context("server", "lobby"),
+            END = new Context("world", "end");
+
+    @Test
+    public void testApplicableContexts() {
+        final Set<Context> nether = ImmutableSet.of(NETHER), netherLobby = ImmutableSet.of(NETHER, LOBBY),
+                end = ImmutableSet.of(END), lobby = ImmutableSet.of(LOBBY);
+        final FileOptionSubjectData data = (FileOptionSubjectData) FileOptionSubjectData.EMPTY
+                .setPermission(GLOBAL, "a", Tristate.TRUE)
+                .setPermission(nether, "b", Tristate.TRUE)
+                .setPermission(netherLobby, "c", Tristate.TRUE)
+                .setPermission(end, "d", Tristate.TRUE)
+                .setPermission(lobby, "e", Tristate.TRUE);
+
+        assertEquals(ImmutableList.of(GLOBAL), data.getApplicableContexts(GLOBAL));
+        assertEquals(ImmutableList.of(nether, GLOBAL), data.getApplicableContexts(nether));
+        final List<Set<Context>> applicable = data.getApplicableContexts(netherLobby);
+        assertEquals(4, applicable.size());
+        assertEquals(netherLobby, applicable.get(0));
+        assertEquals(ImmutableSet.of(nether, lobby), ImmutableSet.copyOf(applicable.subList(1, 3)));
+        assertEquals(GLOBAL, applicable.get(3));
+        assertEquals(ImmutableList.of(end, GLOBAL), data.getApplicableContexts(ImmutableSet.of(END, new Context("server", "survival"))));
+        assertEquals(ImmutableList.of(), FileOptionSubjectData.EMPTY.getApplicableContexts(netherLobby));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        final FileOptionSubjectData data = (FileOptionSubjectData) FileOptionSubjectData.EMPTY
+                .setPermission(GLOBAL, "a.b", Tristate.FALSE)
+                .setOption(ImmutableSet.of(NETHER), "prefix", "[N]")
+                .addParent(ImmutableSet.of(NETHER, LOBBY), "group", "admin")
+                .addParent(GLOBAL, "user", "someone", 2000)
+                .setPermission(GLOBAL, "c", Tristate.TRUE, 1000);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        data.write(new DataOutputStream(bytes));
+        final FileOptionSubjectData read = FileOptionSubjectData.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(data.getAllPermissions(), read.getAllPermissions());
+        assertEquals(data.getAllOptions(), read.getAllOptions());
+        assertEquals(data.getAllParents(), read.getAllParents());
+        assertEquals(1000, read.getNextExpiry());
+        assertEquals(ImmutableList.of(Maps.immutableEntry("user", "someone")), read.removeExpired(1500).getParents(GLOBAL));
+    }
+
+    @Test
+    public void testRemoveExpired() {
+        final ImmutableOptionSubjectData data = FileOptionSubjectData.EMPTY
+                .setPermission(GLOBAL, "kit.vip", Tristate.TRUE, 1000)
+                .setPermission(GLOBAL, "build", Tristate.TRUE)
+                .addParent(GLOBAL, "group", "vip", 1000)
+                .addParent(GLOBAL, "group", "member", 5000);
+        assertSame(data, data.removeExpired(999));
+        assertEquals(1000, data.getNextExpiry());
+
+        final ImmutableOptionSubjectData expired = data.removeExpired(1000);
+        assertEquals(ImmutableMap.of("build", Tristate.TRUE), expired.getPermissions(GLOBAL));
+        assertEquals(ImmutableList.of(Maps.immutableEntry("group", "member")), expired.getParents(GLOBAL));
+        assertEquals(5000, expired.getNextExpiry());
+        // Adding a parent again without an expiry makes it permanent
+        assertEquals(ImmutableOptionSubjectData.NEVER, expired.addParent(GLOBAL, "group", "member").getNextExpiry());
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Setup shared by tests that run against a file data store in a temporary directory
+ */
+public final class FileStoreFixture {
+    private FileStoreFixture() {
+    }
+
+    public static File createTempDir() throws IOException {
+        final File tempDir = File.createTempFile("pex-test", "");
+        if (!tempDir.delete() || !tempDir.mkdir()) {
+            throw new IOException("Could not create temporary directory " + tempDir);
+        }
+        return tempDir;
+    }
+
+    public static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static FileDataStore createStore(String file, boolean sharded, boolean journal) throws PermissionsLoadingException {
+        ConfigurationNode storeConfig = SimpleConfigurationNode.root();
+        storeConfig.getNode("file").setValue(file);
+        storeConfig.getNode("sharded").setValue(sharded);
+        storeConfig.getNode("journal").setValue(journal);
+        return (FileDataStore) new FileDataStore.Factory().createDataStore("test", storeConfig);
+    }
+
+    /**
+     * Start a manager using a store as its only backend
+     *
+     * @param store The store to use
+     * @param dir The directory the store's files are kept in
+     * @return The started manager
+     * @throws PermissionsLoadingException if the store could not be initialized
+     */
+    public static PermissionsEx open(final DataStore store, File dir) throws PermissionsLoadingException {
+        return new PermissionsEx(new PermissionsExConfiguration() {
+            @Override
+            public DataStore getDefaultDataStore() {
+                return store;
+            }
+        }, dir);
+    }
+
+    /**
+     * Start a manager using a new unsharded, unjournaled store in {@code permissions.conf}
+     *
+     * @param dir The directory to keep the store's files in
+     * @return The started manager
+     * @throws PermissionsLoadingException if the store could not be initialized
+     */
+    public static PermissionsEx open(File dir) throws PermissionsLoadingException {
+        return open(createStore("permissions.conf", false, false), dir);
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class LegacyMigratorTest {
+    private static final String[] QUERY_KEYS = {"legacy.migrate.permissions", "legacy.migrate.inheritance", "legacy.migrate.entities", "legacy.migrate.find_group",
+            "legacy.migrate.checkpoint.create", "legacy.migrate.checkpoint.get", "legacy.migrate.checkpoint.update",
+            "legacy.migrate.checkpoint.insert", "groups.create", "qualifiers.add", "entries.add"};
+    private SqlQueries queries;
+    private FakeDatabase db;
+    private final List<String> progress = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        queries = new SqlQueries("test", "");
+        db = new FakeDatabase(queries);
+        progress.clear();
+    }
+
+    private LegacyMigrator migrator() {
+        return new LegacyMigrator(db.dataSource(), db.dataSource(), queries, 2, new LegacyMigrator.ProgressListener() {
+            @Override
+            public void onProgress(String phase, long rows, long lastId) {
+                progress.add(phase + ":" + rows + ":" + lastId);
+            }
+        });
+    }
+
+    @Test
+    public void testMigratesLegacyRows() throws Exception {
+        db.permission(1, "admin", 0, null, "*", "");
+        db.permission(2, "admin", 0, null, "-worldedit.navigation.(jumpto|thru).*", "");
+        db.permission(3, "admin", 0, "nether", "build.*", "");
+        db.permission(4, "admin", 0, null, "prefix", "[Admin]");
+        db.permission(5, "alice", 1, null, "chat", "");
+        db.inheritance(1, "alice", 1, null, "admin");
+        db.inheritance(2, "alice", 1, "nether", "builder");
+        db.entity(1, "alice", 1, false);
+        db.entity(2, "admin", 0, true);
+
+        assertEquals(8, migrator().migrate());
+
+        assertEquals(ImmutableMap.of("permissions-default", "true", "permission:worldedit.navigation.{jumpto,thru}", "false",
+                "option:prefix", "[Admin]", "option:default", "true"), db.entries("admin", "group", ""));
+        assertEquals(ImmutableMap.of("permission:build", "true"), db.entries("admin", "group", "nether"));
+        assertEquals(ImmutableMap.of("permission:chat", "true", "parent", "admin"), db.entries("alice", "user", ""));
+        assertEquals(ImmutableMap.of("parent", "builder"), db.entries("alice", "user", "nether"));
+        assertEquals(4, db.groups.size());
+        assertEquals(Arrays.asList("permissions:2:2", "permissions:4:4", "permissions:5:5", "inheritance:2:2", "entities:1:2"), progress);
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        db.permission(1, "admin", 0, null, "build", "");
+        db.permission(2, "alice", 1, null, "chat", "");
+        assertEquals(2, migrator().migrate());
+
+        db.permission(3, "admin", 0, null, "kick", "");
+        db.permission(4, "bob", 2, null, "ignored", ""); // Unknown entity type
+        db.inheritance(1, "alice", 1, null, "admin");
+        assertEquals(3, migrator().migrate());
+
+        assertEquals(ImmutableMap.of("permission:build", "true", "permission:kick", "true"), db.entries("admin", "group", ""));
+        assertEquals(ImmutableMap.of("permission:chat", "true", "parent", "admin"), db.entries("alice", "user", ""));
+        assertEquals(2, db.groups.size());
+        assertEquals(0, migrator().migrate());
+    }
+
+    /**
+     * Just enough of a database to run the migration queries against, telling queries apart by their text
+     */
+    private static final class FakeDatabase {
+        private final Map<String, String> queryKeys = new HashMap<>();
+        private final List<Object[]> legacyPermissions = new ArrayList<>(), legacyInheritance = new ArrayList<>(), legacyEntities = new ArrayList<>();
+        private final List<String> groups = new ArrayList<>();
+        private final Map<Integer, Map<String, String>> qualifiers = new HashMap<>();
+        private final Map<Integer, Map<String, String>> entries = new HashMap<>();
+        private final Map<String, Long> checkpoints = new HashMap<>();
+
+        private FakeDatabase(SqlQueries queries) {
+            for (String key : QUERY_KEYS) {
+                queryKeys.put(queries.get(key), key);
+            }
+        }
+
+        public void permission(long id, String name, int type, String world, String permission, String value) {
+            legacyPermissions.add(new Object[] {id, name, type, world, permission, value});
+        }
+
+        public void inheritance(long id, String child, int type, String world, String parent) {
+            legacyInheritance.add(new Object[] {id, child, type, world, parent});
+        }
+
+        public void entity(long id, String name, int type, boolean isDefault) {
+            legacyEntities.add(new Object[] {id, name, type, null, isDefault ? 1 : 0});
+        }
+
+        public Map<String, String> entries(String name, String type, String world) {
+            final Integer group = findGroup(type, name, world);
+            assertNotNull("No group for " + type + " " + name + " in '" + world + "'", group);
+            final Map<String, String> ret = entries.get(group);
+            return ret == null ? ImmutableMap.<String, String>of() : ret;
+        }
+
+        private Integer findGroup(String type, String name, String world) {
+            for (int i = 0; i < groups.size(); ++i) {
+                final Map<String, String> quals = qualifiers.get(i + 1);
+                final String groupWorld = quals.containsKey("world") ? quals.get("world") : "";
+                if (groups.get(i).equals(name) && type.equals(quals.get("type")) && groupWorld.equals(world)) {
+                    return i + 1;
+                }
+            }
+            return null;
+        }
+
+        private List<Object[]> after(List<Object[]> rows, long id) {
+            final List<Object[]> ret = new ArrayList<>();
+            for (Object[] row : rows) {
+                if ((Long) row[0] > id) {
+                    ret.add(row);
+                }
+            }
+            return ret;
+        }
+
+        private List<Object[]> query(String key, Map<Integer, Object> params) {
+            switch (key) {
+                case "legacy.migrate.permissions":
+                    return after(legacyPermissions, (Long) params.get(1));
+                case "legacy.migrate.inheritance":
+                    return after(legacyInheritance, (Long) params.get(1));
+                case "legacy.migrate.entities":
+                    final List<Object[]> defaults = new ArrayList<>();
+                    for (Object[] row : after(legacyEntities, (Long) params.get(1))) {
+                        if ((Integer) row[4] != 0) {
+                            defaults.add(row);
+                        }
+                    }
+                    return defaults;
+                case "legacy.migrate.find_group":
+                    final Integer group = findGroup((String) params.get(1), (String) params.get(2), (String) params.get(3));
+                    return group == null ? new ArrayList<Object[]>() : Arrays.<Object[]>asList(new Object[] {group});
+                case "legacy.migrate.checkpoint.get":
+                    final Long checkpoint = checkpoints.get(params.get(1));
+                    return checkpoint == null ? new ArrayList<Object[]>() : Arrays.<Object[]>asList(new Object[] {checkpoint});
+                default:
+                    throw new IllegalArgumentException("Not a query: " + key);
+            }
+        }
+
+        private int update(String key, Map<Integer, Object> params) {
+            switch (key) {
+                case "legacy.migrate.checkpoint.create":
+                    return 0;
+                case "legacy.migrate.checkpoint.update":
+                    if (!checkpoints.containsKey(params.get(2))) {
+                        return 0;
+                    }
+                    checkpoints.put((String) params.get(2), (Long) params.get(1));
+                    return 1;
+                case "legacy.migrate.checkpoint.insert":
+                    checkpoints.put((String) params.get(1), (Long) params.get(2));
+                    return 1;
+                case "groups.create":
+                    groups.add((String) params.get(1));
+                    qualifiers.put(groups.size(), new HashMap<String, String>());
+                    return 1;
+                case "qualifiers.add":
+                    qualifiers.get(params.get(1)).put((String) params.get(2), (String) params.get(3));
+                    return 1;
+                case "entries.add":
+                    Map<String, String> groupEntries = entries.get(params.get(1));
+                    if (groupEntries == null) {
+                        groupEntries = new TreeMap<>();
+                        entries.put((Integer) params.get(1), groupEntries);
+                    }
+                    groupEntries.put((String) params.get(2), (String) params.get(3));
+                    return 1;
+                default:
+                    throw new IllegalArgumentException("Not an update: " + key);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] {type}, handler);
+        }
+
+        public DataSource dataSource() {
+            return proxy(DataSource.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getConnection")) {
+                        return connection();
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        private Connection connection() {
+            return proxy(Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "createStatement":
+                        case "prepareStatement":
+                            return statement(args == null ? null : (String) args[0]);
+                        case "getMetaData":
+                            return proxy(DatabaseMetaData.class, new InvocationHandler() {
+                                @Override
+                                public Object invoke(Object proxy, Method method, Object[] args) {
+                                    return "Test";
+                                }
+                            });
+                        case "setAutoCommit":
+                        case "commit":
+                        case "rollback":
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+        }
+
+        private PreparedStatement statement(final String sql) {
+            return proxy(PreparedStatement.class, new InvocationHandler() {
+                private final Map<Integer, Object> params = new HashMap<>();
+                private final List<Map<Integer, Object>> batch = new ArrayList<>();
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "setString":
+                        case "setInt":
+                        case "setLong":
+                            params.put((Integer) args[0], args[1]);
+                            return null;
+                        case "addBatch":
+                            batch.add(new HashMap<>(params));
+                            return null;
+                        case "executeBatch":
+                            final int[] ret = new int[batch.size()];
+                            for (int i = 0; i < ret.length; ++i) {
+                                ret[i] = update(queryKeys.get(sql), batch.get(i));
+                            }
+                            batch.clear();
+                            return ret;
+                        case "execute":
+                            update(queryKeys.get((String) args[0]), params);
+                            return false;
+                        case "executeUpdate":
+                            return update(queryKeys.get(sql), params);
+                        case "executeQuery":
+                            return resultSet(query(queryKeys.get(sql), params));
+                        case "getGeneratedKeys":
+                            return resultSet(Arrays.<Object[]>asList(new Object[] {groups.size()}));
+                        case "setFetchSize":
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+        }
+
+        private static ResultSet resultSet(final List<Object[]> rows) {
+            return proxy(ResultSet.class, new InvocationHandler() {
+                private int row = -1;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++row < rows.size();
+                        case "getString":
+                            return (String) rows.get(row)[(Integer) args[0] - 1];
+                        case "getInt":
+                            return ((Number) rows.get(row)[(Integer) args[0] - 1]).intValue();
+                        case "getLong":
+                            return ((Number) rows.get(row)[(Integer) args[0] - 1]).longValue();
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CheckLogTest {
+    private static final Set<Context> NETHER = ImmutableSet.of(new Context("world", "nether"));
+
+    @Test
+    public void testFilterAndDrain() {
+        final List<String> lines = new ArrayList<>();
+        final CheckLog log = new CheckLog(sink(lines), new CheckLog.Filter(ImmutableSet.of("alice"), ImmutableList.of("build."), NETHER), 16);
+        log.record("alice", "build.spawn", NETHER, Tristate.TRUE);
+        log.record("bob", "build.spawn", NETHER, Tristate.TRUE);
+        log.record("alice", "chat", NETHER, Tristate.TRUE);
+        log.record("alice", "build.spawn", ImmutableSet.<Context>of(), Tristate.TRUE);
+
+        assertEquals(1, log.drain());
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("alice checked build.spawn in [world:nether]: TRUE"));
+        assertEquals(0, log.drain());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        final List<String> lines = new ArrayList<>();
+        final CheckLog log = new CheckLog(sink(lines), CheckLog.Filter.ALL, 4);
+        for (int i = 0; i < 10; ++i) {
+            log.record("alice", "node." + i, NETHER, Tristate.FALSE);
+        }
+        assertEquals(6, log.getDroppedCount());
+        assertEquals(4, log.drain());
+        assertEquals("Dropped 6 permission check records because the log could not keep up", lines.get(0));
+        assertTrue(lines.get(4).contains("node.3"));
+
+        log.record("alice", "node.after", NETHER, Tristate.FALSE);
+        assertEquals(1, log.drain());
+        assertTrue(lines.get(5).contains("node.after"));
+    }
+
+    @Test
+    public void testCopiesOnlyMutableContexts() {
+        final List<Set<Context>> recorded = new ArrayList<>();
+        final CheckLog log = new CheckLog(new CheckLog.RecordSink() {
+            @Override
+            public void write(long time, String subject, String node, Set<Context> contexts, Tristate result) {
+                recorded.add(contexts);
+            }
+
+            @Override
+            public void dropped(long count) {
+            }
+        }, CheckLog.Filter.ALL, 4);
+        final Set<Context> mutable = new HashSet<>(NETHER);
+        log.record("alice", "build", NETHER, Tristate.TRUE);
+        log.record("alice", "build", mutable, Tristate.TRUE);
+        mutable.add(new Context("world", "end"));
+
+        assertEquals(2, log.drain());
+        assertSame(NETHER, recorded.get(0));
+        assertEquals(NETHER, recorded.get(1));
+    }
+
+    private static CheckLog.Sink sink(final List<String> lines) {
+        return new CheckLog.Sink() {
+            @Override
+            public void write(String line) {
+                lines.add(line);
+            }
+        };
+    }
+}
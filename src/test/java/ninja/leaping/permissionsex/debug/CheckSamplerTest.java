@@ -0,0 +1,113 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.sponge.PermissionsExPlugin;
+import ninja.leaping.permissionsex.sponge.PermissionsExSubject;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CheckSamplerTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of();
+
+    @Test
+    public void testSamplesOneInEveryRate() {
+        final CheckSampler sampler = new CheckSampler(4, 16);
+        int sampled = 0;
+        for (int i = 0; i < 40; ++i) {
+            if (sampler.shouldSample()) {
+                ++sampled;
+            }
+        }
+        assertEquals(10, sampled);
+    }
+
+    @Test
+    public void testRingKeepsNewestSamples() {
+        final CheckSampler sampler = new CheckSampler(1, 3); // Rounded up to 4
+        for (int i = 0; i < 10; ++i) {
+            sampler.record("user", "node." + i, GLOBAL, 1, i);
+        }
+        final List<CheckSampler.Sample> samples = sampler.getSamples();
+        assertEquals(4, samples.size());
+        long total = 0;
+        for (CheckSampler.Sample sample : samples) {
+            assertTrue(sample.getElapsedNanos() >= 6);
+            total += sample.getElapsedNanos();
+        }
+        assertEquals(6 + 7 + 8 + 9, total);
+    }
+
+    @Test
+    public void testReportAggregates() throws Exception {
+        final CheckSampler sampler = new CheckSampler(1, 64);
+        sampler.record("alice", "build", GLOBAL, 1, 100);
+        sampler.record("alice", "build", GLOBAL, 2, 300);
+        sampler.record("bob", "build", GLOBAL, 3, 1000);
+        sampler.record("bob", "chat", GLOBAL, 1, 2000);
+        sampler.record("carol", "kick", GLOBAL, 1, 10);
+
+        final CheckSampler.Report report = sampler.report(2);
+        assertEquals(5, report.getSampleCount());
+        assertEquals(2, report.getHottestNodes().size());
+        final CheckSampler.Stat build = report.getHottestNodes().get(0);
+        assertEquals("build", build.getKey());
+        assertEquals(3, build.getCount());
+        assertEquals(1400, build.getTotalNanos());
+        assertEquals(1000, build.getMaxNanos());
+        assertEquals(3, build.getMaxDepth());
+
+        assertEquals("bob", report.getSlowestSubjects().get(0).getKey());
+        assertEquals(1500, report.getSlowestSubjects().get(0).getMeanNanos());
+        assertEquals("alice", report.getSlowestSubjects().get(1).getKey());
+        assertEquals(200, report.getSlowestSubjects().get(1).getMeanNanos());
+
+        final StringBuilder csv = new StringBuilder();
+        report.writeCsv(csv);
+        assertTrue(csv.toString(), csv.toString().contains("node,\"build\",3,1400,466,1000,3\n"));
+        final StringBuilder json = new StringBuilder();
+        report.writeJson(json);
+        assertTrue(json.toString(), json.toString().startsWith("{\"samples\":5,\"hottest-nodes\":[{\"key\":\"build\",\"count\":3,"));
+    }
+
+    @Test
+    public void testSubjectChecksAreSampled() {
+        final CheckSampler sampler = new CheckSampler(2, 64);
+        PermissionsExSubject.setCheckSampler(sampler);
+        try {
+            final PermissionsExSubject subject = new PermissionsExSubject("alice", new PermissionsExPlugin());
+            subject.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+            for (int i = 0; i < 10; ++i) {
+                assertEquals(Tristate.TRUE, subject.getPermissionValue(GLOBAL, "build.spawn"));
+            }
+        } finally {
+            PermissionsExSubject.setCheckSampler(null);
+        }
+        final List<CheckSampler.Sample> samples = sampler.getSamples();
+        assertEquals(5, samples.size());
+        assertEquals("alice", samples.get(0).getSubject());
+        assertEquals("build.spawn", samples.get(0).getNode());
+        assertEquals(1, samples.get(0).getDepth());
+    }
+}
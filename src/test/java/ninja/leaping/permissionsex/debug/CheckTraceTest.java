@@ -0,0 +1,113 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.file.FileDataStore;
+import ninja.leaping.permissionsex.backends.file.FileStoreFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CheckTraceTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of();
+    private static final Set<Context> NETHER = ImmutableSet.of(new Context("world", "nether"));
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = FileStoreFixture.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        FileStoreFixture.deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testCapturedChecksReadBack() throws IOException {
+        final File file = new File(tempDir, "checks.trace");
+        final CheckTrace.Writer writer = new CheckTrace.Writer(file);
+        final CheckLog log = new CheckLog(writer, CheckLog.Filter.ALL, 4);
+        log.record("alice", "build.spawn", NETHER, Tristate.TRUE);
+        log.record("bob", "build.spawn", GLOBAL, Tristate.UNDEFINED);
+        log.record("alice", "chat", NETHER, Tristate.FALSE);
+        for (int i = 0; i < 5; ++i) {
+            log.record("alice", "dropped", NETHER, Tristate.FALSE);
+        }
+        assertEquals(4, log.drain());
+        writer.close();
+
+        final CheckTrace trace = CheckTrace.read(file);
+        assertEquals(4, trace.size());
+        assertEquals(4, trace.getDroppedCount());
+        assertEquals(Arrays.asList("alice", "bob"), trace.getSubjects());
+        assertEquals("alice", trace.getSubject(0));
+        assertEquals("build.spawn", trace.getNode(0));
+        assertEquals(NETHER, trace.getContexts(0));
+        assertEquals(Tristate.TRUE, trace.getResult(0));
+        assertEquals(1, trace.getSubjectIndex(1));
+        assertEquals(GLOBAL, trace.getContexts(1));
+        assertEquals(Tristate.UNDEFINED, trace.getResult(1));
+        assertEquals(0, trace.getSubjectIndex(2));
+        assertEquals(Tristate.FALSE, trace.getResult(2));
+        assertTrue(trace.getTime(2) >= trace.getTime(0));
+    }
+
+    @Test
+    public void testReplayAgainstBackup() throws Exception {
+        final FileDataStore store = FileStoreFixture.createStore("permissions.conf", false, false);
+        final PermissionsEx manager = FileStoreFixture.open(store, tempDir);
+        final File backup;
+        try {
+            store.setData("group", "staff", store.getData("group", "staff", null).setPermission(GLOBAL, "kick", Tristate.TRUE)).get();
+            store.setData("user", "alice", store.getData("user", "alice", null).setPermission(GLOBAL, "build", Tristate.TRUE)
+                    .addParent(GLOBAL, "group", "staff")).get();
+            backup = store.backup(new File(tempDir, "backups")).get();
+        } finally {
+            manager.close();
+        }
+
+        final File file = new File(tempDir, "checks.trace");
+        final CheckTrace.Writer writer = new CheckTrace.Writer(file);
+        writer.write(0, "alice", "build", GLOBAL, Tristate.TRUE);
+        writer.write(1, "alice", "build.spawn", NETHER, Tristate.TRUE);
+        writer.write(2, "alice", "chat", GLOBAL, Tristate.TRUE); // Not what the data resolves to
+        writer.write(3, "bob", "chat", GLOBAL, Tristate.UNDEFINED);
+        writer.write(4, "alice", "kick.player", GLOBAL, Tristate.TRUE); // Inherited from staff
+        writer.close();
+
+        final TraceReplay.Report report = new TraceReplay(CheckTrace.read(file), backup, false, "user", 0)
+                .run(new PrintStream(new ByteArrayOutputStream()));
+        assertEquals(5, report.getChecks());
+        assertEquals(1, report.getMismatches());
+        assertEquals(1, report.getUnknownSubjects());
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.debug;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class SoakHarnessTest {
+    private static void assertPasses(SoakHarness harness) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final boolean passed = harness.run(new PrintStream(output, true, "UTF-8"));
+        assertTrue(output.toString("UTF-8"), passed);
+    }
+
+    @Test
+    public void testShortRun() throws Exception {
+        assertPasses(new SoakHarness(40, 2, 1, 5, 10, false, false));
+    }
+
+    @Test
+    public void testWriterScalingRun() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final boolean passed = new SoakHarness(40, 4, 1, 5, 10, false, true).measureWriterScaling(new PrintStream(output, true, "UTF-8"), 800);
+        assertTrue(output.toString("UTF-8"), passed);
+    }
+
+    @Test
+    public void testShortRunShardedWithJournal() throws Exception {
+        assertPasses(new SoakHarness(40, 2, 1, 5, 10, true, true));
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.debug.CheckSampler;
+import ninja.leaping.permissionsex.sponge.option.PermissionBatch;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PermissionsExSubjectTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of();
+    private final PermissionsExPlugin service = new PermissionsExPlugin();
+
+    private PermissionsExSubject subject(String identifier) {
+        return new PermissionsExSubject(identifier, service);
+    }
+
+    @Test
+    public void testTypedOptions() {
+        final PermissionsExSubject parent = subject("parent"), child = subject("child");
+        child.getData().addParent(GLOBAL, parent);
+        parent.getData().setOption(GLOBAL, "homes", " 3 ");
+        parent.getData().setOption(GLOBAL, "speed", "1.5");
+        parent.getData().setOption(GLOBAL, "fly", "TRUE");
+        child.getData().setOption(GLOBAL, "prefix", "[Child]");
+
+        assertEquals(Optional.of(3), child.getIntOption(GLOBAL, "homes"));
+        assertEquals(Optional.of(1.5), child.getDoubleOption(GLOBAL, "speed"));
+        assertEquals(Optional.of(true), child.getBooleanOption(GLOBAL, "fly"));
+        assertEquals(Optional.of("[Child]"), child.getOption(GLOBAL, "prefix"));
+        assertFalse(child.getIntOption(GLOBAL, "prefix").isPresent());
+        assertFalse(child.getBooleanOption(GLOBAL, "homes").isPresent());
+        assertFalse(child.getIntOption(GLOBAL, "missing").isPresent());
+
+        child.getData().setOption(GLOBAL, "homes", "5");
+        assertEquals(Optional.of(5), child.getIntOption(GLOBAL, "homes"));
+    }
+
+    @Test
+    public void testParentChangesReachChildren() {
+        final PermissionsExSubject group = subject("group"), rank = subject("rank"), user = subject("user");
+        user.getData().addParent(GLOBAL, rank);
+        rank.getData().addParent(GLOBAL, group);
+        group.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+        group.getData().setOption(GLOBAL, "prefix", "[Group]");
+        assertEquals(Tristate.TRUE, user.getPermissionValue(GLOBAL, "build.spawn"));
+        assertEquals(Optional.of("[Group]"), user.getOption(GLOBAL, "prefix"));
+
+        group.getData().setPermission(GLOBAL, "build", Tristate.FALSE);
+        group.getData().setOption(GLOBAL, "prefix", "[Changed]");
+        assertEquals(Tristate.FALSE, user.getPermissionValue(GLOBAL, "build.spawn"));
+        assertEquals(Optional.of("[Changed]"), user.getOption(GLOBAL, "prefix"));
+
+        rank.getData().removeParent(GLOBAL, group);
+        assertEquals(Tristate.UNDEFINED, user.getPermissionValue(GLOBAL, "build.spawn"));
+    }
+
+    @Test
+    public void testTransientParentChangesReachChildren() {
+        final PermissionsExSubject group = subject("group"), rank = subject("rank"), user = subject("user");
+        user.getTransientData().addParent(GLOBAL, rank);
+        rank.getData().addParent(GLOBAL, group);
+        rank.getTransientData().setPermission(GLOBAL, "fly", Tristate.TRUE);
+        group.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+        assertEquals(Tristate.TRUE, user.getPermissionValue(GLOBAL, "fly"));
+        assertEquals(Tristate.TRUE, user.getPermissionValue(GLOBAL, "build"));
+        assertEquals(Tristate.UNDEFINED, user.getPermissionValue(GLOBAL, "chat"));
+
+        // Transient data of the transient parent
+        rank.getTransientData().setPermission(GLOBAL, "fly", Tristate.FALSE);
+        assertEquals(Tristate.FALSE, user.getPermissionValue(GLOBAL, "fly"));
+
+        // Persistent data of the transient parent
+        rank.getData().setPermission(GLOBAL, "chat", Tristate.TRUE);
+        rank.getData().setOption(GLOBAL, "prefix", "[Rank]");
+        assertEquals(Tristate.TRUE, user.getPermissionValue(GLOBAL, "chat"));
+        assertEquals(Optional.of("[Rank]"), user.getOption(GLOBAL, "prefix"));
+
+        // Persistent data further up the transient parent's inheritance
+        group.getData().setPermission(GLOBAL, "build", Tristate.FALSE);
+        assertEquals(Tristate.FALSE, user.getPermissionValue(GLOBAL, "build"));
+
+        user.getTransientData().removeParent(GLOBAL, rank);
+        assertEquals(Tristate.UNDEFINED, user.getPermissionValue(GLOBAL, "chat"));
+    }
+
+    @Test
+    public void testMaterializedTableFollowsChanges() {
+        final Set<Context> nether = ImmutableSet.of(new Context("world", "nether"));
+        final List<Runnable> queued = new ArrayList<>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        final PermissionsExSubject group = subject("group"), user = subject("user");
+        user.getData().addParent(nether, group);
+        group.getData().setPermission(nether, "build", Tristate.TRUE);
+        user.setActiveContexts(nether);
+        user.setMaterialized(executor);
+        assertFalse(user.isMaterialized(nether));
+        runAll(queued);
+        assertTrue(user.isMaterialized(nether));
+        assertEquals(Tristate.TRUE, user.getPermissionValue(nether, "build.spawn"));
+
+        // Parent changes are applied in the background, coalesced, and never served stale in the meantime
+        group.getData().setPermission(nether, "build", Tristate.FALSE);
+        group.getData().setPermission(nether, "chat", Tristate.TRUE);
+        assertEquals(1, queued.size());
+        assertFalse(user.isMaterialized(nether));
+        assertEquals(Tristate.FALSE, user.getPermissionValue(nether, "build.spawn"));
+        runAll(queued);
+        assertTrue(user.isMaterialized(nether));
+        assertEquals(Tristate.FALSE, user.getPermissionValue(nether, "build.spawn"));
+        assertEquals(Tristate.TRUE, user.getPermissionValue(nether, "chat"));
+
+        // Other contexts resolve lazily
+        assertFalse(user.isMaterialized(GLOBAL));
+        assertEquals(Tristate.UNDEFINED, user.getPermissionValue(GLOBAL, "chat"));
+
+        user.getTransientData().setPermission(nether, "fly", Tristate.TRUE);
+        runAll(queued);
+        assertTrue(user.isMaterialized(nether));
+        assertEquals(Tristate.TRUE, user.getPermissionValue(nether, "fly"));
+
+        user.setMaterialized(null);
+        assertFalse(user.isMaterialized(nether));
+    }
+
+    @Test
+    public void testMaterializedChecksAreSampled() {
+        final List<Runnable> queued = new ArrayList<>();
+        final PermissionsExSubject user = subject("user");
+        user.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+        user.setMaterialized(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        runAll(queued);
+        assertTrue(user.isMaterialized(GLOBAL));
+        final CheckSampler sampler = new CheckSampler(1, 16);
+        PermissionsExSubject.setCheckSampler(sampler);
+        try {
+            assertEquals(Tristate.TRUE, user.getPermissionValue(GLOBAL, "build"));
+        } finally {
+            PermissionsExSubject.setCheckSampler(null);
+        }
+        assertEquals(1, sampler.getSamples().size());
+        assertEquals("build", sampler.getSamples().get(0).getNode());
+    }
+
+    @Test
+    public void testMaterializedBatchesAreSampled() {
+        final List<Runnable> queued = new ArrayList<>();
+        final PermissionsExSubject user = subject("user");
+        user.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+        user.getData().setPermission(GLOBAL, "build.nether", Tristate.FALSE);
+        user.setMaterialized(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        runAll(queued);
+        assertTrue(user.isMaterialized(GLOBAL));
+        final CheckSampler sampler = new CheckSampler(1, 16);
+        PermissionsExSubject.setCheckSampler(sampler);
+        final PermissionBatch.Result result;
+        try {
+            result = user.getPermissionValues(GLOBAL, PermissionBatch.compile("build.spawn", "build.nether.portal", "chat"));
+        } finally {
+            PermissionsExSubject.setCheckSampler(null);
+        }
+        assertEquals(Tristate.TRUE, result.get(0));
+        assertEquals(Tristate.FALSE, result.get(1));
+        assertEquals(Tristate.UNDEFINED, result.get(2));
+        assertEquals(3, sampler.getSamples().size());
+        final Set<String> sampled = new HashSet<>();
+        for (CheckSampler.Sample sample : sampler.getSamples()) {
+            sampled.add(sample.getNode());
+        }
+        assertEquals(ImmutableSet.of("build.spawn", "build.nether.portal", "chat"), sampled);
+    }
+
+    private static void runAll(List<Runnable> queued) {
+        while (!queued.isEmpty()) {
+            queued.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testLoopsDoNotCacheIncompleteResults() {
+        final PermissionsExSubject a = subject("a"), b = subject("b");
+        a.getData().addParent(GLOBAL, b);
+        b.getData().addParent(GLOBAL, a);
+        a.getData().setPermission(GLOBAL, "from.a", Tristate.TRUE);
+        b.getData().setPermission(GLOBAL, "from.b", Tristate.TRUE);
+
+        // Resolving a resolves b with a cut out of its inheritance
+        assertEquals(Tristate.TRUE, a.getPermissionValue(GLOBAL, "from.b"));
+        assertEquals(Tristate.TRUE, b.getPermissionValue(GLOBAL, "from.a"));
+        assertEquals(Tristate.TRUE, a.getPermissionValue(GLOBAL, "from.a"));
+        assertEquals(Tristate.TRUE, b.getPermissionValue(GLOBAL, "from.b"));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge;
+
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.file.FileStoreFixture;
+import ninja.leaping.permissionsex.data.HotSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.io.File;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SubjectCollectionsTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of(), NETHER = ImmutableSet.of(new Context("world", "nether"));
+    private File tempDir;
+    private PermissionsEx manager;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = FileStoreFixture.createTempDir();
+        manager = FileStoreFixture.open(tempDir);
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        FileStoreFixture.deleteRecursively(tempDir);
+    }
+
+    private SubjectCollections collections(PermissionsEx manager) {
+        return new SubjectCollections(manager.getActiveDataStore(), manager.getHotSet(), new PermissionsExPlugin());
+    }
+
+    @Test
+    public void testChecksRecordContexts() {
+        final SubjectCollections subjects = collections(manager);
+        final PermissionsExSubject alice = subjects.get("user").get("alice");
+        alice.getPermissionValue(NETHER, "build");
+        alice.getPermissionValue(NETHER, "chat"); // Answered from the cache
+
+        HotSet.Entry entry = null;
+        for (HotSet.Entry candidate : manager.getHotSet().getSubjects()) {
+            if (candidate.getIdentifier().equals("alice")) {
+                entry = candidate;
+            }
+        }
+        assertNotNull(entry);
+        assertEquals("user", entry.getType());
+        assertEquals(NETHER, entry.getContexts().get(0));
+    }
+
+    @Test
+    public void testUnusedSubjectsAreReleased() throws Exception {
+        final SubjectCollections subjects = collections(manager);
+        subjects.get("user").get("bob").getData().setPermission(GLOBAL, "chat", Tristate.TRUE);
+        subjects.get("user").get("carol").getTransientData().setPermission(GLOBAL, "fly", Tristate.TRUE);
+        for (int i = 0; i < 50 && subjects.get("user").getLoadedSubjects().size() > 1; ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        // Only the subject with transient data is kept
+        assertEquals(1, subjects.get("user").getLoadedSubjects().size());
+        assertEquals(Tristate.TRUE, subjects.get("user").get("carol").getPermissionValue(GLOBAL, "fly"));
+        assertEquals(Tristate.TRUE, subjects.get("user").get("bob").getPermissionValue(GLOBAL, "chat"));
+    }
+
+    @Test
+    public void testChangesWaitForTheStore() throws Exception {
+        final PermissionsExSubject bob = collections(manager).get("user").get("bob");
+        assertTrue(bob.getData().setPermission(GLOBAL, "chat", Tristate.TRUE));
+
+        // Put something the store can't replace where its file goes
+        final File permissionsFile = new File(tempDir, "permissions.conf");
+        assertTrue(permissionsFile.delete() && permissionsFile.mkdir() && new File(permissionsFile, "blocker").createNewFile());
+        try {
+            bob.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+            fail("A change the store failed to save was reported as successful");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void testDescendantsAreInvalidatedOnce() {
+        final SubjectCollections subjects = collections(manager);
+        final PermissionsExSubject staff = subjects.get("group").get("staff");
+        final PermissionsExSubject moderator = subjects.get("group").get("moderator");
+        final PermissionsExSubject alice = subjects.get("user").get("alice");
+        moderator.getData().addParent(GLOBAL, staff);
+        alice.getData().addParent(GLOBAL, moderator);
+        assertEquals(Tristate.UNDEFINED, alice.getPermissionValue(GLOBAL, "build"));
+
+        final long moderatorGeneration = moderator.getGeneration(), aliceGeneration = alice.getGeneration();
+        staff.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+        assertEquals(moderatorGeneration + 1, moderator.getGeneration());
+        assertEquals(aliceGeneration + 1, alice.getGeneration());
+        assertEquals(Tristate.TRUE, alice.getPermissionValue(GLOBAL, "build"));
+    }
+
+    @Test
+    public void testWarmUpResolvesSubjects() throws Exception {
+        SubjectCollections subjects = collections(manager);
+        final PermissionsExSubject admin = subjects.get("group").get("admin");
+        admin.getData().setPermission(NETHER, "build", Tristate.TRUE);
+        final PermissionsExSubject alice = subjects.get("user").get("alice");
+        alice.getData().addParent(NETHER, admin);
+        alice.getData().setPermission(GLOBAL, "chat", Tristate.TRUE);
+        assertEquals(Tristate.TRUE, alice.getPermissionValue(NETHER, "build"));
+        manager.close();
+
+        manager = FileStoreFixture.open(tempDir);
+        subjects = collections(manager);
+        subjects.warmUp(manager).get();
+        assertEquals(1, subjects.get("user").getLoadedSubjects().size());
+        final PermissionsExSubject warmed = subjects.get("user").getLoadedSubjects().iterator().next();
+        assertEquals("alice", warmed.getIdentifier());
+        assertTrue(warmed.estimateCacheBytes() > 0);
+        for (int i = 0; i < 50 && !warmed.isMaterialized(NETHER); ++i) {
+            Thread.sleep(100);
+        }
+        assertTrue(warmed.isMaterialized(NETHER));
+        assertEquals(NETHER, warmed.getActiveContexts());
+        assertEquals(Tristate.TRUE, warmed.getPermissionValue(NETHER, "build"));
+        assertEquals(Tristate.TRUE, warmed.getPermissionValue(NETHER, "chat"));
+    }
+}
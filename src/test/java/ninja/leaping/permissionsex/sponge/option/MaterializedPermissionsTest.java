@@ -0,0 +1,66 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MaterializedPermissionsTest {
+    @Test
+    public void testDeltaUpdates() {
+        final MaterializedPermissions table = new MaterializedPermissions(ImmutableSet.of(new Context("world", "nether")));
+        assertEquals(3, table.update(ImmutableMap.of("build", true, "build.nether", false, "chat", true)));
+        assertEquals(Tristate.TRUE, table.get("build.spawn"));
+        assertEquals(Tristate.FALSE, table.get("build.nether.portal"));
+        assertEquals(Tristate.UNDEFINED, table.get("kick"));
+
+        // Only the changed, added and removed nodes are written
+        assertEquals(3, table.update(ImmutableMap.of("build", true, "build.nether", true, "fly", true)));
+        assertEquals(Tristate.TRUE, table.get("build.nether.portal"));
+        assertEquals(Tristate.UNDEFINED, table.get("chat"));
+        assertEquals(Tristate.TRUE, table.get("fly"));
+        assertEquals(0, table.update(table.asMap()));
+    }
+
+    @Test
+    public void testGrowsAndShrinks() {
+        final MaterializedPermissions table = new MaterializedPermissions(ImmutableSet.<Context>of());
+        final Map<String, Boolean> permissions = new HashMap<>();
+        for (int i = 0; i < 1000; ++i) {
+            permissions.put("node." + i, i % 2 == 0);
+        }
+        table.update(permissions);
+        for (int round = 0; round < 10; ++round) {
+            permissions.remove("node." + round);
+            permissions.put("other." + round, true);
+            table.update(permissions);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(i < 10 ? Tristate.UNDEFINED : Tristate.fromBoolean(i % 2 == 0), table.get("node." + i));
+        }
+        assertEquals(Tristate.TRUE, table.get("other.9.child"));
+        assertEquals(1000, table.asMap().size());
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.sponge.PermissionsExPlugin;
+import ninja.leaping.permissionsex.sponge.PermissionsExSubject;
+import org.junit.Test;
+import org.spongepowered.api.service.permission.context.Context;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PermissionBatchTest {
+    private static final Set<Context> GLOBAL = ImmutableSet.of();
+
+    @Test
+    public void testLookupChain() {
+        assertArrayEquals(new String[] {"a.b.c", "a.b", "a"}, PermissionBatch.lookupChain("a.b.c"));
+        assertArrayEquals(new String[] {"single"}, PermissionBatch.lookupChain("single"));
+    }
+
+    @Test
+    public void testBatchMatchesIndividualChecks() {
+        final PermissionsExPlugin service = new PermissionsExPlugin();
+        final PermissionsExSubject group = new PermissionsExSubject("group", service), user = new PermissionsExSubject("user", service);
+        user.getData().addParent(GLOBAL, group);
+        group.getData().setPermission(GLOBAL, "build", Tristate.TRUE);
+        group.getData().setPermission(GLOBAL, "chat.color", Tristate.TRUE);
+        user.getData().setPermission(GLOBAL, "build.nether", Tristate.FALSE);
+        user.getTransientData().setPermission(GLOBAL, "fly", Tristate.TRUE);
+
+        final PermissionBatch batch = PermissionBatch.compile("build.spawn", "build.nether.portal", "chat.color.red", "chat", "fly", "kick");
+        final PermissionBatch.Result result = user.getPermissionValues(GLOBAL, batch);
+        assertSame(batch, result.getBatch());
+        final BitSet expectedGranted = new BitSet(), expectedDefined = new BitSet();
+        for (int i = 0; i < batch.size(); ++i) {
+            final Tristate expected = user.getPermissionValue(GLOBAL, batch.getNodes().get(i));
+            assertEquals(batch.getNodes().get(i), expected, result.get(i));
+            assertEquals(expected.asBoolean(), result.hasPermission(i));
+            expectedDefined.set(i, expected != Tristate.UNDEFINED);
+            expectedGranted.set(i, expected.asBoolean());
+        }
+        assertEquals(expectedDefined, result.getDefined());
+        assertEquals(expectedGranted, result.getGranted());
+        assertEquals(Arrays.asList(Tristate.TRUE, Tristate.FALSE, Tristate.TRUE, Tristate.UNDEFINED, Tristate.TRUE, Tristate.UNDEFINED),
+                Arrays.asList(result.get(0), result.get(1), result.get(2), result.get(3), result.get(4), result.get(5)));
+    }
+
+    @Test
+    public void testResultsAreCopies() {
+        final ResolvedPermissions table = new ResolvedPermissions(ImmutableMap.of("a", true), 1);
+        final PermissionBatch.Result result = table.get(PermissionBatch.compile("a.b", "c"));
+        result.getGranted().clear();
+        result.getDefined().clear();
+        assertEquals(Tristate.TRUE, result.get(0));
+        assertEquals(Tristate.UNDEFINED, result.get(1));
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.spongepowered.api.util.Tristate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ResolvedPermissionsPoolTest {
+    private static final ResolvedPermissions PARENT = new ResolvedPermissions(ImmutableMap.of("build", true), 1);
+
+    @Test
+    public void testEqualInputsShareTable() {
+        final Map<String, Boolean> own = new HashMap<>();
+        own.put("chat", true);
+        final ResolvedPermissions first = ResolvedPermissionsPool.get(own, ImmutableList.of(PARENT));
+        final ResolvedPermissions second = ResolvedPermissionsPool.get(ImmutableMap.of("chat", true), ImmutableList.of(PARENT));
+        assertSame(first, second);
+        assertEquals(Tristate.TRUE, first.get("build.spawn"));
+        assertEquals(Tristate.TRUE, first.get("chat"));
+        assertEquals(2, first.getDepth());
+    }
+
+    @Test
+    public void testDifferentInputsDoNotShare() {
+        final ResolvedPermissions base = ResolvedPermissionsPool.get(ImmutableMap.of("chat", true), ImmutableList.of(PARENT));
+        assertNotSame(base, ResolvedPermissionsPool.get(ImmutableMap.of("chat", false), ImmutableList.of(PARENT)));
+        assertNotSame(base, ResolvedPermissionsPool.get(ImmutableMap.of("chat", true), ImmutableList.<ResolvedPermissions>of()));
+        // Parents are compared by identity, so an equal but separate parent table gives a separate result
+        final ResolvedPermissions equalParent = new ResolvedPermissions(ImmutableMap.of("build", true), 1);
+        assertNotSame(base, ResolvedPermissionsPool.get(ImmutableMap.of("chat", true), ImmutableList.of(equalParent)));
+        // Parent order decides which value wins, so it is part of the signature
+        final ResolvedPermissions denying = new ResolvedPermissions(ImmutableMap.of("build", false), 1);
+        final ResolvedPermissions granting = ResolvedPermissionsPool.get(ImmutableMap.<String, Boolean>of(), ImmutableList.of(PARENT, denying));
+        final ResolvedPermissions denied = ResolvedPermissionsPool.get(ImmutableMap.<String, Boolean>of(), ImmutableList.of(denying, PARENT));
+        assertNotSame(granting, denied);
+        assertEquals(Tristate.TRUE, granting.get("build"));
+        assertEquals(Tristate.FALSE, denied.get("build"));
+    }
+
+    @Test
+    public void testClearedOnReload() {
+        final ResolvedPermissions before = ResolvedPermissionsPool.get(ImmutableMap.of("reload", true), ImmutableList.of(PARENT));
+        ResolvedPermissionsPool.clear();
+        assertEquals(0, ResolvedPermissionsPool.size());
+        final ResolvedPermissions after = ResolvedPermissionsPool.get(ImmutableMap.of("reload", true), ImmutableList.of(PARENT));
+        assertNotSame(before, after);
+        assertEquals(before.asMap(), after.asMap());
+    }
+}
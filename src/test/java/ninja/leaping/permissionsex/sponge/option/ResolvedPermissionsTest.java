@@ -0,0 +1,46 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge.option;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.spongepowered.api.util.Tristate;
+
+import static org.junit.Assert.*;
+
+public class ResolvedPermissionsTest {
+    @Test
+    public void testLayeredLookup() {
+        final ResolvedPermissions base = new ResolvedPermissions(ImmutableMap.of("build", true, "build.nether", false, "chat", true), 2);
+        final ResolvedPermissions overlay = new ResolvedPermissions(ImmutableMap.of("build", false, "fly", true), 1);
+        final ResolvedPermissions layered = overlay.layeredOver(base);
+
+        assertTrue(layered.isLayeredOver(base));
+        assertEquals(Tristate.FALSE, layered.get("build.spawn"));
+        assertEquals(Tristate.FALSE, layered.get("build.nether.portal"));
+        assertEquals(Tristate.TRUE, layered.get("chat"));
+        assertEquals(Tristate.TRUE, layered.get("fly"));
+        assertEquals(Tristate.UNDEFINED, layered.get("kick"));
+        assertEquals(2, layered.getDepth());
+        assertEquals(ImmutableMap.of("build", false, "build.nether", false, "chat", true, "fly", true), layered.asMap());
+
+        final PermissionBatch.Result batch = layered.get(PermissionBatch.compile("build.nether.portal", "chat.color", "kick"));
+        assertEquals(Tristate.FALSE, batch.get(0));
+        assertEquals(Tristate.TRUE, batch.get(1));
+        assertEquals(Tristate.UNDEFINED, batch.get(2));
+    }
+}